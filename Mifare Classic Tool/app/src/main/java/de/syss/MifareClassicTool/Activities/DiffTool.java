@@ -81,7 +81,7 @@ public class DiffTool extends BasicActivity {
         // Check if one or both dumps are already chosen via Intent
         // (from DumpEditor).
         if (getIntent().hasExtra(EXTRA_DUMP)) {
-            mDump1 = convertDumpFormat(
+            mDump1 = Common.convertDumpFormat(
                     getIntent().getStringArrayExtra(EXTRA_DUMP));
             mDumpFileButton1.setText(R.string.text_dump_from_editor);
             mDumpFileButton1.setEnabled(false);
@@ -302,7 +302,7 @@ public class DiffTool extends BasicActivity {
      * Get the {@link FileChooser#EXTRA_CHOSEN_FILE} from the Intend,
      * read the file, check it for errors using
      * {@link Common#isValidDump(String[], boolean)} and convert its format
-     * using {@link #convertDumpFormat(String[])}.
+     * using {@link Common#convertDumpFormat(String[])}.
      * This is a helper function for
      * {@link #onActivityResult(int, int, Intent)}.
      * @param data The Intent returned by the {@link FileChooser}
@@ -312,7 +312,7 @@ public class DiffTool extends BasicActivity {
      * @see Common#isValidDump(String[], boolean)
      * @see Common#isValidDumpErrorToast(int, android.content.Context)
      * @see Common#readFileLineByLine(File, boolean, android.content.Context)
-     * @see #convertDumpFormat(String[])
+     * @see Common#convertDumpFormat(String[])
      */
     private SparseArray<String[]> processChosenDump(Intent data) {
         String path = data.getStringExtra(
@@ -324,7 +324,7 @@ public class DiffTool extends BasicActivity {
             Common.isValidDumpErrorToast(err, this);
             return null;
         } else {
-            return convertDumpFormat(dump);
+            return Common.convertDumpFormat(dump);
         }
     }
 
@@ -345,34 +345,4 @@ public class DiffTool extends BasicActivity {
                 getString(R.string.action_open_dump_file));
         return intent;
     }
-
-    /**
-     * Convert the format of an dump.
-     * @param dump A dump in the same format a dump file is.
-     * (with no comments, not multiple dumps (appended) and validated by
-     * {@link Common#isValidDump(String[], boolean)})
-     * @return The dump in a key value pair format. The key is the sector
-     * number. The value is an String array. Each field of the array
-     * represents a block.
-     */
-    private static SparseArray<String[]> convertDumpFormat(String[] dump) {
-        SparseArray<String[]> ret = new SparseArray<>();
-        int i = 0;
-        int sector = 0;
-        for (String line : dump) {
-            if (line.startsWith("+")) {
-                String[] tmp = line.split(": ");
-                sector = Integer.parseInt(tmp[tmp.length-1]);
-                i = 0;
-                if (sector < 32) {
-                    ret.put(sector, new String[4]);
-                } else {
-                    ret.put(sector, new String[16]);
-                }
-            } else {
-                ret.get(sector)[i++] = line;
-            }
-        }
-        return ret;
-    }
 }
@@ -23,7 +23,10 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
+import android.nfc.TagLostException;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.InputType;
@@ -32,6 +35,7 @@ import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.UnderlineSpan;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -94,6 +98,13 @@ public class DumpEditor extends BasicActivity
     private static final String LOG_TAG =
             DumpEditor.class.getSimpleName();
 
+    /**
+     * Maximum number of read attempts per block when retrying the
+     * failed blocks of a dump.
+     * @see #retryFailedBlocks()
+     */
+    private static final int RETRY_ATTEMPTS = 4;
+
     private LinearLayout mLayout;
     private String mDumpName;
     private String mKeysName;
@@ -230,6 +241,10 @@ public class DumpEditor extends BasicActivity
         // Enable/Disable write dump function depending on NFC availability.
         menu.findItem(R.id.menuDumpEditorWriteDump).setEnabled(
                 !Common.useAsEditorOnly());
+        menu.findItem(R.id.menuDumpEditorRetryFailedBlocks).setEnabled(
+                !Common.useAsEditorOnly());
+        menu.findItem(R.id.menuDumpEditorRefreshValueBlocks).setEnabled(
+                !Common.useAsEditorOnly());
         return true;
     }
 
@@ -245,6 +260,8 @@ public class DumpEditor extends BasicActivity
      * @see #openBccTool()
      * @see #decodeDateOfManuf()
      * @see #writeDump()
+     * @see #retryFailedBlocks()
+     * @see #refreshValueBlocks()
      * @see #diffDump()
      * @see #saveKeys()
      */
@@ -282,6 +299,12 @@ public class DumpEditor extends BasicActivity
         } else if (itemId == R.id.menuDumpEditorWriteDump) {
             writeDump();
             return true;
+        } else if (itemId == R.id.menuDumpEditorRetryFailedBlocks) {
+            retryFailedBlocks();
+            return true;
+        } else if (itemId == R.id.menuDumpEditorRefreshValueBlocks) {
+            refreshValueBlocks();
+            return true;
         } else if (itemId == R.id.menuDumpEditorDiffDump) {
             diffDump();
             return true;
@@ -855,6 +878,187 @@ public class DumpEditor extends BasicActivity
         startActivity(intent);
     }
 
+    /**
+     * Read the blocks of the currently displayed dump again that could not
+     * be read before ({@link MCReader#NO_DATA}). Only these blocks are read
+     * (using the keys of the key map or of the dump). The recovered blocks
+     * are merged into the dump.
+     * @see MCReader#retryFailedBlocks(SparseArray, SparseArray, int)
+     */
+    private void retryFailedBlocks() {
+        int err = checkDumpAndUpdateLines();
+        if (err != 0) {
+            Common.isValidDumpErrorToast(err, this);
+            return;
+        }
+        final SparseArray<String[]> dump = Common.convertDumpFormat(mLines);
+        final int failedBlocks = MCReader.countFailedBlocks(dump);
+        if (failedBlocks == 0) {
+            Toast.makeText(this, R.string.info_no_failed_blocks,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final MCReader reader = createReaderForDump();
+        if (reader == null) {
+            return;
+        }
+        // Only use the key map if it was created for this tag.
+        SparseArray<byte[][]> tagKeyMap = null;
+        if (reader.getUID().equals(Common.bytes2Hex(Common.getUID()))) {
+            tagKeyMap = Common.getKeyMap();
+        }
+        final SparseArray<byte[][]> keyMap = tagKeyMap;
+        final AlertDialog warning = Common.showDontRemoveTagDialog(
+                R.string.dialog_wait_read_tag_title,
+                R.string.dialog_wait_read_tag, this);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            SparseArray<String[]> result = reader.retryFailedBlocks(
+                    dump, keyMap, RETRY_ATTEMPTS);
+            boolean interrupted = reader.isReadInterrupted();
+            reader.close();
+            handler.post(() -> {
+                warning.cancel();
+                int recovered = failedBlocks
+                        - MCReader.countFailedBlocks(result);
+                if (recovered > 0) {
+                    initEditor(Common.toDumpLines(result));
+                    mDumpChanged = true;
+                }
+                int info = interrupted
+                        ? R.string.info_retry_failed_blocks_interrupted
+                        : R.string.info_retry_failed_blocks;
+                Toast.makeText(this, getString(info, recovered,
+                        failedBlocks), Toast.LENGTH_LONG).show();
+            });
+        }).start();
+    }
+
+    /**
+     * Read the value blocks of the currently displayed dump again (and
+     * only them, not the whole sectors). This way, the changes of
+     * stored values (e.g. counters) can be followed without reading the
+     * whole tag. The keys of the dump are used. Sectors without known
+     * keys are resolved using the key map or the session keys.
+     * @see MCReader#readBlocks(int[], SparseArray)
+     */
+    private void refreshValueBlocks() {
+        int err = checkDumpAndUpdateLines();
+        if (err != 0) {
+            Common.isValidDumpErrorToast(err, this);
+            return;
+        }
+        final SparseArray<String[]> dump = Common.convertDumpFormat(mLines);
+        // Get value blocks (absolute block numbers) and keys of the dump.
+        ArrayList<Integer> valueBlocks = new ArrayList<>();
+        final SparseArray<byte[][]> keyMap = new SparseArray<>();
+        for (int i = 0; i < dump.size(); i++) {
+            int sector = dump.keyAt(i);
+            String[] blocks = dump.valueAt(i);
+            int firstBlock = MCReader.sectorToBlock(sector);
+            for (int j = 0; j < blocks.length - 1; j++) {
+                if (Common.isValueBlock(blocks[j])) {
+                    valueBlocks.add(firstBlock + j);
+                }
+            }
+            String trailer = blocks[blocks.length - 1];
+            byte[][] keys = new byte[2][];
+            if (!trailer.startsWith(MCReader.NO_KEY)) {
+                keys[0] = Common.hex2Bytes(trailer.substring(0, 12));
+            }
+            if (!trailer.endsWith(MCReader.NO_KEY)) {
+                keys[1] = Common.hex2Bytes(trailer.substring(20));
+            }
+            if (keys[0] != null || keys[1] != null) {
+                keyMap.put(sector, keys);
+            }
+        }
+        if (valueBlocks.isEmpty()) {
+            Toast.makeText(this, R.string.info_no_value_blocks,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final int[] blocks = new int[valueBlocks.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = valueBlocks.get(i);
+        }
+
+        final MCReader reader = createReaderForDump();
+        if (reader == null) {
+            return;
+        }
+        final AlertDialog warning = Common.showDontRemoveTagDialog(
+                R.string.dialog_wait_read_tag_title,
+                R.string.dialog_wait_read_tag, this);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            SparseArray<String> result = null;
+            try {
+                result = reader.readBlocks(blocks, keyMap);
+            } catch (TagLostException e) {
+                // Handled below (no result).
+            }
+            reader.close();
+            final SparseArray<String> finalResult = result;
+            handler.post(() -> {
+                warning.cancel();
+                if (finalResult == null) {
+                    Toast.makeText(this, R.string.info_no_tag_found,
+                            Toast.LENGTH_LONG).show();
+                    return;
+                }
+                // Update the value blocks of the dump.
+                int refreshed = 0;
+                boolean changed = false;
+                for (int i = 0; i < dump.size(); i++) {
+                    int sector = dump.keyAt(i);
+                    String[] sectorBlocks = dump.valueAt(i);
+                    int firstBlock = MCReader.sectorToBlock(sector);
+                    for (int j = 0; j < sectorBlocks.length - 1; j++) {
+                        String data = finalResult.get(firstBlock + j);
+                        if (data == null || data.equals(MCReader.NO_DATA)) {
+                            continue;
+                        }
+                        refreshed++;
+                        if (!data.equals(sectorBlocks[j])) {
+                            sectorBlocks[j] = data;
+                            changed = true;
+                        }
+                    }
+                }
+                if (changed) {
+                    initEditor(Common.toDumpLines(dump));
+                    mDumpChanged = true;
+                }
+                Toast.makeText(this, getString(
+                        R.string.info_value_blocks_refreshed, refreshed,
+                        blocks.length), Toast.LENGTH_LONG).show();
+            });
+        }).start();
+    }
+
+    /**
+     * Create a connected {@link MCReader} for the tag of the currently
+     * displayed dump. If the UID of the dump is known and the present tag
+     * has another UID, an error message will be displayed to the user.
+     * @return A connected {@link MCReader} or "null" if no tag (or not the
+     * tag of the dump) was present.
+     * @see Common#checkForTagAndCreateReader(Context)
+     */
+    private MCReader createReaderForDump() {
+        MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return null;
+        }
+        if (mUID != null && !mUID.equalsIgnoreCase(reader.getUID())) {
+            reader.close();
+            Toast.makeText(this, R.string.info_not_the_same_tag,
+                    Toast.LENGTH_LONG).show();
+            return null;
+        }
+        return reader;
+    }
+
     /**
      * Compare the currently displayed dump with another dump using
      * the {@link DiffTool}.
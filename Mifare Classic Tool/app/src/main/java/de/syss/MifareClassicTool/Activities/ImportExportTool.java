@@ -19,17 +19,24 @@
 package de.syss.MifareClassicTool.Activities;
 
 import android.annotation.SuppressLint;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.SparseArray;
 import android.view.ContextMenu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -41,16 +48,25 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import de.syss.MifareClassicTool.BinaryKeyDictionary;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.PartialKeySolver;
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyMapCache;
+import de.syss.MifareClassicTool.KeyRecovery;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
@@ -90,7 +106,10 @@ public class ImportExportTool extends BasicActivity {
         KEYS(".keys"),
         JSON(".json"),
         BIN(".bin"),
-        EML(".eml");
+        EML(".eml"),
+        MCTK(BinaryKeyDictionary.FILE_EXTENSION),
+        TRACE(".trace"),
+        PARTIAL_KEY(".nonces");
 
         private final String text;
 
@@ -184,6 +203,11 @@ public class ImportExportTool extends BasicActivity {
             inflater.inflate(R.menu.dump_file_types, menu);
         } else if(v.getId() == R.id.buttonImportExportToolImportKeys) {
             inflater.inflate(R.menu.keys_file_types, menu);
+            // Compiled key dictionaries can only be created (imported).
+            menu.findItem(R.id.menuKeysFileTypesMctk).setVisible(!mIsExport);
+            // Keys can be recovered from traces, but not the other way round.
+            menu.findItem(R.id.menuKeysFileTypesTrace).setVisible(!mIsExport);
+            menu.findItem(R.id.menuKeysFileTypesPartialKey).setVisible(!mIsExport);
         }
     }
 
@@ -207,6 +231,12 @@ public class ImportExportTool extends BasicActivity {
             mFileType = FileType.KEYS;
         } else if (id == R.id.menuKeysFileTypesBin) {
             mFileType = FileType.BIN;
+        } else if (id == R.id.menuKeysFileTypesMctk) {
+            mFileType = FileType.MCTK;
+        } else if (id == R.id.menuKeysFileTypesTrace) {
+            mFileType = FileType.TRACE;
+        } else if (id == R.id.menuKeysFileTypesPartialKey) {
+            mFileType = FileType.PARTIAL_KEY;
         } else {
             return super.onContextItemSelected(item);
         }
@@ -355,6 +385,16 @@ public class ImportExportTool extends BasicActivity {
      * @param files The file to read from.
      */
     private void readConvertAndSaveImportData(Uri[] files) {
+        if (mFileType == FileType.MCTK) {
+            compileKeyFiles(files);
+            return;
+        } else if (mFileType == FileType.TRACE) {
+            recoverKeysFromTraces(files);
+            return;
+        } else if (mFileType == FileType.PARTIAL_KEY) {
+            checkPartialKey(files[0]);
+            return;
+        }
         String[] content;
         for (Uri file : files) {
             try {
@@ -429,6 +469,237 @@ public class ImportExportTool extends BasicActivity {
         }
     }
 
+    /**
+     * Compile one or more key files (text) into one compiled key
+     * dictionary ({@link BinaryKeyDictionary}). The compiled dictionary
+     * is named after the first file and stored in {@link Common#KEYS_DIR}.
+     * This is done in a background thread, since the files might contain
+     * millions of keys.
+     * @param files The key files to compile.
+     * @see BinaryKeyDictionary#compile(InputStream[], File, File)
+     */
+    private void compileKeyFiles(Uri[] files) {
+        InputStream[] sources = new InputStream[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                sources[i] = getContentResolver().openInputStream(files[i]);
+            }
+        } catch (FileNotFoundException | SecurityException ex) {
+            Toast.makeText(this, R.string.info_error_reading_file,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        String fileName = Common.getFileName(files[0], this);
+        if (fileName.contains(".")) {
+            fileName = fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        final File destination = Common.getFile(Common.KEYS_DIR + "/"
+                + fileName + FileType.MCTK.toString());
+        final File tmpDir = Common.getFile(Common.TMP_DIR);
+        Toast.makeText(this, R.string.info_compiling_key_files,
+                Toast.LENGTH_SHORT).show();
+        final Context context = this;
+        new Thread(() -> {
+            int keyCount = BinaryKeyDictionary.compile(
+                    sources, destination, tmpDir);
+            runOnUiThread(() -> {
+                if (keyCount == -1) {
+                    Toast.makeText(context, R.string.info_save_error,
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(context, getString(
+                            R.string.info_key_files_compiled, keyCount),
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Recover the keys of sniffed authentications (see {@link KeyRecovery})
+     * and save them as key file named after the first trace file in
+     * {@link Common#KEYS_DIR}. Keys of traces with a known sector are
+     * also added to the {@link KeyMapCache} of the tag, so they will be
+     * tried first on the next mapping. The recovery is done in a
+     * background thread, using all cores (if supported by the
+     * Android version).
+     * @param files The trace files.
+     */
+    private void recoverKeysFromTraces(Uri[] files) {
+        ArrayList<String> lines = new ArrayList<>();
+        for (Uri file : files) {
+            String[] content = Common.readUriLineByLine(file, false, this);
+            if (content == null) {
+                Toast.makeText(this, R.string.info_error_reading_file,
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            lines.addAll(Arrays.asList(content));
+        }
+        final KeyRecovery.Trace[] traces = KeyRecovery.parseTraces(
+                lines.toArray(new String[0]));
+        if (traces.length == 0) {
+            Toast.makeText(this, R.string.info_no_traces,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        String fileName = Common.getFileName(files[0], this);
+        if (fileName.contains(".")) {
+            fileName = fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        final File destination = Common.getFile(Common.KEYS_DIR + "/"
+                + fileName + FileType.KEYS.toString());
+        final File keyMapCacheDir = Common.getFile(Common.KEY_MAP_CACHE_DIR);
+        Toast.makeText(this, getString(R.string.info_recovering_keys,
+                traces.length), Toast.LENGTH_LONG).show();
+        final Context context = this;
+        new Thread(() -> {
+            // Fork-join is only available since Android 5.0.
+            ForkJoinPool pool = null;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                pool = new ForkJoinPool();
+            }
+            long[] keys = KeyRecovery.recoverAll(traces, pool);
+            if (pool != null) {
+                pool.shutdown();
+            }
+            LinkedHashSet<String> keyFile = new LinkedHashSet<>();
+            KeyMapCache cache = new KeyMapCache(keyMapCacheDir);
+            for (int i = 0; i < traces.length; i++) {
+                if (keys[i] == KeyDictionary.INVALID_KEY) {
+                    continue;
+                }
+                keyFile.add(KeyDictionary.toHex(keys[i]));
+                if (traces[i].getSector() != KeyRecovery.UNKNOWN_SECTOR) {
+                    addToKeyMapCache(cache, traces[i], keys[i]);
+                }
+            }
+            boolean saved = keyFile.size() == 0 || Common.saveFile(
+                    destination, keyFile.toArray(new String[0]), false);
+            runOnUiThread(() -> {
+                if (!saved) {
+                    Toast.makeText(context, R.string.info_save_error,
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(context, getString(
+                            R.string.info_keys_recovered, keyFile.size(),
+                            traces.length), Toast.LENGTH_LONG).show();
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Check the keys that match a partially known key against captured
+     * nonces (see {@link PartialKeySolver}) and save the candidate keys
+     * as key file named after the capture
+     * in {@link Common#KEYS_DIR}. The progress and the estimated time left
+     * are shown in a dialog. If the solver is canceled, the candidates
+     * found until then will be saved.
+     * @param file The capture file.
+     */
+    private void checkPartialKey(Uri file) {
+        String[] content = Common.readUriLineByLine(file, false, this);
+        if (content == null) {
+            Toast.makeText(this, R.string.info_error_reading_file,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final PartialKeySolver.Capture capture =
+                PartialKeySolver.Capture.parse(content);
+        if (capture == null) {
+            Toast.makeText(this, R.string.info_invalid_nonce_capture,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (!capture.isSolvable()) {
+            Toast.makeText(this, getString(
+                    R.string.info_partial_key_too_large,
+                    (48 - PartialKeySolver.MAX_UNKNOWN_BITS) / 4),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        String fileName = Common.getFileName(file, this);
+        if (fileName.contains(".")) {
+            fileName = fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        final File destination = Common.getFile(Common.KEYS_DIR + "/"
+                + fileName + FileType.KEYS.toString());
+        final PartialKeySolver solver = new PartialKeySolver(capture,
+                Runtime.getRuntime().availableProcessors());
+
+        // Show progress.
+        LinearLayout ll = new LinearLayout(this);
+        ll.setOrientation(LinearLayout.VERTICAL);
+        int pad = Common.dpToPx(20);
+        ll.setPadding(pad, pad, pad, pad);
+        final ProgressBar progressBar = new ProgressBar(this, null,
+                android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(1000);
+        final TextView status = new TextView(this);
+        status.setText(getString(R.string.dialog_partial_key,
+                capture.getNonceCount(), capture.getKeySpace()));
+        ll.addView(progressBar);
+        ll.addView(status);
+        final AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_partial_key_title)
+                .setView(ll)
+                .setCancelable(false)
+                .setNegativeButton(R.string.action_cancel,
+                        (d, which) -> solver.cancel())
+                .show();
+
+        // Solve in new thread.
+        final Context context = this;
+        new Thread(() -> {
+            long[] keys = solver.solve((tested, total, eta) ->
+                    runOnUiThread(() -> {
+                        progressBar.setProgress((int) (tested * 1000 / total));
+                        status.setText(getString(
+                                R.string.text_partial_key_progress,
+                                tested, total, (eta < 0) ? "-"
+                                        : DateUtils.formatElapsedTime(
+                                                eta / 1000)));
+                    }));
+            boolean saved = keys.length == 0 || Common.saveFile(destination,
+                    PartialKeySolver.toKeyFile(capture, keys), false);
+            runOnUiThread(() -> {
+                if (dialog.isShowing() && !isFinishing()) {
+                    dialog.dismiss();
+                }
+                if (!saved) {
+                    Toast.makeText(context, R.string.info_save_error,
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(context, getString(
+                            R.string.info_candidate_keys_found, keys.length),
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Add a recovered key to the cached key map of the tag. The other key
+     * of the sector (if it is cached) will be kept.
+     * @param cache The key map cache.
+     * @param trace The trace (with a known sector).
+     * @param key The recovered key.
+     */
+    private static void addToKeyMapCache(KeyMapCache cache,
+            KeyRecovery.Trace trace, long key) {
+        String uid = Common.bytes2Hex(trace.getUid());
+        SparseArray<byte[][]> cached = cache.load(uid);
+        byte[][] keys = (cached != null) ? cached.get(trace.getSector()) : null;
+        if (keys == null) {
+            keys = new byte[2][];
+        }
+        keys[trace.isKeyB() ? 1 : 0] = KeyDictionary.toBytes(key);
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        keyMap.put(trace.getSector(), keys);
+        cache.save(uid, null, keyMap);
+    }
+
     /**
      * Export the file by reading, converting and showing the save to dialog.
      * The conversion is made by {@link #convertDump(String[], FileType, FileType)}.
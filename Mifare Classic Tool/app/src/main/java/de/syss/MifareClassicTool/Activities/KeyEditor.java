@@ -39,6 +39,7 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeySetCache;
 import de.syss.MifareClassicTool.R;
 
 /**
@@ -214,9 +215,12 @@ public class KeyEditor extends BasicActivity
      * Set the state of {@link #mKeysChanged} to false and close the
      * editor if {@link #mCloseAfterSuccessfulSave} is true (due to exiting
      * with unsaved changes) after a successful save process.
+     * Also drop the cached keys ({@link KeySetCache}).
      */
     @Override
     public void onSaveSuccessful() {
+        // The parsed keys of the old file content are outdated.
+        KeySetCache.invalidate();
         if (mCloseAfterSuccessfulSave) {
             finish();
         }
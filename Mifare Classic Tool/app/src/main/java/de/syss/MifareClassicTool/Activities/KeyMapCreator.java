@@ -48,9 +48,16 @@ import androidx.appcompat.widget.AppCompatEditText;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import de.syss.MifareClassicTool.Activities.Preferences.Preference;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyGenerator;
+import de.syss.MifareClassicTool.KeyGenerators;
+import de.syss.MifareClassicTool.KeyHitStatistics;
+import de.syss.MifareClassicTool.KeyPairIndex;
+import de.syss.MifareClassicTool.KeyMapCache;
+import de.syss.MifareClassicTool.KeySetCache;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
@@ -62,7 +69,9 @@ import de.syss.MifareClassicTool.R;
  * The result codes are:
  * <ul>
  * <li>{@link Activity#RESULT_OK} - Everything is O.K. The key map can be
- * retrieved by calling {@link Common#getKeyMap()}.</li>
+ * retrieved by calling {@link Common#getKeyMap()}. If
+ * {@link #EXTRA_READ_WHILE_MAPPING} was set, the read sectors can be
+ * retrieved by calling {@link Common#getRawDump()}.</li>
  * <li>1 - Directory from {@link #EXTRA_KEYS_DIR} does not
  * exist.</li>
  * <li>2 - No directory specified in Intent
@@ -101,6 +110,15 @@ public class KeyMapCreator extends BasicActivity {
      */
     public final static String EXTRA_SECTOR_CHOOSER_TO =
             "de.syss.MifareClassicTool.Activity.SECTOR_CHOOSER_TO";
+    /**
+     * A list of sectors for the key mapping process (e.g. "1, 8, 15").
+     * The sectors do not have to be contiguous. Optional. If present,
+     * {@link #EXTRA_SECTOR_CHOOSER_FROM} and
+     * {@link #EXTRA_SECTOR_CHOOSER_TO} are ignored.
+     * @see Common#parseSectors(String, int)
+     */
+    public final static String EXTRA_SECTOR_CHOOSER_SECTORS =
+            "de.syss.MifareClassicTool.Activity.SECTOR_CHOOSER_SECTORS";
     /**
      * The title of the activity. Optional.
      * e.g. "Map Keys to Sectors"
@@ -113,8 +131,26 @@ public class KeyMapCreator extends BasicActivity {
      */
     public final static String EXTRA_BUTTON_TEXT =
             "de.syss.MifareClassicTool.Activity.BUTTON_TEXT";
+    /**
+     * A boolean value to read the sectors while creating the key map
+     * (right after a successful authentication). Optional, default is
+     * false. The data can be retrieved by calling
+     * {@link Common#getRawDump()}.
+     */
+    public final static String EXTRA_READ_WHILE_MAPPING =
+            "de.syss.MifareClassicTool.Activity.READ_WHILE_MAPPING";
 
     // Output parameters.
+    /**
+     * Result code if the tag was lost (or another error occurred) while
+     * reading the sectors during the key mapping
+     * ({@link #EXTRA_READ_WHILE_MAPPING}). The keys found so far are set
+     * as key map ({@link Common#getKeyMap()}) and the sectors read so far
+     * as raw dump ({@link Common#getRawDump()}). The progress of the
+     * mapping is saved in the checkpoint, so a new key mapping of the
+     * same tag will continue from there.
+     */
+    public static final int RESULT_TAG_LOST = 5;
     // For later use.
 //    public final static String EXTRA_KEY_MAP =
 //            "de.syss.MifareClassicTool.Activity.KEY_MAP";
@@ -140,8 +176,8 @@ public class KeyMapCreator extends BasicActivity {
     private ProgressBar mProgressBar;
     private boolean mIsCreatingKeyMap;
     private File mKeyDirPath;
-    private int mFirstSector;
-    private int mLastSector;
+    private BitSet mSectors;
+    private MCReader mReader;
 
     /**
      * Set layout, set the mapping range
@@ -149,6 +185,7 @@ public class KeyMapCreator extends BasicActivity {
      * @see #EXTRA_SECTOR_CHOOSER
      * @see #EXTRA_SECTOR_CHOOSER_FROM
      * @see #EXTRA_SECTOR_CHOOSER_TO
+     * @see #EXTRA_SECTOR_CHOOSER_SECTORS
      */
     @SuppressLint("SetTextI18n")
     @Override
@@ -190,7 +227,19 @@ public class KeyMapCreator extends BasicActivity {
             to = "" + intent.getIntExtra(EXTRA_SECTOR_CHOOSER_TO, 15);
             custom = true;
         }
-        if (custom) {
+        String sectors = sharedPref.getString("default_mapping_sectors", "");
+        if (intent.hasExtra(EXTRA_SECTOR_CHOOSER_FROM)
+                || intent.hasExtra(EXTRA_SECTOR_CHOOSER_TO)) {
+            // Given values beat the default sectors.
+            sectors = "";
+        }
+        if (intent.hasExtra(EXTRA_SECTOR_CHOOSER_SECTORS)) {
+            sectors = intent.getStringExtra(EXTRA_SECTOR_CHOOSER_SECTORS);
+        }
+        BitSet sectorList = Common.parseSectors(sectors, MAX_SECTOR_COUNT - 1);
+        if (sectorList != null) {
+            mSectorRange.setText(Common.sectorsToString(sectorList));
+        } else if (custom) {
             if (from.equals("-1")) {
                 // from being "-1" means that the range should be set to "all".
                 mSectorRange.setText(getString(R.string.text_sector_range_all));
@@ -222,6 +271,9 @@ public class KeyMapCreator extends BasicActivity {
         // Don't stop key map building if auto reconnect option is enabled.
         if (!autoReconnect) {
             mIsCreatingKeyMap = false;
+            if (mReader != null) {
+                mReader.stopMapping();
+            }
         }
     }
 
@@ -262,6 +314,7 @@ public class KeyMapCreator extends BasicActivity {
         boolean selectLastUsedKeyFiles = Common.getPreferences().getBoolean(
                 Preference.SaveLastUsedKeyFiles.toString(), true);
         ArrayList<String> selectedFiles = null;
+        ArrayList<String> selectedGenerators = null;
         if (selectLastUsedKeyFiles) {
             SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
             // All previously selected key files are stored in one string
@@ -272,9 +325,17 @@ public class KeyMapCreator extends BasicActivity {
                 selectedFiles = new ArrayList<>(
                         Arrays.asList(selectedFilesChain.split("/")));
             }
+            // Same for the key generators (by their IDs).
+            String selectedGeneratorsChain = sharedPref.getString(
+                    "last_used_key_generators", null);
+            if (selectedGeneratorsChain != null) {
+                selectedGenerators = new ArrayList<>(
+                        Arrays.asList(selectedGeneratorsChain.split("/")));
+            }
         }
         mKeyFilesGroup.removeAllViews();
         File[] keyFiles = mKeyDirPath.listFiles();
+        ArrayList<File> preselectedFiles = new ArrayList<>();
         if (keyFiles != null) {
             Arrays.sort(keyFiles);
             for (File f : keyFiles) {
@@ -285,10 +346,27 @@ public class KeyMapCreator extends BasicActivity {
                         && selectedFiles.contains(f.getName())) {
                     // Select file.
                     c.setChecked(true);
+                    preselectedFiles.add(f);
                 }
                 mKeyFilesGroup.addView(c);
             }
         }
+        // List key generators (after the key files). Their keys are
+        // calculated on the fly for each tag and sector.
+        for (KeyGenerator generator : KeyGenerators.getAll()) {
+            AppCompatCheckBox c = new AppCompatCheckBox(this);
+            c.setText(getString(R.string.text_key_generator,
+                    generator.getId(), generator.getKeyCount()));
+            c.setTag(generator);
+            if (selectLastUsedKeyFiles && selectedGenerators != null
+                    && selectedGenerators.contains(generator.getId())) {
+                c.setChecked(true);
+            }
+            mKeyFilesGroup.addView(c);
+        }
+        // Parse the selected key files in the background, so the mapping
+        // can start right away.
+        KeySetCache.preload(preselectedFiles.toArray(new File[0]));
     }
 
     /**
@@ -331,6 +409,10 @@ public class KeyMapCreator extends BasicActivity {
     public void onCancelCreateKeyMap(View view) {
         if (mIsCreatingKeyMap) {
             mIsCreatingKeyMap = false;
+            if (mReader != null) {
+                // Stop right away, not only after the current sector.
+                mReader.stopMapping();
+            }
             mCancel.setEnabled(false);
         } else {
             finish();
@@ -354,15 +436,25 @@ public class KeyMapCreator extends BasicActivity {
         boolean saveLastUsedKeyFiles = Common.getPreferences().getBoolean(
                 Preference.SaveLastUsedKeyFiles.toString(), true);
         StringBuilder lastSelectedKeyFiles = new StringBuilder();
+        StringBuilder lastSelectedKeyGenerators = new StringBuilder();
         // Check for checked check boxes.
         ArrayList<String> fileNames = new ArrayList<>();
+        ArrayList<KeyGenerator> generators = new ArrayList<>();
         for (int i = 0; i < mKeyFilesGroup.getChildCount(); i++) {
             AppCompatCheckBox c = (AppCompatCheckBox) mKeyFilesGroup.getChildAt(i);
-            if (c.isChecked()) {
+            if (!c.isChecked()) {
+                continue;
+            }
+            if (c.getTag() instanceof KeyGenerator) {
+                KeyGenerator generator = (KeyGenerator) c.getTag();
+                generators.add(generator);
+                lastSelectedKeyGenerators.append(generator.getId());
+                lastSelectedKeyGenerators.append("/");
+            } else {
                 fileNames.add(c.getText().toString());
             }
         }
-        if (fileNames.size() > 0) {
+        if (fileNames.size() > 0 || generators.size() > 0) {
             // Check if key files still exists.
             ArrayList<File> keyFiles = new ArrayList<>();
             for (String fileName : fileNames) {
@@ -380,16 +472,17 @@ public class KeyMapCreator extends BasicActivity {
                             + "doesn't exists anymore.");
                 }
             }
-            if (keyFiles.size() > 0) {
-                // Save last selected key files as "/"-separated string
-                // (if corresponding setting is active).
+            if (keyFiles.size() > 0 || generators.size() > 0) {
+                // Save last selected key files and generators as
+                // "/"-separated strings (if corresponding setting is active).
                 if (saveLastUsedKeyFiles) {
                     SharedPreferences sharedPref = getPreferences(
                             Context.MODE_PRIVATE);
                     Editor e = sharedPref.edit();
                     e.putString("last_used_key_files",
-                            lastSelectedKeyFiles.substring(
-                                    0, lastSelectedKeyFiles.length() - 1));
+                            lastSelectedKeyFiles.toString());
+                    e.putString("last_used_key_generators",
+                            lastSelectedKeyGenerators.toString());
                     e.apply();
                 }
 
@@ -400,31 +493,35 @@ public class KeyMapCreator extends BasicActivity {
                 }
 
                 // Set key files.
-                File[] keys = keyFiles.toArray(new File[0]);
-                int numberOfLoadedKeys = reader.setKeyFile(keys, this);
-                if (numberOfLoadedKeys < 1) {
-                    // Error.
-                    reader.close();
-                    return;
+                int numberOfLoadedKeys = 0;
+                if (keyFiles.size() > 0) {
+                    File[] keys = keyFiles.toArray(new File[0]);
+                    numberOfLoadedKeys = reader.setKeyFile(keys, this);
+                    if (numberOfLoadedKeys < 1) {
+                        // Error.
+                        reader.close();
+                        return;
+                    }
                 }
+                // Set key generators. Their keys are tried first.
+                numberOfLoadedKeys += reader.setKeyGenerators(
+                        generators.toArray(new KeyGenerator[0]));
                 // Don't turn screen of while mapping.
                 getWindow().addFlags(
                         WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-                // Get key map range.
+                // Get key map range (or list of sectors).
                 if (mSectorRange.getText().toString().equals(
                         getString(R.string.text_sector_range_all))) {
                     // Read all.
-                    mFirstSector = 0;
-                    mLastSector = reader.getSectorCount()-1;
+                    mSectors = new BitSet();
+                    mSectors.set(0, reader.getSectorCount());
                 } else {
-                    String[] fromAndTo = mSectorRange.getText()
-                            .toString().split(" ");
-                    mFirstSector = Integer.parseInt(fromAndTo[0]);
-                    mLastSector = Integer.parseInt(fromAndTo[2]);
+                    mSectors = Common.parseSectors(
+                            mSectorRange.getText().toString(),
+                            MAX_SECTOR_COUNT - 1);
                 }
                 // Set map creation range.
-                if (!reader.setMappingRange(
-                        mFirstSector, mLastSector)) {
+                if (!reader.setMappingSectors(mSectors)) {
                     // Error.
                     Toast.makeText(this,
                             R.string.info_mapping_sector_out_of_range,
@@ -432,14 +529,82 @@ public class KeyMapCreator extends BasicActivity {
                     reader.close();
                     return;
                 }
-                Common.setKeyMapRange(mFirstSector, mLastSector);
+                Common.setKeyMapSectors(mSectors);
+                // Set the time budget (if corresponding setting is active).
+                long timeBudget = 0;
+                if (Common.getPreferences().getBoolean(
+                        Preference.UseMappingTimeBudget.toString(), false)) {
+                    timeBudget = Common.getPreferences().getInt(
+                            Preference.MappingTimeBudget.toString(), 30)
+                            * 1000L;
+                }
+                reader.setMappingTimeBudget(timeBudget);
+                // Read sectors while mapping?
+                Common.setRawDump(null);
+                reader.setReadWhileMapping(getIntent().getBooleanExtra(
+                        EXTRA_READ_WHILE_MAPPING, false), null);
+                // Try found keys on all other sectors right away
+                // (if corresponding setting is active).
+                reader.setKeyReuse(Common.getPreferences().getBoolean(
+                        Preference.UseKeyReuse.toString(), true));
+                // Try the keys of the last mapping of this tag first.
+                reader.setKeyMapCache(new KeyMapCache(
+                        Common.getFile(Common.KEY_MAP_CACHE_DIR)));
+                // Skip sectors that do not exist or are damaged
+                // (if corresponding setting is active).
+                reader.setDeadSectorDetection(Common.getPreferences()
+                        .getBoolean(Preference.UseDeadSectorDetection
+                                .toString(), false));
+                // Try the keys found most often in the past first
+                // (if corresponding setting is active).
+                if (Common.getPreferences().getBoolean(
+                        Preference.UseKeyHitStatistics.toString(), true)) {
+                    reader.setKeyHitStatistics(new KeyHitStatistics(
+                            Common.getFile(Common.KEY_HIT_STATISTICS_FILE)));
+                }
+                // Try the keys B that came with the found key A in the past
+                // (if corresponding setting is active).
+                if (Common.getPreferences().getBoolean(
+                        Preference.UseKeyPairIndex.toString(), true)) {
+                    reader.setKeyPairIndex(new KeyPairIndex(
+                            Common.getFile(Common.KEY_PAIR_INDEX_FILE),
+                            Common.getFile(Common.KEY_MAP_CACHE_DIR),
+                            Common.getFile(Common.DUMPS_DIR)));
+                }
+                // Try the first keys on all sectors before trying the
+                // rest of the keys (if corresponding setting is active).
+                int tierSize = 0;
+                if (Common.getPreferences().getBoolean(
+                        Preference.UseTieredMapping.toString(), false)) {
+                    tierSize = Common.getPreferences().getInt(
+                            Preference.TieredMappingSize.toString(), 256);
+                }
+                reader.setTieredMapping(tierSize);
+                // Resume an interrupted mapping of this tag (if there is
+                // a checkpoint with the same range and keys).
+                int resumeSector = reader.setMappingCheckpoint(
+                        Common.getFile(Common.KEY_MAP_CHECKPOINT_FILE));
+                mReader = reader;
                 // Init. GUI elements.
                 mProgressStatus = -1;
-                mProgressBar.setMax((mLastSector-mFirstSector)+1);
+                int progressMax = mSectors.cardinality();
+                if (tierSize > 0) {
+                    progressMax *= 2;
+                }
+                mProgressBar.setMax(progressMax);
                 mCreateKeyMap.setEnabled(false);
                 mIsCreatingKeyMap = true;
-                String message = numberOfLoadedKeys + " " + getString(
-                        R.string.info_keys_loaded_please_wait);
+                String message;
+                if (resumeSector != -1) {
+                    mProgressStatus = resumeSector - 1;
+                    mProgressBar.setProgress(
+                            mSectors.get(0, resumeSector).cardinality());
+                    message = getString(R.string.info_resume_key_mapping,
+                            resumeSector);
+                } else {
+                    message = numberOfLoadedKeys + " " + getString(
+                            R.string.info_keys_loaded_please_wait);
+                }
                 Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
                 // Read as much as possible with given key file.
                 createKeyMap(reader, this);
@@ -465,15 +630,24 @@ public class KeyMapCreator extends BasicActivity {
     private void createKeyMap(final MCReader reader, final Context context) {
         new Thread(() -> {
             // Build key map parts and update the progress bar.
-            while (mProgressStatus < mLastSector) {
+            int range = mSectors.cardinality();
+            while (true) {
                 mProgressStatus = reader.buildNextKeyMapPart();
-                if (mProgressStatus == -1 || !mIsCreatingKeyMap) {
-                    // Error while building next key map part.
+                if (mProgressStatus < 0 || !mIsCreatingKeyMap) {
+                    // Error while building next key map part,
+                    // time budget exceeded or canceled by the user.
                     break;
                 }
 
-                mHandler.post(() -> mProgressBar.setProgress(
-                        (mProgressStatus - mFirstSector) + 1));
+                // The second pass of the tiered mapping fills the second
+                // half of the progress bar.
+                int pass = Math.max(reader.getMappingPass(), 1);
+                final int progress = (pass - 1) * range
+                        + mSectors.get(0, mProgressStatus + 1).cardinality();
+                mHandler.post(() -> mProgressBar.setProgress(progress));
+                if (reader.isMappingFinished()) {
+                    break;
+                }
             }
 
             mHandler.post(() -> {
@@ -482,9 +656,27 @@ public class KeyMapCreator extends BasicActivity {
                 mProgressBar.setProgress(0);
                 mCreateKeyMap.setEnabled(true);
                 reader.close();
+                mReader = null;
                 if (mIsCreatingKeyMap && mProgressStatus != -1) {
+                    if (mProgressStatus == -2) {
+                        // Time budget exceeded. Use the partial key map.
+                        Toast.makeText(context,
+                                R.string.info_mapping_time_budget_exceeded,
+                                Toast.LENGTH_LONG).show();
+                    }
                     // Finished creating the key map.
                     keyMapCreated(reader);
+                } else if (mIsCreatingKeyMap && mProgressStatus == -1
+                        && getIntent().getBooleanExtra(
+                                EXTRA_READ_WHILE_MAPPING, false)
+                        && reader.getInterruptedKeyMap() != null
+                        && reader.getInterruptedKeyMap().size() > 0) {
+                    // Tag lost while reading. Keep what was found and
+                    // read so far.
+                    Common.setKeyMap(reader.getInterruptedKeyMap());
+                    Common.setRawDump(reader.getReadSectors());
+                    setResult(RESULT_TAG_LOST);
+                    finish();
                 } else if (mIsCreatingKeyMap && mProgressStatus == -1 ){
                     // Error during key map creation.
                     Common.setKeyMap(null);
@@ -522,6 +714,20 @@ public class KeyMapCreator extends BasicActivity {
                     Toast.LENGTH_LONG).show();
         } else {
             Common.setKeyMap(reader.getKeyMap());
+            if (getIntent().getBooleanExtra(EXTRA_READ_WHILE_MAPPING, false)) {
+                Common.setRawDump(reader.getReadSectors());
+            }
+            // Show how the sectors were resolved.
+            String message = getString(R.string.info_key_map_stats,
+                    reader.getSectorsResolvedByCache(),
+                    reader.getSectorsResolvedByReuse(),
+                    reader.getSectorsResolvedByDictionary());
+            int deadSectors = reader.getDeadSectors().length;
+            if (deadSectors > 0) {
+                message += "\n" + getString(R.string.info_dead_sectors_skipped,
+                        deadSectors);
+            }
+            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
 //            Intent intent = new Intent();
 //            intent.putExtra(EXTRA_KEY_MAP, mMCReader);
 //            setResult(Activity.RESULT_OK, intent);
@@ -532,9 +738,11 @@ public class KeyMapCreator extends BasicActivity {
     }
 
     /**
-     * Show a dialog which lets the user choose the key mapping range.
+     * Show a dialog which lets the user choose the key mapping range
+     * or a list of sectors (which do not have to be contiguous).
      * If intended, save the mapping range as default
-     * (using {@link #saveMappingRange(String, String)}).
+     * (using {@link #saveMappingRange(String, String)} or
+     * {@link #saveMappingSectors(String)}).
      * @param view The View object that triggered the method
      * (in this case the change button).
      */
@@ -582,11 +790,27 @@ public class KeyMapCreator extends BasicActivity {
         to.setFilters(f);
         to.setGravity(Gravity.CENTER_HORIZONTAL);
 
+        LinearLayout llSectors = new LinearLayout(this);
+        llSectors.setGravity(Gravity.CENTER);
+        TextView tvSectors = new TextView(this);
+        tvSectors.setText(getString(R.string.text_sectors) + ": ");
+        tvSectors.setTextSize(18);
+        tvSectors.setTextColor(saveAsDefault.getCurrentTextColor());
+        final AppCompatEditText sectors = new AppCompatEditText(this);
+        sectors.setEllipsize(TruncateAt.END);
+        sectors.setMaxLines(1);
+        sectors.setSingleLine();
+        sectors.setInputType(InputType.TYPE_CLASS_TEXT);
+        sectors.setHint(R.string.hint_sector_list);
+
         ll.addView(tvFrom);
         ll.addView(from);
         ll.addView(tvTo);
         ll.addView(to);
+        llSectors.addView(tvSectors);
+        llSectors.addView(sectors);
         llv.addView(ll);
+        llv.addView(llSectors);
         llv.addView(saveAsDefault);
         final Toast err = Toast.makeText(this,
                 R.string.info_invalid_range, Toast.LENGTH_LONG);
@@ -597,6 +821,24 @@ public class KeyMapCreator extends BasicActivity {
             .setView(llv)
             .setPositiveButton(R.string.action_ok,
                     (dialog, whichButton) -> {
+                        // Read only the listed sectors.
+                        String txtSectors = sectors.getText().toString();
+                        if (!txtSectors.trim().equals("")) {
+                            BitSet sectorList = Common.parseSectors(
+                                    txtSectors, MAX_SECTOR_COUNT - 1);
+                            if (sectorList == null) {
+                                // Error.
+                                err.show();
+                                return;
+                            }
+                            txtSectors = Common.sectorsToString(sectorList);
+                            mSectorRange.setText(txtSectors);
+                            if (saveAsDefault.isChecked()) {
+                                // Save as default.
+                                saveMappingSectors(txtSectors);
+                            }
+                            return;
+                        }
                         // Read from x to y.
                         String txtFrom = "" + DEFAULT_SECTOR_RANGE_FROM;
                         String txtTo = "" + DEFAULT_SECTOR_RANGE_TO;
@@ -657,6 +899,20 @@ public class KeyMapCreator extends BasicActivity {
         Editor sharedEditor = sharedPref.edit();
         sharedEditor.putString("default_mapping_range_from", from);
         sharedEditor.putString("default_mapping_range_to", to);
+        sharedEditor.remove("default_mapping_sectors");
+        sharedEditor.apply();
+    }
+
+    /**
+     * Helper method to save a list of sectors as default mapping range.
+     * @param sectors The list of sectors (e.g. "1, 8, 12 - 15").
+     */
+    private void saveMappingSectors(String sectors) {
+        SharedPreferences sharedPref = getPreferences(Context.MODE_PRIVATE);
+        Editor sharedEditor = sharedPref.edit();
+        sharedEditor.putString("default_mapping_range_from", "");
+        sharedEditor.putString("default_mapping_range_to", "");
+        sharedEditor.putString("default_mapping_sectors", sectors);
         sharedEditor.apply();
     }
 }
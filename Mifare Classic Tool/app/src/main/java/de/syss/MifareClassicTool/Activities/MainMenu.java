@@ -57,8 +57,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
+import de.syss.MifareClassicTool.BinaryKeyDictionary;
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeySetCache;
 import de.syss.MifareClassicTool.R;
 
 
@@ -967,17 +970,36 @@ public class MainMenu extends AppCompatActivity {
     /**
      * Copy the standard key files ({@link Common#STD_KEYS} and
      * {@link Common#STD_KEYS_EXTENDED}) form assets to {@link Common#KEYS_DIR}.
+     * Their compiled versions (created at build time) are copied to
+     * {@link Common#STD_KEYS_COMPILED_DIR} after the key files, so they
+     * are never older than the key files they were compiled from.
+     * (Compiled versions older than their key files are ignored, see
+     * {@link KeySetCache}.)
      * @see Common#KEYS_DIR
      * @see Common#HOME_DIR
      * @see Common#copyFile(InputStream, OutputStream)
      */
     private void copyStdKeysFiles() {
         AssetManager assetManager = getAssets();
+        File compiledDir = Common.getFile(Common.STD_KEYS_COMPILED_DIR);
+        if (!compiledDir.exists() && !compiledDir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating '" + Common.HOME_DIR
+                    + "/" + Common.STD_KEYS_COMPILED_DIR + "' directory.");
+        }
         try {
-            for (String file : assetManager.list(Common.KEYS_DIR)) {
+            String[] files = assetManager.list(Common.KEYS_DIR);
+            // Copy the key files first and the compiled versions last.
+            Arrays.sort(files, (a, b) -> Boolean.compare(
+                    a.endsWith(BinaryKeyDictionary.FILE_EXTENSION),
+                    b.endsWith(BinaryKeyDictionary.FILE_EXTENSION)));
+            for (String file : files) {
                 String filePath = Common.KEYS_DIR + "/" + file;
+                File dest = Common.getFile(filePath);
+                if (file.endsWith(BinaryKeyDictionary.FILE_EXTENSION)) {
+                    dest = new File(compiledDir, file);
+                }
                 InputStream in = assetManager.open(filePath);
-                OutputStream out = new FileOutputStream(Common.getFile(filePath));
+                OutputStream out = new FileOutputStream(dest);
                 Common.copyFile(in, out);
                 in.close();
                 out.flush();
@@ -38,10 +38,13 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatDelegate;
 import androidx.core.os.LocaleListCompat;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.KeyHitStatistics;
+import de.syss.MifareClassicTool.KeyPairIndex;
 import de.syss.MifareClassicTool.R;
 
 /**
@@ -62,8 +65,18 @@ public class Preferences extends BasicActivity {
         SaveLastUsedKeyFiles("save_last_used_key_files"),
         UseCustomSectorCount("use_custom_sector_count"),
         CustomSectorCount("custom_sector_count"),
+        AutoDetectSectorCount("auto_detect_sector_count"),
         UseRetryAuthentication("use_retry_authentication"),
         RetryAuthenticationCount("retry_authentication_count"),
+        UseMappingTimeBudget("use_mapping_time_budget"),
+        MappingTimeBudget("mapping_time_budget"),
+        UseKeyReuse("use_key_reuse"),
+        UseTieredMapping("use_tiered_mapping"),
+        TieredMappingSize("tiered_mapping_size"),
+        UseKeyHitStatistics("use_key_hit_statistics"),
+        UseKeyPairIndex("use_key_pair_index"),
+        UseDeadSectorDetection("use_dead_sector_detection"),
+        UseReadWhileMapping("use_read_while_mapping"),
         CustomAppLanguage("custom_app_language"),
         CustomAppTheme("custom_app_theme");
         // Add more preferences here (comma separated).
@@ -84,11 +97,21 @@ public class Preferences extends BasicActivity {
     private CheckBox mPrefAutoReconnect;
     private CheckBox mPrefAutoCopyUID;
     private CheckBox mPrefSaveLastUsedKeyFiles;
+    private CheckBox mPrefUseKeyReuse;
+    private CheckBox mPrefUseKeyHitStatistics;
+    private CheckBox mPrefUseKeyPairIndex;
+    private CheckBox mPrefUseDeadSectorDetection;
+    private CheckBox mPrefUseReadWhileMapping;
     private CheckBox mUseCustomSectorCount;
+    private CheckBox mPrefAutoDetectSectorCount;
     private CheckBox mUseRetryAuthentication;
+    private CheckBox mUseMappingTimeBudget;
+    private CheckBox mUseTieredMapping;
     private CheckBox mPrefAutostartIfCardDetected;
     private EditText mCustomSectorCount;
     private EditText mRetryAuthenticationCount;
+    private EditText mMappingTimeBudget;
+    private EditText mTieredMappingSize;
     private RadioGroup mUIDFormatRadioGroup;
     private Spinner mLangauge;
     private Spinner mTheme;
@@ -116,16 +139,36 @@ public class Preferences extends BasicActivity {
                 R.id.checkBoxPreferencesCopyUID);
         mPrefSaveLastUsedKeyFiles = findViewById(
                 R.id.checkBoxPreferencesSaveLastUsedKeyFiles);
+        mPrefUseKeyReuse = findViewById(
+                R.id.checkBoxPreferencesUseKeyReuse);
+        mPrefUseKeyHitStatistics = findViewById(
+                R.id.checkBoxPreferencesUseKeyHitStatistics);
+        mPrefUseKeyPairIndex = findViewById(
+                R.id.checkBoxPreferencesUseKeyPairIndex);
+        mPrefUseDeadSectorDetection = findViewById(
+                R.id.checkBoxPreferencesUseDeadSectorDetection);
+        mPrefUseReadWhileMapping = findViewById(
+                R.id.checkBoxPreferencesUseReadWhileMapping);
         mUseCustomSectorCount = findViewById(
                 R.id.checkBoxPreferencesUseCustomSectorCount);
         mCustomSectorCount = findViewById(
                 R.id.editTextPreferencesCustomSectorCount);
+        mPrefAutoDetectSectorCount = findViewById(
+                R.id.checkBoxPreferencesAutoDetectSectorCount);
         mPrefAutostartIfCardDetected = findViewById(
                 R.id.checkBoxPreferencesAutostartIfCardDetected);
         mUseRetryAuthentication = findViewById(
                 R.id.checkBoxPreferencesUseRetryAuthentication);
         mRetryAuthenticationCount = findViewById(
                 R.id.editTextPreferencesRetryAuthenticationCount);
+        mUseMappingTimeBudget = findViewById(
+                R.id.checkBoxPreferencesUseMappingTimeBudget);
+        mMappingTimeBudget = findViewById(
+                R.id.editTextPreferencesMappingTimeBudget);
+        mUseTieredMapping = findViewById(
+                R.id.checkBoxPreferencesUseTieredMapping);
+        mTieredMappingSize = findViewById(
+                R.id.editTextPreferencesTieredMappingSize);
         mLangauge = findViewById(R.id.spinnerPreferencesLanguage);
         mTheme = findViewById(R.id.spinnerPreferencesTheme);
 
@@ -138,17 +181,39 @@ public class Preferences extends BasicActivity {
         setUIDFormatBySequence(pref.getInt(Preference.UIDFormat.toString(),0));
         mPrefSaveLastUsedKeyFiles.setChecked(pref.getBoolean(
                 Preference.SaveLastUsedKeyFiles.toString(), true));
+        mPrefUseKeyReuse.setChecked(pref.getBoolean(
+                Preference.UseKeyReuse.toString(), true));
+        mPrefUseKeyHitStatistics.setChecked(pref.getBoolean(
+                Preference.UseKeyHitStatistics.toString(), true));
+        mPrefUseKeyPairIndex.setChecked(pref.getBoolean(
+                Preference.UseKeyPairIndex.toString(), true));
+        mPrefUseDeadSectorDetection.setChecked(pref.getBoolean(
+                Preference.UseDeadSectorDetection.toString(), false));
+        mPrefUseReadWhileMapping.setChecked(pref.getBoolean(
+                Preference.UseReadWhileMapping.toString(), false));
         mUseCustomSectorCount.setChecked(pref.getBoolean(
                 Preference.UseCustomSectorCount.toString(), false));
         mCustomSectorCount.setEnabled(mUseCustomSectorCount.isChecked());
         mCustomSectorCount.setText("" + pref.getInt(
                 Preference.CustomSectorCount.toString(), 16));
+        mPrefAutoDetectSectorCount.setChecked(pref.getBoolean(
+                Preference.AutoDetectSectorCount.toString(), false));
         mUseRetryAuthentication.setChecked(pref.getBoolean(
                 Preference.UseRetryAuthentication.toString(), false));
         mRetryAuthenticationCount.setEnabled(
                 mUseRetryAuthentication.isChecked());
         mRetryAuthenticationCount.setText("" + pref.getInt(
                 Preference.RetryAuthenticationCount.toString(), 1));
+        mUseMappingTimeBudget.setChecked(pref.getBoolean(
+                Preference.UseMappingTimeBudget.toString(), false));
+        mMappingTimeBudget.setEnabled(mUseMappingTimeBudget.isChecked());
+        mMappingTimeBudget.setText("" + pref.getInt(
+                Preference.MappingTimeBudget.toString(), 30));
+        mUseTieredMapping.setChecked(pref.getBoolean(
+                Preference.UseTieredMapping.toString(), false));
+        mTieredMappingSize.setEnabled(mUseTieredMapping.isChecked());
+        mTieredMappingSize.setText("" + pref.getInt(
+                Preference.TieredMappingSize.toString(), 256));
         detectAutostartIfCardDetectedState();
         getLanguageAndUpdateChooser();
         getThemeAndUpdateChooser();
@@ -304,6 +369,26 @@ public class Preferences extends BasicActivity {
                 mUseRetryAuthentication.isChecked());
     }
 
+    /**
+     * Enable or disable the mapping time budget text box according
+     * to the checkbox state.
+     * @param view The View object that triggered the method
+     * (in this case the use mapping time budget checkbox).
+     */
+    public void onUseMappingTimeBudgetChanged(View view) {
+        mMappingTimeBudget.setEnabled(mUseMappingTimeBudget.isChecked());
+    }
+
+    /**
+     * Enable or disable the tiered mapping size text box according
+     * to the checkbox state.
+     * @param view The View object that triggered the method
+     * (in this case the use tiered mapping checkbox).
+     */
+    public void onUseTieredMappingChanged(View view) {
+        mTieredMappingSize.setEnabled(mUseTieredMapping.isChecked());
+    }
+
 
     /**
      * Show information on the "use custom sector count" preference.
@@ -321,6 +406,22 @@ public class Preferences extends BasicActivity {
                     }).show();
     }
 
+    /**
+     * Show information on the "auto detect sector count" preference.
+     * @param view The View object that triggered the method
+     * (in this case the info on auto detect sector count button).
+     */
+    public void onShowAutoDetectSectorCountInfo(View view) {
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.dialog_auto_detect_sector_count_title)
+            .setMessage(R.string.dialog_auto_detect_sector_count)
+            .setIcon(android.R.drawable.ic_dialog_info)
+            .setPositiveButton(R.string.action_ok,
+                    (dialog, which) -> {
+                        // Do nothing.
+                    }).show();
+    }
+
     /**
      * Show information on the "retry authentication" preference.
      * @param view The View object that triggered the method
@@ -337,6 +438,116 @@ public class Preferences extends BasicActivity {
                         }).show();
     }
 
+    /**
+     * Show information on the "mapping time budget" preference.
+     * @param view The View object that triggered the method
+     * (in this case the info on mapping time budget button).
+     */
+    public void onShowMappingTimeBudgetInfo(View view) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_mapping_time_budget_title)
+                .setMessage(R.string.dialog_mapping_time_budget)
+                .setIcon(android.R.drawable.ic_dialog_info)
+                .setPositiveButton(R.string.action_ok,
+                        (dialog, which) -> {
+                            // Do nothing.
+                        }).show();
+    }
+
+    /**
+     * Show information on the "tiered mapping" preference.
+     * @param view The View object that triggered the method
+     * (in this case the info on tiered mapping button).
+     */
+    public void onShowTieredMappingInfo(View view) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_tiered_mapping_title)
+                .setMessage(R.string.dialog_tiered_mapping)
+                .setIcon(android.R.drawable.ic_dialog_info)
+                .setPositiveButton(R.string.action_ok,
+                        (dialog, which) -> {
+                            // Do nothing.
+                        }).show();
+    }
+
+    /**
+     * Show information on the "key hit statistics" preference. The
+     * dialog also offers to reset or export (share) the statistics.
+     * @param view The View object that triggered the method
+     * (in this case the info on key hit statistics button).
+     * @see KeyHitStatistics
+     */
+    public void onShowKeyHitStatisticsInfo(View view) {
+        KeyHitStatistics statistics = new KeyHitStatistics(
+                Common.getFile(Common.KEY_HIT_STATISTICS_FILE));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_key_hit_statistics_title)
+                .setMessage(R.string.dialog_key_hit_statistics)
+                .setIcon(android.R.drawable.ic_dialog_info)
+                .setPositiveButton(R.string.action_ok,
+                        (dialog, which) -> {
+                            // Do nothing.
+                        })
+                .setNegativeButton(R.string.action_reset_statistics,
+                        (dialog, which) -> {
+                            statistics.reset();
+                            Toast.makeText(this,
+                                    R.string.info_key_hit_statistics_reset,
+                                    Toast.LENGTH_SHORT).show();
+                        })
+                .setNeutralButton(R.string.action_export_statistics,
+                        (dialog, which) -> {
+                            if (statistics.isEmpty()) {
+                                Toast.makeText(this,
+                                        R.string.info_no_key_hit_statistics,
+                                        Toast.LENGTH_LONG).show();
+                                return;
+                            }
+                            File file = Common.getFile(Common.TMP_DIR
+                                    + "/key-hit-statistics.csv");
+                            if (!statistics.export(file)) {
+                                Toast.makeText(this, R.string.info_save_error,
+                                        Toast.LENGTH_LONG).show();
+                                return;
+                            }
+                            Common.shareTextFile(this, file);
+                        }).show();
+    }
+
+    /**
+     * Show information on the "key pair index" preference. The
+     * dialog also offers to rebuild the index from the key map cache
+     * and the dumps.
+     * @param view The View object that triggered the method
+     * (in this case the info on key pair index button).
+     * @see KeyPairIndex
+     */
+    public void onShowKeyPairIndexInfo(View view) {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_key_pair_index_title)
+                .setMessage(R.string.dialog_key_pair_index)
+                .setIcon(android.R.drawable.ic_dialog_info)
+                .setPositiveButton(R.string.action_ok,
+                        (dialog, which) -> {
+                            // Do nothing.
+                        })
+                .setNeutralButton(R.string.action_rebuild_index,
+                        (dialog, which) -> {
+                            KeyPairIndex index = new KeyPairIndex(
+                                    Common.getFile(Common.KEY_PAIR_INDEX_FILE),
+                                    Common.getFile(Common.KEY_MAP_CACHE_DIR),
+                                    Common.getFile(Common.DUMPS_DIR));
+                            if (!index.rebuild()) {
+                                Toast.makeText(this, R.string.info_save_error,
+                                        Toast.LENGTH_LONG).show();
+                                return;
+                            }
+                            Toast.makeText(this, getString(
+                                    R.string.info_key_pair_index_rebuilt,
+                                    index.size()), Toast.LENGTH_SHORT).show();
+                        }).show();
+    }
+
     /**
      * Save the preferences (to the application context,
      * {@link Common#getPreferences()}).
@@ -383,6 +594,47 @@ public class Preferences extends BasicActivity {
             }
         }
 
+        error = false;
+        int mappingTimeBudget = 30;
+        if (mUseMappingTimeBudget.isChecked()) {
+            try {
+                mappingTimeBudget = Integer.parseInt(
+                        mMappingTimeBudget.getText().toString());
+            } catch (NumberFormatException ex) {
+                error = true;
+            }
+            if (!error && mappingTimeBudget > 3600 || mappingTimeBudget <= 0) {
+                error = true;
+            }
+            if (error) {
+                Toast.makeText(this,
+                        R.string.info_mapping_time_budget_error,
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+        }
+
+        error = false;
+        int tieredMappingSize = 256;
+        if (mUseTieredMapping.isChecked()) {
+            try {
+                tieredMappingSize = Integer.parseInt(
+                        mTieredMappingSize.getText().toString());
+            } catch (NumberFormatException ex) {
+                error = true;
+            }
+            if (!error && tieredMappingSize > 100000
+                    || tieredMappingSize <= 0) {
+                error = true;
+            }
+            if (error) {
+                Toast.makeText(this,
+                        R.string.info_tiered_mapping_size_error,
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+        }
+
         // Save preferences.
         SharedPreferences.Editor edit = Common.getPreferences().edit();
         edit.putBoolean(Preference.AutoReconnect.toString(),
@@ -392,14 +644,34 @@ public class Preferences extends BasicActivity {
         edit.putInt(Preference.UIDFormat.toString(),getUIDFormatSequence());
         edit.putBoolean(Preference.SaveLastUsedKeyFiles.toString(),
                 mPrefSaveLastUsedKeyFiles.isChecked());
+        edit.putBoolean(Preference.UseKeyReuse.toString(),
+                mPrefUseKeyReuse.isChecked());
+        edit.putBoolean(Preference.UseKeyHitStatistics.toString(),
+                mPrefUseKeyHitStatistics.isChecked());
+        edit.putBoolean(Preference.UseKeyPairIndex.toString(),
+                mPrefUseKeyPairIndex.isChecked());
+        edit.putBoolean(Preference.UseDeadSectorDetection.toString(),
+                mPrefUseDeadSectorDetection.isChecked());
+        edit.putBoolean(Preference.UseReadWhileMapping.toString(),
+                mPrefUseReadWhileMapping.isChecked());
         edit.putBoolean(Preference.UseCustomSectorCount.toString(),
                 mUseCustomSectorCount.isChecked());
         edit.putBoolean(Preference.UseRetryAuthentication.toString(),
                 mUseRetryAuthentication.isChecked());
         edit.putInt(Preference.CustomSectorCount.toString(),
                 customSectorCount);
+        edit.putBoolean(Preference.AutoDetectSectorCount.toString(),
+                mPrefAutoDetectSectorCount.isChecked());
         edit.putInt(Preference.RetryAuthenticationCount.toString(),
                 retryAuthenticationCount);
+        edit.putBoolean(Preference.UseMappingTimeBudget.toString(),
+                mUseMappingTimeBudget.isChecked());
+        edit.putInt(Preference.MappingTimeBudget.toString(),
+                mappingTimeBudget);
+        edit.putBoolean(Preference.UseTieredMapping.toString(),
+                mUseTieredMapping.isChecked());
+        edit.putInt(Preference.TieredMappingSize.toString(),
+                tieredMappingSize);
         edit.putInt(Preference.CustomAppLanguage.toString(),
                 (int)mLangauge.getSelectedItemId());
         edit.putInt(Preference.CustomAppTheme.toString(),
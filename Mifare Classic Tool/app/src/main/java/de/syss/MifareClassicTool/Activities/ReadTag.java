@@ -19,6 +19,7 @@
 package de.syss.MifareClassicTool.Activities;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
@@ -26,11 +27,11 @@ import android.os.Looper;
 import android.util.SparseArray;
 import android.widget.Toast;
 
-import androidx.appcompat.app.AppCompatActivity;
-
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 
+import de.syss.MifareClassicTool.Activities.Preferences.Preference;
 import de.syss.MifareClassicTool.Common;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
@@ -38,15 +39,24 @@ import de.syss.MifareClassicTool.R;
 
 /**
  * Create a key map with the {@link KeyMapCreator} and then
- * read the tag.
+ * read the tag. If enabled in the preferences
+ * ({@link Preference#UseReadWhileMapping}), the sectors are read by the
+ * {@link KeyMapCreator} right after they were authenticated during the
+ * key mapping ({@link KeyMapCreator#EXTRA_READ_WHILE_MAPPING}).
+ * If the tag is lost while reading (during or after the key mapping), the
+ * sectors read so far are kept and the reading (or the key mapping)
+ * continues once the same tag is scanned again.
  * @author Gerhard Klostermeier
  */
-public class ReadTag extends AppCompatActivity {
+public class ReadTag extends BasicActivity {
 
     private final static int KEY_MAP_CREATOR = 1;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private SparseArray<String[]> mRawDump;
+    private String mResumeUID;
+    private boolean mResumeMapping = false;
+    private AlertDialog mTagLostDialog;
 
     /**
      * Show the {@link KeyMapCreator}.
@@ -55,26 +65,49 @@ public class ReadTag extends AppCompatActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_read_tag);
+        startKeyMapCreator();
+    }
 
+    /**
+     * Start the {@link KeyMapCreator} which maps the keys (and reads the
+     * sectors at the same time, see {@link Preference#UseReadWhileMapping}).
+     */
+    private void startKeyMapCreator() {
         Intent intent = new Intent(this, KeyMapCreator.class);
         intent.putExtra(KeyMapCreator.EXTRA_KEYS_DIR,
                 Common.getFile(Common.KEYS_DIR).getAbsolutePath());
         intent.putExtra(KeyMapCreator.EXTRA_BUTTON_TEXT,
                 getString(R.string.action_create_key_map_and_read));
+        intent.putExtra(KeyMapCreator.EXTRA_READ_WHILE_MAPPING,
+                Common.getPreferences().getBoolean(
+                        Preference.UseReadWhileMapping.toString(), false));
         startActivityForResult(intent, KEY_MAP_CREATOR);
     }
 
     /**
      * Checks the result code of the key mapping process. If the process
-     * was successful the {@link #readTag()}
-     * method will be called.
+     * was successful the tag dump will be created from the sectors read
+     * during the key mapping. Sectors of the key map which were not read
+     * during the mapping (e.g. sectors restored from a checkpoint) are
+     * read by {@link #readTag()}.
      */
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
 
         if (requestCode == KEY_MAP_CREATOR) {
-            if (resultCode != Activity.RESULT_OK) {
+            if (resultCode == KeyMapCreator.RESULT_TAG_LOST) {
+                // Tag lost during the key mapping. Keep what was read
+                // so far and continue the mapping (from its checkpoint)
+                // once the same tag is scanned again.
+                addToRawDump(Common.getRawDump());
+                Common.setRawDump(null);
+                mResumeUID = (Common.getUID() == null)
+                        ? null : Common.bytes2Hex(Common.getUID());
+                mResumeMapping = true;
+                showTagLostDialog(getFirstUnreadSector());
+                return;
+            } else if (resultCode != Activity.RESULT_OK) {
                 // Error.
                 if (resultCode == 4) {
                     // Error. Path from the calling intend was null.
@@ -84,34 +117,158 @@ public class ReadTag extends AppCompatActivity {
                 }
                 finish();
                 return;
+            }
+            // Sectors already read during the key mapping.
+            addToRawDump(Common.getRawDump());
+            Common.setRawDump(null);
+            // Read the rest of the tag.
+            readTag();
+        }
+    }
+
+    /**
+     * Continue an interrupted read (or key mapping) if the same tag (UID)
+     * was scanned again.
+     * @see #readTag()
+     * @see #startKeyMapCreator()
+     */
+    @Override
+    public void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        if (mResumeUID == null || Common.getUID() == null) {
+            return;
+        }
+        if (mResumeUID.equals(Common.bytes2Hex(Common.getUID()))) {
+            if (mTagLostDialog != null) {
+                mTagLostDialog.dismiss();
+                mTagLostDialog = null;
+            }
+            if (mResumeMapping) {
+                mResumeMapping = false;
+                mResumeUID = null;
+                startKeyMapCreator();
             } else {
-                // Read Tag.
                 readTag();
             }
+        } else {
+            Toast.makeText(this, R.string.info_not_the_same_tag,
+                    Toast.LENGTH_LONG).show();
         }
     }
 
     /**
      * Triggered by {@link #onActivityResult(int, int, Intent)}
-     * this method starts a worker thread that first reads the tag and then
-     * calls {@link #createTagDump(SparseArray)}.
+     * this method starts a worker thread that reads all sectors of the
+     * key map that are not yet part of the dump and then
+     * calls {@link #createTagDump(SparseArray)}. If the tag is lost
+     * while reading, the sectors read so far are kept and
+     * {@link #showTagLostDialog(int)} is called.
+     * @see MCReader#readAsMuchAsPossible(SparseArray, int)
      */
     private void readTag() {
+        SparseArray<byte[][]> keyMap = Common.getKeyMap();
+        if (keyMap == null) {
+            createTagDump(null);
+            return;
+        }
+        // Only the sectors that were not read yet (e.g. not during the
+        // key mapping or not before the tag was lost).
+        final SparseArray<byte[][]> missing = new SparseArray<>();
+        for (int i = 0; i < keyMap.size(); i++) {
+            if (mRawDump == null || mRawDump.get(keyMap.keyAt(i)) == null) {
+                missing.put(keyMap.keyAt(i), keyMap.valueAt(i));
+            }
+        }
+        if (missing.size() == 0) {
+            mResumeUID = null;
+            createTagDump(mRawDump);
+            return;
+        }
         final MCReader reader = Common.checkForTagAndCreateReader(this);
         if (reader == null) {
             return;
         }
+        final String uid = reader.getUID();
         new Thread(() -> {
-            // Get key map from glob. variable.
-            mRawDump = reader.readAsMuchAsPossible(
-                    Common.getKeyMap());
+            SparseArray<String[]> rawDump = reader.readAsMuchAsPossible(
+                    missing);
+            boolean interrupted = reader.isReadInterrupted();
+            int lastSector = reader.getLastReadSector();
 
             reader.close();
 
-            mHandler.post(() -> createTagDump(mRawDump));
+            mHandler.post(() -> {
+                addToRawDump(rawDump);
+                if (interrupted) {
+                    mResumeUID = uid;
+                    showTagLostDialog(lastSector + 1);
+                } else {
+                    mResumeUID = null;
+                    createTagDump(mRawDump);
+                }
+            });
         }).start();
     }
 
+    /**
+     * Get the first sector of the key mapping range that was not read yet.
+     * @return The first sector that is not part of the dump yet
+     * (0 if unknown).
+     */
+    private int getFirstUnreadSector() {
+        BitSet sectors = Common.getKeyMapSectors();
+        if (sectors == null) {
+            return 0;
+        }
+        for (int i = sectors.nextSetBit(0); i >= 0;
+                i = sectors.nextSetBit(i + 1)) {
+            if (mRawDump == null || mRawDump.get(i) == null) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Add sectors to the dump read so far.
+     * @param rawDump The sectors to add. Might be null.
+     */
+    private void addToRawDump(SparseArray<String[]> rawDump) {
+        if (rawDump == null) {
+            return;
+        }
+        if (mRawDump == null) {
+            mRawDump = new SparseArray<>();
+        }
+        for (int i = 0; i < rawDump.size(); i++) {
+            mRawDump.put(rawDump.keyAt(i), rawDump.valueAt(i));
+        }
+    }
+
+    /**
+     * Tell the user that the tag was lost while reading. The reading
+     * continues as soon as the same tag is scanned again
+     * ({@link #onNewIntent(Intent)}). The user can also show the sectors
+     * read so far or cancel.
+     * @param resumeSector The sector the reading will continue at.
+     */
+    private void showTagLostDialog(int resumeSector) {
+        mTagLostDialog = new AlertDialog.Builder(this)
+            .setTitle(R.string.dialog_tag_lost_title)
+            .setMessage(getString(R.string.dialog_tag_lost, resumeSector))
+            .setIcon(android.R.drawable.ic_dialog_alert)
+            .setPositiveButton(R.string.action_show_partial_dump,
+                    (dialog, which) -> {
+                        mResumeUID = null;
+                        mResumeMapping = false;
+                        createTagDump(mRawDump);
+                    })
+            .setNegativeButton(R.string.action_cancel,
+                    (dialog, which) -> finish())
+            .setCancelable(false)
+            .show();
+    }
+
     /**
      * Create a tag dump in a format the {@link DumpEditor}
      * can read (format: headers (sectors) marked with "+", errors
@@ -125,8 +282,13 @@ public class ReadTag extends AppCompatActivity {
         ArrayList<String> tmpDump = new ArrayList<>();
         if (rawDump != null) {
             if (rawDump.size() != 0) {
-                for (int i = Common.getKeyMapRangeFrom();
-                        i <= Common.getKeyMapRangeTo(); i++) {
+                // Only the sectors of the key map (there might be gaps).
+                BitSet sectors = Common.getKeyMapSectors();
+                if (sectors == null) {
+                    sectors = new BitSet();
+                }
+                for (int i = sectors.nextSetBit(0); i >= 0;
+                        i = sectors.nextSetBit(i + 1)) {
                     String[] val = rawDump.get(i);
                     // Mark headers (sectors) with "+".
                     tmpDump.add("+Sector: " + i);
@@ -19,7 +19,11 @@
 package de.syss.MifareClassicTool.Activities;
 
 import android.annotation.SuppressLint;
+import android.nfc.TagLostException;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
@@ -28,11 +32,13 @@ import java.nio.ByteBuffer;
 import java.util.Locale;
 
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
 /**
  * Decode MIFARE Classic Value Blocks from their hex format
- * to an integer and vice versa.
+ * to an integer and vice versa. Value Blocks can also be read
+ * directly from a tag.
  * @author Gerhard Klostermeier
  */
 public class ValueBlockTool extends BasicActivity {
@@ -40,6 +46,7 @@ public class ValueBlockTool extends BasicActivity {
     private EditText mVB;
     private EditText mVBasInt;
     private EditText mAddr;
+    private EditText mBlock;
 
     /**
      * Initialize the some member variables.
@@ -52,6 +59,10 @@ public class ValueBlockTool extends BasicActivity {
         mVB = findViewById(R.id.editTextValueBlockToolVB);
         mVBasInt = findViewById(R.id.editTextValueBlockToolVBasInt);
         mAddr = findViewById(R.id.editTextValueBlockAddr);
+        mBlock = findViewById(R.id.editTextValueBlockToolBlock);
+        // Reading a block needs NFC.
+        findViewById(R.id.buttonValueBlockToolReadBlock).setEnabled(
+                !Common.useAsEditorOnly());
     }
 
     /**
@@ -130,6 +141,64 @@ public class ValueBlockTool extends BasicActivity {
 
     }
 
+    /**
+     * Read a single block from the tag (only this block, not the
+     * whole sector) and decode it.
+     * @param view The View object that triggered the method
+     * (in this case the read block button).
+     * @see MCReader#readBlocks(int[], SparseArray)
+     * @see #onDecode(View)
+     */
+    public void onReadBlock(View view) {
+        final int block;
+        try {
+            block = Integer.parseInt(mBlock.getText().toString());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, R.string.info_invalid_block_number,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return;
+        }
+        if (block < 0 || block >= reader.getBlockCount()) {
+            reader.close();
+            Toast.makeText(this, R.string.info_invalid_block_number,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        // Only use the key map if it was created for this tag.
+        SparseArray<byte[][]> tagKeyMap = null;
+        if (reader.getUID().equals(Common.bytes2Hex(Common.getUID()))) {
+            tagKeyMap = Common.getKeyMap();
+        }
+        final SparseArray<byte[][]> keyMap = tagKeyMap;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            SparseArray<String> result = null;
+            try {
+                result = reader.readBlocks(new int[] {block}, keyMap);
+            } catch (TagLostException e) {
+                // Handled below (no result).
+            }
+            reader.close();
+            final String data = (result != null) ? result.get(block) : null;
+            handler.post(() -> {
+                if (data == null) {
+                    Toast.makeText(this, R.string.info_no_tag_found,
+                            Toast.LENGTH_LONG).show();
+                } else if (data.equals(MCReader.NO_DATA)) {
+                    Toast.makeText(this, R.string.info_block_read_error,
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    mVB.setText(data);
+                    onDecode(null);
+                }
+            });
+        }).start();
+    }
+
     /**
      * Copy the MIFARE Classic Value Block to the Android clipboard.
      * @param view The View object that triggered the method
@@ -18,8 +18,11 @@
 
 package de.syss.MifareClassicTool.Activities;
 
+import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.TableLayout;
 import android.widget.TableLayout.LayoutParams;
 import android.widget.TableRow;
@@ -28,9 +31,8 @@ import android.widget.TextView.BufferType;
 
 import androidx.core.content.ContextCompat;
 
-import java.nio.ByteBuffer;
-
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
 /**
@@ -39,7 +41,8 @@ import de.syss.MifareClassicTool.R;
  * Google something like "nxp MIFARE classic value blocks",
  * if you want to have a closer look.
  * This Activity will be shown from the {@link DumpEditor}, if the user
- * clicks the corresponding menu item.
+ * clicks the corresponding menu item. From here, the value blocks can be
+ * watched on the tag ({@link WatchValueBlocks}).
  * @author Gerhard Klostermeier
  */
 public class ValueBlocksToInt extends BasicActivity {
@@ -51,6 +54,7 @@ public class ValueBlocksToInt extends BasicActivity {
             ValueBlocksToInt.class.getSimpleName();
 
     private TableLayout mLayout;
+    private int[] mBlocks;
 
     /**
      * Get value blocks from Intent and initialize Activity to
@@ -68,10 +72,14 @@ public class ValueBlocksToInt extends BasicActivity {
                     R.id.tableLayoutValueBlocksToInt);
             String[] valueBlocks = getIntent().getStringArrayExtra(EXTRA_VB);
             if (valueBlocks.length > 0) {
+                mBlocks = new int[valueBlocks.length / 2];
                 for (int i = 0; i < valueBlocks.length; i=i+2) {
                     String[] sectorAndBlock = valueBlocks[i].split(", ");
                     String sectorNumber = sectorAndBlock[0].split(": ")[1];
                     String blockNumber = sectorAndBlock[1].split(": ")[1];
+                    mBlocks[i / 2] = MCReader.sectorToBlock(
+                            Integer.parseInt(sectorNumber))
+                            + Integer.parseInt(blockNumber);
                     addPosInfoRow(getString(R.string.text_sector)
                             + ": " + sectorNumber + ", "
                             + getString(R.string.text_block)
@@ -91,6 +99,35 @@ public class ValueBlocksToInt extends BasicActivity {
         }
     }
 
+    /**
+     * Add the menu with the watch function to the Activity.
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflate the menu; this adds items to the action bar if it is present.
+        getMenuInflater().inflate(R.menu.value_blocks_to_int_functions, menu);
+        // Watching needs NFC.
+        menu.findItem(R.id.menuValueBlocksToIntWatch).setEnabled(
+                !Common.useAsEditorOnly());
+        return true;
+    }
+
+    /**
+     * Handle the selected function from the menu.
+     * @see WatchValueBlocks
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        // Handle item selection.
+        if (item.getItemId() == R.id.menuValueBlocksToIntWatch) {
+            Intent intent = new Intent(this, WatchValueBlocks.class);
+            intent.putExtra(WatchValueBlocks.EXTRA_BLOCKS, mBlocks);
+            startActivity(intent);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * Add a row with position information to the layout table.
      * This row shows the user where the value block is located (sector, block).
@@ -142,12 +179,7 @@ public class ValueBlocksToInt extends BasicActivity {
         what = new TextView(this);
         what.setText(R.string.text_vb_as_int_decoded);
         value = new TextView(this);
-        byte[] asBytes = Common.hex2Bytes(
-                hexValueBlock.substring(0, 8));
-        Common.reverseByteArrayInPlace(asBytes);
-        ByteBuffer bb = ByteBuffer.wrap(asBytes);
-        int i = bb.getInt();
-        String asInt = "" + i;
+        String asInt = "" + Common.valueBlockToInt(hexValueBlock);
         value.setText(Common.colorString(asInt,
                 ContextCompat.getColor(this, R.color.light_green)));
         tr.addView(what);
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool.Activities;
+
+import android.content.Context;
+import android.nfc.TagLostException;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.MCReader;
+import de.syss.MifareClassicTool.R;
+
+/**
+ * Watch value blocks change (e.g. the counters of stored-value systems).
+ * The tag stays connected and only the chosen blocks are read, again and
+ * again, with a configurable interval. If possible, the authentication
+ * of a sector is kept between the reads
+ * (see {@link MCReader#readBlocks(int[], SparseArray, boolean)}).
+ * The decoded values are shown live and each read is logged with a
+ * time stamp to a CSV file (in {@link Common#WATCH_LOGS_DIR}).
+ * This Activity will be shown from {@link ValueBlocksToInt}, if the user
+ * clicks the corresponding menu item.
+ * @author Gerhard Klostermeier
+ */
+public class WatchValueBlocks extends BasicActivity {
+
+    /**
+     * The corresponding Intent will contain the blocks to watch
+     * (int array of absolute block numbers).
+     */
+    public final static String EXTRA_BLOCKS =
+            "de.syss.MifareClassicTool.Activity.BLOCKS";
+
+    private static final String LOG_TAG =
+            WatchValueBlocks.class.getSimpleName();
+
+    /**
+     * Default time between the start of two reads (ms).
+     */
+    private static final int DEFAULT_INTERVAL = 50;
+    /**
+     * The live view is updated at most every that many milliseconds.
+     * Reads that happen in between are only written to the log file.
+     */
+    private static final long UI_UPDATE_INTERVAL = 100;
+    /**
+     * Maximum number of value changes shown in the live view.
+     */
+    private static final int MAX_LOG_LINES = 200;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int[] mBlocks;
+    private String[] mLabels;
+    private EditText mInterval;
+    private Button mStartStop;
+    private TextView mStatus;
+    private TextView mValues;
+    private TextView mLog;
+    private final ArrayDeque<String> mLogLines = new ArrayDeque<>();
+    private File mLogFile;
+    private Thread mWatchThread;
+    private volatile boolean mWatching;
+
+    /**
+     * Get the blocks to watch from the Intent and initialize the Activity.
+     * If there is no Intent with {@link #EXTRA_BLOCKS}, the Activity
+     * will be exited.
+     */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_watch_value_blocks);
+
+        mBlocks = getIntent().getIntArrayExtra(EXTRA_BLOCKS);
+        if (mBlocks == null || mBlocks.length == 0) {
+            Log.d(LOG_TAG, "There were no blocks in intent.");
+            finish();
+            return;
+        }
+        mLabels = new String[mBlocks.length];
+        for (int i = 0; i < mBlocks.length; i++) {
+            int sector = MCReader.blockToSector(mBlocks[i]);
+            mLabels[i] = getString(R.string.text_sector) + ": " + sector
+                    + ", " + getString(R.string.text_block) + ": "
+                    + (mBlocks[i] - MCReader.sectorToBlock(sector));
+        }
+
+        mInterval = findViewById(R.id.editTextWatchValueBlocksInterval);
+        mStartStop = findViewById(R.id.buttonWatchValueBlocksStartStop);
+        mStatus = findViewById(R.id.textViewWatchValueBlocksStatus);
+        mValues = findViewById(R.id.textViewWatchValueBlocksValues);
+        mLog = findViewById(R.id.textViewWatchValueBlocksLog);
+        mInterval.setText("" + getPreferences(Context.MODE_PRIVATE).getInt(
+                "default_watch_interval", DEFAULT_INTERVAL));
+        // Watching needs NFC.
+        mStartStop.setEnabled(!Common.useAsEditorOnly());
+    }
+
+    /**
+     * Stop watching. While the Activity is not shown, the tag
+     * is not read.
+     * @see #stopWatching()
+     */
+    @Override
+    public void onPause() {
+        super.onPause();
+        stopWatching();
+    }
+
+    /**
+     * Add the menu with the share function to the Activity.
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflate the menu; this adds items to the action bar if it is present.
+        getMenuInflater().inflate(R.menu.watch_value_blocks_functions, menu);
+        return true;
+    }
+
+    /**
+     * Handle the selected function from the menu.
+     * @see #shareLog()
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        // Handle item selection.
+        if (item.getItemId() == R.id.menuWatchValueBlocksShare) {
+            shareLog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Start or stop watching.
+     * @param view The View object that triggered the method
+     * (in this case the start/stop button).
+     * @see #startWatching()
+     * @see #stopWatching()
+     */
+    public void onStartStop(View view) {
+        if (mWatching) {
+            stopWatching();
+        } else {
+            startWatching();
+        }
+    }
+
+    /**
+     * Connect to the tag and start reading the blocks in a new thread.
+     * Nothing happens while the thread of the last watch is still
+     * running (see {@link #stopWatching()}).
+     * @see #watch(MCReader, int)
+     */
+    private void startWatching() {
+        if (mWatchThread != null) {
+            // The last watch has not finished yet.
+            return;
+        }
+        final int interval;
+        try {
+            interval = Integer.parseInt(mInterval.getText().toString());
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, R.string.info_invalid_interval,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return;
+        }
+        getPreferences(Context.MODE_PRIVATE).edit()
+                .putInt("default_watch_interval", interval).apply();
+
+        // Log file name: UID and date.
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss",
+                Locale.getDefault());
+        mLogFile = new File(Common.getFile(Common.WATCH_LOGS_DIR),
+                "UID_" + reader.getUID() + "_" + fmt.format(new Date())
+                + ".csv");
+        mLogLines.clear();
+        mLog.setText("");
+        mStatus.setText("");
+        mValues.setText("");
+        mInterval.setEnabled(false);
+        mStartStop.setText(R.string.action_stop_watching);
+        mWatching = true;
+        mWatchThread = new Thread(() -> watch(reader, interval));
+        mWatchThread.start();
+    }
+
+    /**
+     * Stop watching. The watching thread will finish its current read,
+     * close the log file and the connection to the tag. The start button
+     * stays disabled until the thread has finished
+     * ({@link #onWatchFinished(Thread)}), so two threads never
+     * read the same tag.
+     */
+    private void stopWatching() {
+        mWatching = false;
+        if (mInterval != null) {
+            mStartStop.setText(R.string.action_start_watching);
+            mStartStop.setEnabled(mWatchThread == null
+                    && !Common.useAsEditorOnly());
+        }
+    }
+
+    /**
+     * Called (on the UI thread) when a watching thread has finished.
+     * Watching can be started again.
+     * @param watchThread The thread that has finished.
+     */
+    private void onWatchFinished(Thread watchThread) {
+        if (mWatchThread != watchThread) {
+            return;
+        }
+        mWatchThread = null;
+        mWatching = false;
+        if (mInterval != null) {
+            mInterval.setEnabled(true);
+            mStartStop.setText(R.string.action_start_watching);
+            mStartStop.setEnabled(!Common.useAsEditorOnly());
+        }
+    }
+
+    /**
+     * Read the blocks until watching is stopped or the tag is lost.
+     * The keys of the sectors are resolved once in the beginning: with
+     * {@link MCReader#resolveSectorKeys(int)} (keys found during this
+     * session) or from the current key map (if it was created for this
+     * tag). They are never resolved again while polling. Blocks of
+     * sectors without keys are not watched. This runs in its own thread.
+     * @param reader The connected reader.
+     * @param interval Time between the start of two reads (ms).
+     */
+    private void watch(MCReader reader, int interval) {
+        BufferedWriter log = null;
+        boolean tagLost = false;
+        try {
+            // Get the keys.
+            SparseArray<byte[][]> keyMap = new SparseArray<>();
+            // Only use the key map if it was created for this tag.
+            SparseArray<byte[][]> mappedKeys = null;
+            if (reader.getUID().equals(Common.bytes2Hex(Common.getUID()))) {
+                mappedKeys = Common.getKeyMap();
+            }
+            ArrayList<Integer> watchable = new ArrayList<>();
+            for (int i = 0; i < mBlocks.length; i++) {
+                final int sector = MCReader.blockToSector(mBlocks[i]);
+                if (keyMap.indexOfKey(sector) < 0) {
+                    byte[][] keys = reader.resolveSectorKeys(sector);
+                    if (keys == null && mappedKeys != null) {
+                        keys = mappedKeys.get(sector);
+                    }
+                    keyMap.put(sector, keys);
+                    if (keys == null) {
+                        mHandler.post(() -> Toast.makeText(this,
+                                getString(R.string.info_no_keys_for_sector,
+                                        sector), Toast.LENGTH_LONG).show());
+                    }
+                }
+                if (keyMap.get(sector) != null) {
+                    watchable.add(i);
+                }
+            }
+            if (watchable.isEmpty()) {
+                mHandler.post(() -> Toast.makeText(this,
+                        R.string.info_no_blocks_to_watch,
+                        Toast.LENGTH_LONG).show());
+                return;
+            }
+            int[] blocks = new int[watchable.size()];
+            String[] labels = new String[blocks.length];
+            StringBuilder header = new StringBuilder("time_ms,time");
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = mBlocks[watchable.get(i)];
+                labels[i] = mLabels[watchable.get(i)];
+                header.append(",block_").append(blocks[i]);
+            }
+
+            File dir = mLogFile.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Error creating " + dir);
+            }
+            log = new BufferedWriter(new FileWriter(mLogFile));
+            log.write(header.toString());
+            log.newLine();
+
+            SimpleDateFormat timeFmt = new SimpleDateFormat(
+                    "HH:mm:ss.SSS", Locale.getDefault());
+            SimpleDateFormat dateFmt = new SimpleDateFormat(
+                    "yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
+            String[] values = new String[blocks.length];
+            Integer[] lastValues = new Integer[blocks.length];
+            boolean[] firstRead = new boolean[blocks.length];
+            ArrayList<String> changes = new ArrayList<>();
+            long polls = 0;
+            long start = SystemClock.elapsedRealtime();
+            long lastUiUpdate = 0;
+            while (mWatching) {
+                long pollStart = SystemClock.elapsedRealtime();
+                SparseArray<String> result = reader.readBlocks(
+                        blocks, keyMap, true);
+                long now = System.currentTimeMillis();
+                polls++;
+                String time = timeFmt.format(new Date(now));
+                StringBuilder csv = new StringBuilder();
+                csv.append(now).append(',')
+                        .append(dateFmt.format(new Date(now)));
+                for (int i = 0; i < blocks.length; i++) {
+                    String data = (result != null)
+                            ? result.get(blocks[i]) : null;
+                    Integer value = null;
+                    String csvValue = "";
+                    if (data != null && !data.equals(MCReader.NO_DATA)) {
+                        if (Common.isValueBlock(data)) {
+                            value = Common.valueBlockToInt(data);
+                            csvValue = value.toString();
+                        } else {
+                            // No (longer a) value block.
+                            csvValue = data;
+                        }
+                    }
+                    csv.append(',').append(csvValue);
+                    values[i] = csvValue.equals("") ? "-" : csvValue;
+                    // Log changes.
+                    if (!firstRead[i]) {
+                        firstRead[i] = true;
+                        changes.add(time + "  " + labels[i] + ": "
+                                + values[i]);
+                    } else if (value != null && lastValues[i] != null
+                            && !value.equals(lastValues[i])) {
+                        long diff = (long) value - lastValues[i];
+                        changes.add(time + "  " + labels[i] + ": " + value
+                                + " (" + ((diff > 0) ? "+" : "") + diff + ")");
+                    } else if ((value == null) != (lastValues[i] == null)) {
+                        changes.add(time + "  " + labels[i] + ": "
+                                + values[i]);
+                    }
+                    lastValues[i] = value;
+                }
+                log.write(csv.toString());
+                log.newLine();
+
+                // Update the live view.
+                if (pollStart - lastUiUpdate >= UI_UPDATE_INTERVAL) {
+                    lastUiUpdate = pollStart;
+                    postLiveView(labels, values.clone(), changes, polls,
+                            polls * 1000.0 / Math.max(1, pollStart - start));
+                    changes = new ArrayList<>();
+                }
+
+                long sleep = interval
+                        - (SystemClock.elapsedRealtime() - pollStart);
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+            postLiveView(labels, values, changes, polls, polls * 1000.0
+                    / Math.max(1, SystemClock.elapsedRealtime() - start));
+        } catch (TagLostException e) {
+            tagLost = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while writing watch log.", e);
+            mHandler.post(() -> Toast.makeText(this,
+                    R.string.info_watch_log_error, Toast.LENGTH_LONG).show());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error while closing watch log.", e);
+                }
+            }
+            reader.close();
+            final boolean finalTagLost = tagLost;
+            final Thread watchThread = Thread.currentThread();
+            mHandler.post(() -> {
+                if (finalTagLost) {
+                    Toast.makeText(this, R.string.info_watch_tag_lost,
+                            Toast.LENGTH_LONG).show();
+                }
+                onWatchFinished(watchThread);
+            });
+        }
+    }
+
+    /**
+     * Show the current values and the value changes in the live view.
+     * This can be called from any thread.
+     * @param labels The positions of the blocks (sector, block).
+     * @param values The current values.
+     * @param changes The new value changes (one line per change).
+     * @param polls The number of reads so far.
+     * @param rate Reads per second.
+     */
+    private void postLiveView(final String[] labels, final String[] values,
+            final ArrayList<String> changes, final long polls,
+            final double rate) {
+        mHandler.post(() -> {
+            mStatus.setText(getString(R.string.text_watch_status,
+                    polls, rate));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < labels.length; i++) {
+                if (i > 0) {
+                    sb.append('\n');
+                }
+                sb.append(labels[i]).append(": ").append(values[i]);
+            }
+            mValues.setText(sb);
+            if (changes.isEmpty()) {
+                return;
+            }
+            // Newest changes on top.
+            for (String change : changes) {
+                mLogLines.addFirst(change);
+            }
+            while (mLogLines.size() > MAX_LOG_LINES) {
+                mLogLines.removeLast();
+            }
+            mLog.setText(TextUtils.join("\n", mLogLines));
+        });
+    }
+
+    /**
+     * Share the CSV log of the last watching as text file.
+     */
+    private void shareLog() {
+        if (mLogFile == null || !mLogFile.exists()) {
+            Toast.makeText(this, R.string.info_no_watch_log,
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        Common.shareTextFile(this, mLogFile);
+    }
+}
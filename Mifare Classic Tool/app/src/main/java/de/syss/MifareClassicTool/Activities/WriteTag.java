@@ -29,7 +29,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.SparseArray;
-import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
@@ -38,7 +37,6 @@ import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListAdapter;
 import android.widget.ListView;
-import android.widget.ProgressBar;
 import android.widget.RadioButton;
 import android.widget.SimpleAdapter;
 import android.widget.TextView;
@@ -50,6 +48,7 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -57,6 +56,10 @@ import java.util.List;
 import java.util.Set;
 
 import de.syss.MifareClassicTool.Common;
+import de.syss.MifareClassicTool.Common.Operation;
+import de.syss.MifareClassicTool.DumpKeyGenerator;
+import de.syss.MifareClassicTool.KeyGenerator;
+import de.syss.MifareClassicTool.KeyMapCache;
 import de.syss.MifareClassicTool.MCReader;
 import de.syss.MifareClassicTool.R;
 
@@ -95,6 +98,8 @@ public class WriteTag extends BasicActivity {
     private HashMap<Integer, HashMap<Integer, byte[]>> mDumpWithPos;
     private boolean mWriteDumpFromEditor = false;
     private String[] mDumpFromEditor;
+    private SparseArray<byte[][]> mResolvedKeys;
+    private DumpKeyGenerator mDumpKeys;
 
 
     /**
@@ -228,6 +233,21 @@ public class WriteTag extends BasicActivity {
                 // Error.
                 ckmError = resultCode;
             } else {
+                // Add the keys that were already known.
+                SparseArray<byte[][]> keyMap = Common.getKeyMap();
+                if (keyMap != null && mResolvedKeys != null) {
+                    BitSet sectors = Common.getKeyMapSectors();
+                    for (int i = 0; i < mResolvedKeys.size(); i++) {
+                        int sector = mResolvedKeys.keyAt(i);
+                        if (keyMap.get(sector) == null) {
+                            keyMap.put(sector, mResolvedKeys.valueAt(i));
+                        }
+                        if (sectors != null) {
+                            sectors.set(sector);
+                        }
+                    }
+                    Common.setKeyMapSectors(sectors);
+                }
                 checkDumpAgainstTag();
             }
             break;
@@ -538,17 +558,83 @@ public class WriteTag extends BasicActivity {
 
     /**
      * Helper function for {@link #onWriteBlock(View)} and
-     * {@link #onWriteValue(android.view.View)} to show
-     * the {@link KeyMapCreator}.
+     * {@link #onWriteValue(android.view.View)} to get the keys of
+     * the sector. If a key with the rights for the operation is already
+     * known (found earlier in this session or in the key map cache), the
+     * block is written right away. Only this one sector is checked (in a
+     * new thread, while a "don't remove tag" dialog is shown).
+     * Otherwise the {@link KeyMapCreator} is shown.
      * @param sector The sector for the mapping range of
      * {@link KeyMapCreator}
      * @param isValueBlock If true, the key map will be created for a Value
      * Block ({@link #writeValueBlock()}).
      * @see KeyMapCreator
+     * @see MCReader#resolveKeys(int, int, Operation)
      * @see #onWriteBlock(View)
      * @see #onWriteValue(android.view.View)
      */
-    private void createKeyMapForBlock(int sector, boolean isValueBlock) {
+    private void createKeyMapForBlock(final int sector,
+            final boolean isValueBlock) {
+        final MCReader reader = createKeyResolver();
+        if (reader == null) {
+            startKeyMapCreatorForBlock(sector, isValueBlock);
+            return;
+        }
+        EditText blockText = isValueBlock ? mBlockTextVB : mBlockTextBlock;
+        final int block = Integer.parseInt(blockText.getText().toString());
+        // Sector trailer or manufacturer block? The Access
+        // Conditions do not tell the whole story here.
+        final boolean allKeys = !isValueBlock && (block ==
+                reader.getBlockCountInSector(sector) - 1
+                || (sector == 0 && block == 0));
+        Operation op = Operation.Write;
+        if (isValueBlock) {
+            op = mIncreaseVB.isChecked() ? Operation.Increment
+                    : Operation.DecTransRest;
+        }
+        final Operation operation = op;
+
+        // Search the keys in new thread. This might take a while.
+        final AlertDialog warning = Common.showDontRemoveTagDialog(
+                R.string.dialog_wait_keys_title, R.string.dialog_wait_keys,
+                this);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            final byte[][] keys = allKeys ? reader.resolveSectorKeys(sector)
+                    : reader.resolveKeys(sector, block, operation);
+            reader.close();
+            handler.post(() -> {
+                warning.cancel();
+                if (isFinishing()) {
+                    return;
+                }
+                if (keys == null) {
+                    startKeyMapCreatorForBlock(sector, isValueBlock);
+                    return;
+                }
+                SparseArray<byte[][]> keyMap = new SparseArray<>();
+                keyMap.put(sector, keys);
+                Common.setKeyMap(keyMap);
+                Common.setKeyMapRange(sector, sector);
+                if (isValueBlock) {
+                    writeValueBlock();
+                } else {
+                    writeBlock();
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Show the {@link KeyMapCreator} for the sector of a block
+     * (see {@link #createKeyMapForBlock(int, boolean)}).
+     * @param sector The sector for the mapping range of
+     * {@link KeyMapCreator}
+     * @param isValueBlock If true, the key map will be created for a Value
+     * Block ({@link #writeValueBlock()}).
+     */
+    private void startKeyMapCreatorForBlock(int sector,
+            boolean isValueBlock) {
         Intent intent = new Intent(this, KeyMapCreator.class);
         intent.putExtra(KeyMapCreator.EXTRA_KEYS_DIR,
                 Common.getFile(Common.KEYS_DIR).getAbsolutePath());
@@ -856,10 +942,13 @@ public class WriteTag extends BasicActivity {
      * Transform the simple dump array into a structure (mDumpWithPos)
      * where the sector and block information are known additionally.
      * Blocks containing unknown data ("-") are dropped.
+     * The keys of the sector trailers are collected in {@link #mDumpKeys}.
      * @param dump The dump to initialize the mDumpWithPos with.
      */
     private void initDumpWithPosFromDump(String[] dump) {
         mDumpWithPos = new HashMap<>();
+        mDumpKeys = new DumpKeyGenerator();
+        mDumpKeys.addDump(dump);
         int sector = 0;
         int block = 0;
         // Transform the simple dump array into a structure (mDumpWithPos)
@@ -891,24 +980,120 @@ public class WriteTag extends BasicActivity {
     }
 
     /**
-     * Create a key map for the dump ({@link #mDumpWithPos}).
+     * Create a key map for the dump ({@link #mDumpWithPos}). Sectors
+     * with already known keys (found earlier in this session or in the
+     * key map cache) are not mapped again. For all other sectors, the
+     * keys of the sector trailers of the dump and of older dumps of the
+     * tag ({@link #mDumpKeys}) are tried. This is done in a new thread,
+     * while a "don't remove tag" dialog is shown. Only if this fails, the
+     * {@link KeyMapCreator} is used. If all keys are known, the
+     * dump is checked against the tag right away
+     * ({@link #checkDumpAgainstTag()}).
      * @see KeyMapCreator
+     * @see MCReader#resolveSectorKeys(int)
+     * @see DumpKeyGenerator
      */
     private void createKeyMapForDump() {
-        // Show key map creator.
+        mResolvedKeys = new SparseArray<>();
+        final MCReader reader = createKeyResolver();
+        if (reader == null) {
+            BitSet missingSectors = new BitSet();
+            for (int sector : mDumpWithPos.keySet()) {
+                missingSectors.set(sector);
+            }
+            onDumpKeysResolved(missingSectors);
+            return;
+        }
+
+        // Search the keys in new thread. This might take a while.
+        final AlertDialog warning = Common.showDontRemoveTagDialog(
+                R.string.dialog_wait_keys_title, R.string.dialog_wait_keys,
+                this);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final SparseArray<byte[][]> resolvedKeys = mResolvedKeys;
+        new Thread(() -> {
+            if (mDumpKeys != null) {
+                // Writing a tag with its own backup? Then the keys are
+                // known.
+                mDumpKeys.addRelatedDumps(Common.getFile(Common.DUMPS_DIR),
+                        reader.getUID());
+                reader.setKeyGenerators(new KeyGenerator[] {mDumpKeys});
+            }
+            final BitSet missingSectors = new BitSet();
+            for (int sector : mDumpWithPos.keySet()) {
+                byte[][] keys = null;
+                if (sector < reader.getSectorCount()) {
+                    keys = reader.resolveSectorKeys(sector);
+                }
+                if (keys != null && keys[0] != null && keys[1] != null) {
+                    resolvedKeys.put(sector, keys);
+                } else {
+                    // Maybe the missing key is needed for writing.
+                    missingSectors.set(sector);
+                }
+            }
+            reader.close();
+            handler.post(() -> {
+                warning.cancel();
+                if (!isFinishing()) {
+                    onDumpKeysResolved(missingSectors);
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Continue writing the dump after the known keys were searched
+     * ({@link #createKeyMapForDump()}). If no keys are missing, the
+     * dump is checked against the tag ({@link #checkDumpAgainstTag()}).
+     * Otherwise the {@link KeyMapCreator} is shown for the sectors with
+     * missing keys.
+     * @param missingSectors The sectors with missing keys.
+     */
+    private void onDumpKeysResolved(BitSet missingSectors) {
+        if (missingSectors.isEmpty()) {
+            BitSet sectors = new BitSet();
+            for (int sector : mDumpWithPos.keySet()) {
+                sectors.set(sector);
+            }
+            Common.setKeyMap(mResolvedKeys);
+            Common.setKeyMapSectors(sectors);
+            checkDumpAgainstTag();
+            return;
+        }
+
+        // Show key map creator (only for the sectors with missing keys).
         Intent intent = new Intent(this, KeyMapCreator.class);
         intent.putExtra(KeyMapCreator.EXTRA_KEYS_DIR,
                 Common.getFile(Common.KEYS_DIR).getAbsolutePath());
         intent.putExtra(KeyMapCreator.EXTRA_SECTOR_CHOOSER, false);
-        intent.putExtra(KeyMapCreator.EXTRA_SECTOR_CHOOSER_FROM,
-                (int) Collections.min(mDumpWithPos.keySet()));
-        intent.putExtra(KeyMapCreator.EXTRA_SECTOR_CHOOSER_TO,
-                (int) Collections.max(mDumpWithPos.keySet()));
+        intent.putExtra(KeyMapCreator.EXTRA_SECTOR_CHOOSER_SECTORS,
+                Common.sectorsToString(missingSectors));
         intent.putExtra(KeyMapCreator.EXTRA_BUTTON_TEXT,
                 getString(R.string.action_create_key_map_and_write_dump));
         startActivityForResult(intent, CKM_WRITE_DUMP);
     }
 
+    /**
+     * Create a reader that only knows the keys found earlier (in this
+     * session or in the key map cache). It is used to get the keys of
+     * single sectors without showing the {@link KeyMapCreator}.
+     * @return The reader or null if there is no tag.
+     * @see MCReader#resolveSectorKeys(int)
+     */
+    private MCReader createKeyResolver() {
+        if (Common.getTag() == null) {
+            return null;
+        }
+        MCReader reader = Common.checkForTagAndCreateReader(this);
+        if (reader == null) {
+            return null;
+        }
+        reader.setKeyMapCache(new KeyMapCache(
+                Common.getFile(Common.KEY_MAP_CACHE_DIR)));
+        return reader;
+    }
+
     /**
      * Check if the tag is suitable for the dump ({@link #mDumpWithPos}).
      * This is done in four steps. The first check determines if the dump
@@ -1236,25 +1421,9 @@ public class WriteTag extends BasicActivity {
         }
 
         // Display don't remove warning.
-        LinearLayout ll = new LinearLayout(this);
-        int pad = Common.dpToPx(20);
-        ll.setPadding(pad, pad, pad, pad);
-        ll.setGravity(Gravity.CENTER);
-        ProgressBar progressBar = new ProgressBar(this);
-        progressBar.setIndeterminate(true);
-        pad = Common.dpToPx(20);
-        progressBar.setPadding(0, 0, pad, 0);
-        TextView tv = new TextView(this);
-        tv.setText(getString(R.string.dialog_wait_write_tag));
-        tv.setTextSize(18);
-        ll.addView(progressBar);
-        ll.addView(tv);
-        final AlertDialog warning = new AlertDialog.Builder(this)
-            .setTitle(R.string.dialog_wait_write_tag_title)
-            .setView(ll)
-            .create();
-        warning.show();
-
+        final AlertDialog warning = Common.showDontRemoveTagDialog(
+                R.string.dialog_wait_write_tag_title,
+                R.string.dialog_wait_write_tag, this);
 
         // Start writing in new thread.
         final Activity a = this;
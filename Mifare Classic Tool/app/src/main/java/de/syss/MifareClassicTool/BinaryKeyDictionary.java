@@ -0,0 +1,473 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled, read-only key dictionary file. The file starts with a
+ * header of {@link #HEADER_LENGTH} bytes:
+ * <ul>
+ * <li>Magic "MCTK" (4 bytes).</li>
+ * <li>Version (1 byte).</li>
+ * <li>Flags (1 byte, see {@link #FLAG_SORTED} and {@link #FLAG_RANKED}).</li>
+ * <li>Reserved (2 bytes).</li>
+ * <li>Number of keys (4 bytes, big endian).</li>
+ * <li>Reserved (4 bytes).</li>
+ * </ul>
+ * The header is followed by the keys, 6 bytes per key, without any
+ * duplicates. The file is memory-mapped, so even dictionaries with
+ * millions of keys do not need any heap memory.
+ * This class has no Android dependencies.
+ * @author Gerhard Klostermeier
+ * @see KeyDictionary#addMapped(BinaryKeyDictionary)
+ */
+public class BinaryKeyDictionary {
+
+    /**
+     * File extension of compiled key dictionaries.
+     */
+    public static final String FILE_EXTENSION = ".mctk";
+    /**
+     * Length of the file header in bytes.
+     */
+    public static final int HEADER_LENGTH = 16;
+    /**
+     * The keys are sorted in ascending order (binary search is possible).
+     */
+    public static final int FLAG_SORTED = 0x01;
+    /**
+     * The keys are ordered by their relevance (most common keys first).
+     */
+    public static final int FLAG_RANKED = 0x02;
+
+    private static final byte[] MAGIC = {'M', 'C', 'T', 'K'};
+    private static final int VERSION = 1;
+    private static final int RECORD_LENGTH = KeyDictionary.KEY_LENGTH;
+    /**
+     * Number of keys sorted in memory at once by
+     * {@link #compile(InputStream[], File, File)} (512 KiB).
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * Maximum number of temporary files merged (and therefore open)
+     * at once by {@link #compile(InputStream[], File, File)}.
+     */
+    private static final int MAX_MERGE_FAN_IN = 16;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSize;
+    private final int mFlags;
+
+    /**
+     * Create a dictionary from a mapped file.
+     * @param buffer The mapped file (including the header).
+     * @param size Number of keys.
+     * @param flags The flags from the header.
+     */
+    private BinaryKeyDictionary(MappedByteBuffer buffer, int size,
+            int flags) {
+        mBuffer = buffer;
+        mSize = size;
+        mFlags = flags;
+    }
+
+    /**
+     * Map a compiled key dictionary file into memory.
+     * @param file The compiled key dictionary.
+     * @return The dictionary or null if the file could not be read or
+     * is not a (valid) compiled key dictionary.
+     */
+    public static BinaryKeyDictionary open(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, length);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    return null;
+                }
+            }
+            if (buffer.get(4) != VERSION) {
+                return null;
+            }
+            int flags = buffer.get(5) & 0xFF;
+            int size = buffer.getInt(8);
+            if (size < 0 || HEADER_LENGTH + (long) size * RECORD_LENGTH
+                    > length) {
+                return null;
+            }
+            return new BinaryKeyDictionary(buffer, size, flags);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if a file is a compiled key dictionary (by its magic bytes).
+     * @param file The file to check.
+     * @return True if the file starts with the magic bytes.
+     */
+    public static boolean isBinaryDictionary(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            if (in.read(magic) != magic.length) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Get the number of keys in this dictionary.
+     * @return The number of keys.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Check if the keys are sorted (see {@link #FLAG_SORTED}).
+     * @return True if the keys are sorted.
+     */
+    public boolean isSorted() {
+        return (mFlags & FLAG_SORTED) != 0;
+    }
+
+    /**
+     * Check if the keys are ordered by relevance (see {@link #FLAG_RANKED}).
+     * @return True if the keys are ranked.
+     */
+    public boolean isRanked() {
+        return (mFlags & FLAG_RANKED) != 0;
+    }
+
+    /**
+     * Get the key at the given position.
+     * @param index Position of the key.
+     * @return The packed key.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException(
+                    "Key index out of bounds: " + index);
+        }
+        int offset = HEADER_LENGTH + index * RECORD_LENGTH;
+        long key = 0;
+        for (int i = 0; i < RECORD_LENGTH; i++) {
+            key = (key << 8) | (mBuffer.get(offset + i) & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Find the position of a key. Sorted dictionaries are searched
+     * with a binary search.
+     * @param key The packed key.
+     * @return The position of the key or -1 if it was not found.
+     */
+    public int indexOf(long key) {
+        if (!isSorted()) {
+            for (int i = 0; i < mSize; i++) {
+                if (get(i) == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = get(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write keys as compiled key dictionary. The keys are written in the
+     * given order, so they must not contain duplicates.
+     * @param keys The keys.
+     * @param file The destination file.
+     * @param flags The flags for the header (e.g. {@link #FLAG_RANKED}).
+     * @return True if the file was written. False otherwise.
+     */
+    public static boolean write(KeyDictionary keys, File file, int flags) {
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file))) {
+            out.write(createHeader(keys.size(), flags));
+            byte[] record = new byte[RECORD_LENGTH];
+            for (int i = 0; i < keys.size(); i++) {
+                out.write(KeyDictionary.toBytes(keys.get(i), record));
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compile key files (text) into a sorted and deduplicated key
+     * dictionary. This uses an external sort: the keys are sorted in
+     * chunks of {@link #CHUNK_SIZE} keys, which are stored as temporary
+     * files and merged afterwards (at most {@link #MAX_MERGE_FAN_IN} files
+     * at once). So the full set of keys is never held in memory and
+     * the number of open files is bounded.<br /><br />
+     * Attention: The keys are sorted by their value, the order of the
+     * key files is NOT kept. The result is flagged as
+     * {@link #FLAG_SORTED}, not as {@link #FLAG_RANKED}, so its keys are
+     * tried after the keys of all text and ranked key files (see
+     * {@link KeySetCache}). Use {@link #write(KeyDictionary, File, int)}
+     * to keep the order of (smaller) key files.
+     * @param sources The key files (text, one key per line). The streams
+     * will be closed.
+     * @param dest The destination file.
+     * @param tmpDir Directory for the temporary files.
+     * @return Number of (unique) keys in the compiled dictionary or -1
+     * on error.
+     */
+    public static int compile(InputStream[] sources, File dest,
+            File tmpDir) {
+        ArrayList<File> runs = new ArrayList<>();
+        // All temporary files (including the ones of the merge passes).
+        ArrayList<File> tmpFiles = new ArrayList<>();
+        try {
+            // Phase 1: Sort chunks of keys and write them to temporary files.
+            long[] chunk = new long[CHUNK_SIZE];
+            int chunkSize = 0;
+            for (InputStream source : sources) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(source))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        long key = KeyDictionary.parseKey(line);
+                        if (key == KeyDictionary.INVALID_KEY) {
+                            continue;
+                        }
+                        chunk[chunkSize++] = key;
+                        if (chunkSize == CHUNK_SIZE) {
+                            runs.add(writeRun(chunk, chunkSize, tmpDir));
+                            tmpFiles.add(runs.get(runs.size() - 1));
+                            chunkSize = 0;
+                        }
+                    }
+                }
+            }
+            if (chunkSize > 0 || runs.size() == 0) {
+                runs.add(writeRun(chunk, chunkSize, tmpDir));
+                tmpFiles.add(runs.get(runs.size() - 1));
+            }
+            // Phase 2: Merge the sorted chunks in passes, so that only a
+            // limited number of files is open at the same time.
+            while (runs.size() > MAX_MERGE_FAN_IN) {
+                ArrayList<File> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+                    List<File> group = runs.subList(i,
+                            Math.min(i + MAX_MERGE_FAN_IN, runs.size()));
+                    File run = File.createTempFile("keys-", ".run", tmpDir);
+                    merged.add(run);
+                    tmpFiles.add(run);
+                    try (OutputStream out = new BufferedOutputStream(
+                            new FileOutputStream(run))) {
+                        mergeRuns(group, out);
+                    }
+                    for (File done : group) {
+                        done.delete();
+                    }
+                }
+                runs = merged;
+            }
+            File tmpDest = new File(dest.getPath() + ".tmp");
+            int count;
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmpDest))) {
+                // Placeholder header. The key count is set at the end.
+                out.write(createHeader(0, FLAG_SORTED));
+                count = mergeRuns(runs, out);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(tmpDest, "rw")) {
+                raf.seek(8);
+                raf.writeInt(count);
+            }
+            if (!tmpDest.renameTo(dest)) {
+                tmpDest.delete();
+                return -1;
+            }
+            return count;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            for (File run : tmpFiles) {
+                run.delete();
+            }
+            for (InputStream source : sources) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sort and deduplicate a chunk of keys and write it to a temporary
+     * file (without a header).
+     * @param chunk The keys.
+     * @param size Number of keys in the chunk.
+     * @param tmpDir Directory for the temporary file.
+     * @return The temporary file.
+     * @throws IOException Error while writing the file.
+     */
+    private static File writeRun(long[] chunk, int size, File tmpDir)
+            throws IOException {
+        Arrays.sort(chunk, 0, size);
+        File run = File.createTempFile("keys-", ".run", tmpDir);
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(run))) {
+            byte[] record = new byte[RECORD_LENGTH];
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && chunk[i] == chunk[i - 1]) {
+                    continue;
+                }
+                out.write(KeyDictionary.toBytes(chunk[i], record));
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Merge sorted temporary files into one sorted stream of keys.
+     * Duplicates across the files are removed.
+     * @param runs The sorted temporary files.
+     * @param out The destination (keys only, no header).
+     * @return Number of keys written.
+     * @throws IOException Error while reading or writing the files.
+     */
+    private static int mergeRuns(List<File> runs, OutputStream out)
+            throws IOException {
+        int runCount = runs.size();
+        InputStream[] ins = new InputStream[runCount];
+        long[] heads = new long[runCount];
+        byte[] record = new byte[RECORD_LENGTH];
+        int count = 0;
+        try {
+            for (int i = 0; i < runCount; i++) {
+                ins[i] = new BufferedInputStream(
+                        new FileInputStream(runs.get(i)));
+                heads[i] = readRecord(ins[i], record);
+            }
+            long last = KeyDictionary.INVALID_KEY;
+            while (true) {
+                // Find the smallest key of all runs.
+                int min = -1;
+                for (int i = 0; i < runCount; i++) {
+                    if (heads[i] != KeyDictionary.INVALID_KEY
+                            && (min == -1 || heads[i] < heads[min])) {
+                        min = i;
+                    }
+                }
+                if (min == -1) {
+                    break;
+                }
+                if (heads[min] != last) {
+                    last = heads[min];
+                    out.write(KeyDictionary.toBytes(last, record));
+                    count++;
+                }
+                heads[min] = readRecord(ins[min], record);
+            }
+        } finally {
+            for (InputStream in : ins) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the next key of a temporary file.
+     * @param in The temporary file.
+     * @param record Buffer for the key.
+     * @return The packed key or {@link KeyDictionary#INVALID_KEY} if the end
+     * of the file was reached.
+     * @throws IOException Error while reading the file.
+     */
+    private static long readRecord(InputStream in, byte[] record)
+            throws IOException {
+        int read = 0;
+        while (read < RECORD_LENGTH) {
+            int r = in.read(record, read, RECORD_LENGTH - read);
+            if (r == -1) {
+                return KeyDictionary.INVALID_KEY;
+            }
+            read += r;
+        }
+        return KeyDictionary.fromBytes(record);
+    }
+
+    /**
+     * Create the file header.
+     * @param size Number of keys.
+     * @param flags The flags.
+     * @return The header ({@link #HEADER_LENGTH} bytes).
+     */
+    private static byte[] createHeader(int size, int flags) {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = VERSION;
+        header[5] = (byte) flags;
+        header[8] = (byte) (size >>> 24);
+        header[9] = (byte) (size >>> 16);
+        header[10] = (byte) (size >>> 8);
+        header[11] = (byte) size;
+        return header;
+    }
+}
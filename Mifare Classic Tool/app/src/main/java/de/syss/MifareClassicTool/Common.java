@@ -19,6 +19,8 @@
 package de.syss.MifareClassicTool;
 
 import static de.syss.MifareClassicTool.Activities.Preferences.Preference.AutoCopyUID;
+import static de.syss.MifareClassicTool.Activities.Preferences.Preference.AutoDetectSectorCount;
+import static de.syss.MifareClassicTool.Activities.Preferences.Preference.UseCustomSectorCount;
 import static de.syss.MifareClassicTool.Activities.Preferences.Preference.UIDFormat;
 
 import android.app.Activity;
@@ -46,6 +48,10 @@ import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.TypedValue;
+import android.view.Gravity;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.core.content.FileProvider;
@@ -63,11 +69,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Locale;
 
 import de.syss.MifareClassicTool.Activities.IActivityThatReactsToSave;
@@ -109,6 +119,33 @@ public class Common extends Application {
      */
     public static final String TMP_DIR = "tmp";
 
+    /**
+     * The directory name of the key map cache. It contains the keys
+     * of all tags mapped in the past (one file per UID).
+     * (sub directory of {@link #HOME_DIR}.)
+     * @see KeyMapCache
+     */
+    public static final String KEY_MAP_CACHE_DIR = "key-map-cache";
+
+    /**
+     * The directory name of the logs (CSV files) written while
+     * watching value blocks.
+     * (sub directory of {@link #HOME_DIR}.)
+     * @see de.syss.MifareClassicTool.Activities.WatchValueBlocks
+     */
+    public static final String WATCH_LOGS_DIR = "watch-logs";
+
+    /**
+     * The directory name of the compiled standard key files. They are
+     * created at build time from the key files in the assets and are
+     * used instead of {@link #STD_KEYS} and {@link #STD_KEYS_EXTENDED}
+     * while mapping keys. They are kept out of {@link #KEYS_DIR} so that
+     * they are not listed in the key file selection.
+     * (sub directory of {@link #HOME_DIR}.)
+     * @see BinaryKeyDictionary
+     */
+    public static final String STD_KEYS_COMPILED_DIR = "compiled-key-files";
+
     /**
      * This file contains some standard MIFARE keys.
      * <ul>
@@ -133,6 +170,29 @@ public class Common extends Application {
      */
     public static final String UID_LOG_FILE = "uid-log-file.txt";
 
+    /**
+     * Checkpoint of the last (unfinished) key mapping process.
+     * It is stored outside of {@link #TMP_DIR} to survive
+     * a restart of the app.
+     * @see MappingCheckpoint
+     */
+    public static final String KEY_MAP_CHECKPOINT_FILE =
+            "key-map-checkpoint.txt";
+
+    /**
+     * Statistics of the keys found in the past (per sector and key type).
+     * @see KeyHitStatistics
+     */
+    public static final String KEY_HIT_STATISTICS_FILE =
+            "key-hit-statistics.txt";
+
+    /**
+     * Index of the key pairs (key A and key B of the same sector)
+     * found in the past.
+     * @see KeyPairIndex
+     */
+    public static final String KEY_PAIR_INDEX_FILE = "key-pair-index.txt";
+
     /**
      * Possible operations the on a MIFARE Classic Tag.
      */
@@ -181,6 +241,35 @@ public class Common extends Application {
      */
     private static int mKeyMapTo = -1;
 
+    /**
+     * Global storage for the sectors
+     * {@link de.syss.MifareClassicTool.Activities.KeyMapCreator} created
+     * a key map for. They lie between {@link #mKeyMapFrom} and
+     * {@link #mKeyMapTo}, but there might be gaps.
+     * @see #setKeyMapSectors(BitSet)
+     */
+    private static BitSet mKeyMapSectors;
+
+    /**
+     * Global storage for the sectors read by
+     * {@link de.syss.MifareClassicTool.Activities.KeyMapCreator} while
+     * creating the key map (if requested).
+     * @see de.syss.MifareClassicTool.Activities.KeyMapCreator#EXTRA_READ_WHILE_MAPPING
+     * @see MCReader#getReadSectors()
+     */
+    private static SparseArray<String[]> mRawDump = null;
+
+    /**
+     * Global storage for all keys found during this session (UID to
+     * key map). It is filled by each key mapping and used by
+     * {@link MCReader#resolveSectorKeys(int)}, so that a tag does not have
+     * to be mapped again for the next operation.
+     * @see #getSessionKeys(String, int)
+     * @see #addSessionKeys(String, SparseArray)
+     */
+    private static final HashMap<String, SparseArray<byte[][]>> mSessionKeys =
+            new HashMap<>();
+
     /**
      * The version code from the Android manifest.
      */
@@ -1068,6 +1157,21 @@ public class Common extends Application {
                 reader.close();
                 tagLost = true;
             }
+            if (!tagLost) {
+                SharedPreferences pref = getPreferences();
+                if (pref.getBoolean(AutoDetectSectorCount.toString(), false)
+                        && !pref.getBoolean(
+                                UseCustomSectorCount.toString(), false)) {
+                    // Detect the real sector count once, before the reader
+                    // is used for anything else (probing resets the
+                    // connection).
+                    reader.detectSectorCount();
+                    if (!reader.isConnected()) {
+                        reader.close();
+                        tagLost = true;
+                    }
+                }
+            }
             if (!tagLost) {
                 return reader;
             }
@@ -1404,6 +1508,20 @@ public class Common extends Application {
         return false;
     }
 
+    /**
+     * Decode the value of a value block. The value is stored as
+     * (signed, little-endian) 4 byte integer in the first 4 bytes
+     * of the block.
+     * @param hexValueBlock The value block as hex string (32 chars.).
+     * @return The value as integer.
+     * @see #isValueBlock(String)
+     */
+    public static int valueBlockToInt(String hexValueBlock) {
+        byte[] asBytes = hex2Bytes(hexValueBlock.substring(0, 8));
+        reverseByteArrayInPlace(asBytes);
+        return ByteBuffer.wrap(asBytes).getInt();
+    }
+
     /**
      * Check if all blocks (lines) contain valid data.
      * @param lines Blocks (incl. their sector header, e.g. "+Sector: 1").
@@ -1481,6 +1599,54 @@ public class Common extends Application {
         return 0;
     }
 
+    /**
+     * Convert the format of a dump.
+     * @param dump A dump in the same format a dump file is.
+     * (with no comments, not multiple dumps (appended) and validated by
+     * {@link #isValidDump(String[], boolean)})
+     * @return The dump in a key value pair format. The key is the sector
+     * number. The value is an String array. Each field of the array
+     * represents a block.
+     * @see #toDumpLines(SparseArray)
+     */
+    public static SparseArray<String[]> convertDumpFormat(String[] dump) {
+        SparseArray<String[]> ret = new SparseArray<>();
+        int i = 0;
+        int sector = 0;
+        for (String line : dump) {
+            if (line.startsWith("+")) {
+                String[] tmp = line.split(": ");
+                sector = Integer.parseInt(tmp[tmp.length-1]);
+                i = 0;
+                if (sector < 32) {
+                    ret.put(sector, new String[4]);
+                } else {
+                    ret.put(sector, new String[16]);
+                }
+            } else {
+                ret.get(sector)[i++] = line;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Convert a dump in key value pair format back to the lines of
+     * a dump file.
+     * @param dump The dump. The key is the sector number, the value the
+     * blocks of the sector.
+     * @return The lines of the dump (headers marked with "+").
+     * @see #convertDumpFormat(String[])
+     */
+    public static String[] toDumpLines(SparseArray<String[]> dump) {
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < dump.size(); i++) {
+            lines.add("+Sector: " + dump.keyAt(i));
+            Collections.addAll(lines, dump.valueAt(i));
+        }
+        return lines.toArray(new String[0]);
+    }
+
     /**
      * Check if the user input is a valid key file.
      * Empty lines, leading/tailing whitespaces and comments (marked with #)
@@ -2012,6 +2178,37 @@ public class Common extends Application {
         }
     }
 
+    /**
+     * Display a dialog with a progress indicator that tells the user not
+     * to remove the tag while reading from or writing to it.
+     * @param title The title of the dialog.
+     * @param text The text of the dialog.
+     * @param context The context in which the dialog will be shown.
+     * @return The dialog. It must be canceled once the work is done.
+     */
+    public static AlertDialog showDontRemoveTagDialog(int title, int text,
+            Context context) {
+        LinearLayout ll = new LinearLayout(context);
+        int pad = dpToPx(20);
+        ll.setPadding(pad, pad, pad, pad);
+        ll.setGravity(Gravity.CENTER);
+        ProgressBar progressBar = new ProgressBar(context);
+        progressBar.setIndeterminate(true);
+        progressBar.setPadding(0, 0, pad, 0);
+        TextView tv = new TextView(context);
+        tv.setText(text);
+        tv.setTextSize(18);
+        ll.addView(progressBar);
+        ll.addView(tv);
+        AlertDialog warning = new AlertDialog.Builder(context)
+                .setTitle(title)
+                .setView(ll)
+                .setCancelable(false)
+                .create();
+        warning.show();
+        return warning;
+    }
+
     /**
      * Convert Dips to pixels.
      * @param dp Dips.
@@ -2084,6 +2281,111 @@ public class Common extends Application {
     public static void setKeyMapRange (int from, int to){
         mKeyMapFrom = from;
         mKeyMapTo = to;
+        mKeyMapSectors = null;
+        if (from >= 0 && from <= to) {
+            mKeyMapSectors = new BitSet();
+            mKeyMapSectors.set(from, to + 1);
+        }
+    }
+
+    /**
+     * Set the sectors of the key map. Unlike
+     * {@link #setKeyMapRange(int, int)}, the sectors do not have to be
+     * contiguous (e.g. sector 1, 8 and 15). {@link #mKeyMapFrom} and
+     * {@link #mKeyMapTo} will be set to the first and last sector.
+     * @param sectors The sectors or null to reset them.
+     * @see #getKeyMapSectors()
+     */
+    public static void setKeyMapSectors(BitSet sectors) {
+        if (sectors == null || sectors.isEmpty()) {
+            setKeyMapRange(-1, -1);
+            return;
+        }
+        mKeyMapFrom = sectors.nextSetBit(0);
+        mKeyMapTo = sectors.length() - 1;
+        mKeyMapSectors = (BitSet) sectors.clone();
+    }
+
+    /**
+     * Get the sectors of the key map.
+     * @return The sectors (a copy) or null if there is no key map.
+     * @see #setKeyMapSectors(BitSet)
+     * @see #setKeyMapRange(int, int)
+     */
+    public static BitSet getKeyMapSectors() {
+        if (mKeyMapSectors == null) {
+            return null;
+        }
+        return (BitSet) mKeyMapSectors.clone();
+    }
+
+    /**
+     * Parse a list of sectors and sector ranges like "1, 8, 12 - 15".
+     * @param sectors The list of sectors. Sectors and ranges are separated
+     * by commas, ranges are written as "from - to".
+     * @param maxSector The highest sector allowed.
+     * @return The sectors or null if the list was empty or invalid.
+     * @see #sectorsToString(BitSet)
+     */
+    public static BitSet parseSectors(String sectors, int maxSector) {
+        if (sectors == null) {
+            return null;
+        }
+        BitSet ret = new BitSet();
+        for (String part : sectors.split(",")) {
+            part = part.trim();
+            if (part.equals("")) {
+                continue;
+            }
+            String[] fromAndTo = part.split("-", -1);
+            if (fromAndTo.length > 2) {
+                return null;
+            }
+            int from;
+            int to;
+            try {
+                from = Integer.parseInt(fromAndTo[0].trim());
+                to = (fromAndTo.length == 2)
+                        ? Integer.parseInt(fromAndTo[1].trim()) : from;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (from < 0 || from > to || to > maxSector) {
+                return null;
+            }
+            ret.set(from, to + 1);
+        }
+        if (ret.isEmpty()) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Convert a set of sectors into a list like "1, 8, 12 - 15".
+     * Contiguous sectors are written as range.
+     * @param sectors The sectors.
+     * @return The list of sectors (empty if there are no sectors).
+     * @see #parseSectors(String, int)
+     */
+    public static String sectorsToString(BitSet sectors) {
+        StringBuilder sb = new StringBuilder();
+        if (sectors == null) {
+            return "";
+        }
+        int from = sectors.nextSetBit(0);
+        while (from >= 0) {
+            int to = sectors.nextClearBit(from) - 1;
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(from);
+            if (to > from) {
+                sb.append(" - ").append(to);
+            }
+            from = sectors.nextSetBit(to + 1);
+        }
+        return sb.toString();
     }
 
     /**
@@ -2110,6 +2412,86 @@ public class Common extends Application {
         mKeyMap = value;
     }
 
+    /**
+     * Get the keys of a sector found during this session.
+     * @param uid The UID of the tag (hex).
+     * @param sector The sector.
+     * @return The keys (A/B, each of them might be null) or null if no
+     * key of this sector is known.
+     * @see #addSessionKeys(String, SparseArray)
+     */
+    public static synchronized byte[][] getSessionKeys(String uid,
+            int sector) {
+        SparseArray<byte[][]> keyMap = mSessionKeys.get(uid);
+        if (keyMap == null || keyMap.get(sector) == null) {
+            return null;
+        }
+        return keyMap.get(sector).clone();
+    }
+
+    /**
+     * Remember the keys of a tag for this session. Known keys of a sector
+     * will only be replaced by found keys (not by missing ones).
+     * @param uid The UID of the tag (hex).
+     * @param keyMap The keys (see {@link MCReader#getKeyMap()}).
+     * @see #getSessionKeys(String, int)
+     */
+    public static synchronized void addSessionKeys(String uid,
+            SparseArray<byte[][]> keyMap) {
+        if (uid == null || keyMap == null) {
+            return;
+        }
+        SparseArray<byte[][]> sessionKeys = mSessionKeys.get(uid);
+        if (sessionKeys == null) {
+            sessionKeys = new SparseArray<>();
+            mSessionKeys.put(uid, sessionKeys);
+        }
+        for (int i = 0; i < keyMap.size(); i++) {
+            byte[][] keys = keyMap.valueAt(i);
+            if (keys == null) {
+                continue;
+            }
+            byte[][] known = sessionKeys.get(keyMap.keyAt(i));
+            byte[][] merged = (known == null) ? new byte[2][] : known.clone();
+            for (int k = 0; k < 2; k++) {
+                if (keys[k] != null) {
+                    merged[k] = keys[k];
+                }
+            }
+            sessionKeys.put(keyMap.keyAt(i), merged);
+        }
+    }
+
+    /**
+     * Forget the session keys of a tag (e.g. because they are wrong).
+     * @param uid The UID of the tag (hex).
+     * @param sector The sector to forget the keys of.
+     */
+    public static synchronized void removeSessionKeys(String uid,
+            int sector) {
+        SparseArray<byte[][]> keyMap = mSessionKeys.get(uid);
+        if (keyMap != null) {
+            keyMap.remove(sector);
+        }
+    }
+
+    /**
+     * Get the sectors read while creating the key map.
+     * @return A raw dump (see {@link MCReader#getReadSectors()}) or
+     * null if the sectors were not read during the key mapping.
+     */
+    public static SparseArray<String[]> getRawDump() {
+        return mRawDump;
+    }
+
+    /**
+     * Set the sectors read while creating the key map.
+     * @param value A raw dump (see {@link MCReader#getReadSectors()}).
+     */
+    public static void setRawDump(SparseArray<String[]> value) {
+        mRawDump = value;
+    }
+
     /**
      * Set the compnent name of a new pending activity.
      * @param pendingActivity The new pending activities component name.
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Software implementation of the Crypto1 cipher of MIFARE Classic tags
+ * and of the LFSR state recovery from 32 bits of keystream. This is a
+ * port of the well known "crapto1" library (Copyright (C) 2008-2014
+ * bla), which is used by the Proxmark3 and most other tools.<br /><br />
+ * The 48 bit LFSR is stored in two halves, one with the odd and one with
+ * the even bits. This makes the filter function (which only takes odd
+ * bits) and the state recovery a lot faster.
+ * @author Gerhard Klostermeier
+ * @see KeyRecovery
+ */
+public class Crypto1 {
+
+    private static final int LF_POLY_ODD = 0x29CE5C;
+    private static final int LF_POLY_EVEN = 0x870804;
+
+    private int mOdd;
+    private int mEven;
+
+    /**
+     * Create a cipher state.
+     * @param odd The odd bits of the LFSR.
+     * @param even The even bits of the LFSR.
+     */
+    public Crypto1(int odd, int even) {
+        mOdd = odd;
+        mEven = even;
+    }
+
+    /**
+     * Create a cipher state and load a key into the LFSR.
+     * @param key The packed key (see {@link KeyDictionary}).
+     */
+    public Crypto1(long key) {
+        for (int i = 47; i > 0; i -= 2) {
+            mOdd = mOdd << 1 | bit(key, (i - 1) ^ 7);
+            mEven = mEven << 1 | bit(key, i ^ 7);
+        }
+    }
+
+    /**
+     * Create a copy of a cipher state.
+     * @return The copy.
+     */
+    public Crypto1 copy() {
+        return new Crypto1(mOdd, mEven);
+    }
+
+    /**
+     * Get the key (the LFSR content). After rolling back the cipher to
+     * the beginning of the authentication, this is the sector key.
+     * @return The packed key.
+     */
+    public long getLfsr() {
+        long lfsr = 0;
+        for (int i = 23; i >= 0; --i) {
+            lfsr = lfsr << 1 | bit(mOdd, i ^ 3);
+            lfsr = lfsr << 1 | bit(mEven, i ^ 3);
+        }
+        return lfsr;
+    }
+
+    /**
+     * Clock the cipher once.
+     * @param in The input bit.
+     * @param isEncrypted True if the input bit is encrypted.
+     * @return The keystream bit.
+     */
+    public int bit(int in, boolean isEncrypted) {
+        int ret = filter(mOdd);
+        int feedIn = ret & (isEncrypted ? 1 : 0);
+        feedIn ^= (in != 0) ? 1 : 0;
+        feedIn ^= LF_POLY_ODD & mOdd;
+        feedIn ^= LF_POLY_EVEN & mEven;
+        mEven = mEven << 1 | parity(feedIn);
+        int t = mOdd;
+        mOdd = mEven;
+        mEven = t;
+        return ret;
+    }
+
+    /**
+     * Clock the cipher 32 times (one word, MIFARE bit order).
+     * @param in The input word.
+     * @param isEncrypted True if the input is encrypted.
+     * @return The keystream word.
+     */
+    public int word(int in, boolean isEncrypted) {
+        int ret = 0;
+        for (int i = 0; i < 32; ++i) {
+            ret |= bit(beBit(in, i), isEncrypted) << (i ^ 24);
+        }
+        return ret;
+    }
+
+    /**
+     * Clock the cipher back once.
+     * @param in The input bit that was used.
+     * @param isEncrypted True if the input bit was encrypted.
+     * @return The keystream bit.
+     */
+    public int rollbackBit(int in, boolean isEncrypted) {
+        mOdd &= 0xFFFFFF;
+        int t = mOdd;
+        mOdd = mEven;
+        mEven = t;
+        int out = mEven & 1;
+        mEven >>>= 1;
+        out ^= LF_POLY_EVEN & mEven;
+        out ^= LF_POLY_ODD & mOdd;
+        out ^= (in != 0) ? 1 : 0;
+        int ret = filter(mOdd);
+        out ^= ret & (isEncrypted ? 1 : 0);
+        mEven |= parity(out) << 23;
+        return ret;
+    }
+
+    /**
+     * Clock the cipher back 32 times (one word).
+     * @param in The input word that was used.
+     * @param isEncrypted True if the input was encrypted.
+     * @return The keystream word.
+     */
+    public int rollbackWord(int in, boolean isEncrypted) {
+        int ret = 0;
+        for (int i = 31; i >= 0; --i) {
+            ret |= rollbackBit(beBit(in, i), isEncrypted) << (i ^ 24);
+        }
+        return ret;
+    }
+
+    /**
+     * Calculate the successor of a tag nonce (the 16 bit PRNG of the tag).
+     * @param x The nonce.
+     * @param n Number of clocks.
+     * @return The n-th successor of the nonce.
+     */
+    public static int prngSuccessor(int x, int n) {
+        x = Integer.reverseBytes(x);
+        while (n-- > 0) {
+            x = x >>> 1 | (x >>> 16 ^ x >>> 18 ^ x >>> 19 ^ x >>> 21) << 31;
+        }
+        return Integer.reverseBytes(x);
+    }
+
+    /**
+     * Recover all LFSR states that could have generated 32 bits of
+     * keystream (while the given input was clocked in).
+     * @param ks2 The keystream.
+     * @param in The input during the generation of the keystream.
+     * @param pool The pool to spread the work over all cores or null
+     * to do everything in the calling thread.
+     * @return The states right after the keystream, each of them packed
+     * as (odd &lt;&lt; 32 | even).
+     */
+    public static long[] lfsrRecovery32(int ks2, int in, ForkJoinPool pool) {
+        int oks = 0;
+        int eks = 0;
+        for (int i = 31; i >= 0; i -= 2) {
+            oks = oks << 1 | beBit(ks2, i);
+        }
+        for (int i = 30; i >= 0; i -= 2) {
+            eks = eks << 1 | beBit(ks2, i);
+        }
+        // All states that produce the first keystream bit of each half.
+        int[] odd = new int[(1 << 20) + 1];
+        int[] even = new int[(1 << 20) + 1];
+        int oddSize = 0;
+        int evenSize = 0;
+        for (int i = 1 << 20; i >= 0; --i) {
+            if (filter(i) == (oks & 1)) {
+                odd[oddSize++] = i;
+            }
+            if (filter(i) == (eks & 1)) {
+                even[evenSize++] = i;
+            }
+        }
+        odd = Arrays.copyOf(odd, oddSize);
+        even = Arrays.copyOf(even, evenSize);
+        // The next 8 bits of keystream do not depend on the input.
+        for (int i = 0; i < 4; i++) {
+            oks >>>= 1;
+            eks >>>= 1;
+            odd = extendTable(odd, oks & 1, 0, 0, 0, false);
+            even = extendTable(even, eks & 1, 0, 0, 0, false);
+        }
+        in = (in >>> 16 & 0xFF) | (in << 16) | (in & 0xFF00);
+        RecoverTask task = new RecoverTask(odd, oks, even, eks, 11, in << 1,
+                pool != null);
+        if (pool == null) {
+            return task.compute();
+        }
+        return ForkJoinTask.inForkJoinPool() ? task.invoke()
+                : pool.invoke(task);
+    }
+
+    /**
+     * Extend a state table by one bit of keystream. Each state is either
+     * kept (with the only fitting next bit), duplicated (both bits fit)
+     * or dropped (no bit fits). The result is a new table.
+     * @param tbl The table.
+     * @param bit The keystream bit.
+     * @param m1 First feedback mask.
+     * @param m2 Second feedback mask.
+     * @param in The input bits.
+     * @param contribution True to keep track of the contribution of the
+     * states to the feedback (upper 8 bits).
+     * @return The extended table.
+     */
+    private static int[] extendTable(int[] tbl, int bit, int m1, int m2,
+            int in, boolean contribution) {
+        in <<= 24;
+        int[] out = new int[tbl.length * 2];
+        int n = 0;
+        for (int v : tbl) {
+            v <<= 1;
+            int f0 = filter(v);
+            if (f0 != filter(v | 1)) {
+                out[n++] = v | (f0 ^ bit);
+            } else if (f0 == bit) {
+                out[n++] = v;
+                out[n++] = v | 1;
+            }
+        }
+        if (contribution) {
+            for (int i = 0; i < n; i++) {
+                out[i] = updateContribution(out[i], m1, m2) ^ in;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Update the feedback contribution bits (upper 8 bits) of a state.
+     * @param item The state.
+     * @param mask1 First feedback mask.
+     * @param mask2 Second feedback mask.
+     * @return The updated state.
+     */
+    private static int updateContribution(int item, int mask1, int mask2) {
+        int p = item >>> 25;
+        p = p << 1 | parity(item & mask1);
+        p = p << 1 | parity(item & mask2);
+        return p << 24 | (item & 0xFFFFFF);
+    }
+
+    /**
+     * Find the first entry with the same upper 8 bits as the last entry.
+     * @param tbl The (sorted) table.
+     * @param tail Index of the last entry.
+     * @return Index of the first entry of the group.
+     */
+    private static int groupStart(int[] tbl, int tail) {
+        int group = tbl[tail] >>> 24;
+        while (tail > 0 && (tbl[tail - 1] >>> 24) == group) {
+            tail--;
+        }
+        return tail;
+    }
+
+    /**
+     * Sort a table (unsigned).
+     * @param tbl The table.
+     */
+    private static void sortUnsigned(int[] tbl) {
+        // Flipping the sign bit maps unsigned order to signed order.
+        for (int i = 0; i < tbl.length; i++) {
+            tbl[i] ^= Integer.MIN_VALUE;
+        }
+        Arrays.sort(tbl);
+        for (int i = 0; i < tbl.length; i++) {
+            tbl[i] ^= Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * The non-linear filter function of Crypto1 (on 20 odd LFSR bits).
+     * @param x The odd bits of the LFSR.
+     * @return The output bit.
+     */
+    static int filter(int x) {
+        int f;
+        f  = 0xF22C0 >>> (x & 0xF) & 16;
+        f |= 0x6C9C0 >>> (x >>> 4 & 0xF) & 8;
+        f |= 0x3C8B0 >>> (x >>> 8 & 0xF) & 4;
+        f |= 0x1E458 >>> (x >>> 12 & 0xF) & 2;
+        f |= 0x0D938 >>> (x >>> 16 & 0xF) & 1;
+        return 0xEC57E80A >>> f & 1;
+    }
+
+    private static int parity(int x) {
+        return Integer.bitCount(x) & 1;
+    }
+
+    private static int bit(long x, int n) {
+        return (int) (x >>> n) & 1;
+    }
+
+    private static int bit(int x, int n) {
+        return x >>> n & 1;
+    }
+
+    private static int beBit(int x, int n) {
+        return bit(x, n ^ 24);
+    }
+
+    /**
+     * Extend the odd and the even states until the whole keystream is
+     * used. Only states with the same feedback contribution (upper 8 bits)
+     * can belong together, so the tables are split into matching groups.
+     * The groups are independent of each other and are handled by
+     * sub-tasks.
+     */
+    private static class RecoverTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Groups with fewer states (odd * even) are not split further
+         * into sub-tasks.
+         */
+        private static final long MIN_FORK_SIZE = 1 << 12;
+
+        private final int[] mOdd;
+        private final int[] mEven;
+        private final int mOks;
+        private final int mEks;
+        private final int mRem;
+        private final int mIn;
+        private final boolean mFork;
+
+        RecoverTask(int[] odd, int oks, int[] even, int eks, int rem,
+                int in, boolean fork) {
+            mOdd = odd;
+            mOks = oks;
+            mEven = even;
+            mEks = eks;
+            mRem = rem;
+            mIn = in;
+            mFork = fork;
+        }
+
+        @Override
+        protected long[] compute() {
+            int[] odd = mOdd;
+            int[] even = mEven;
+            int oks = mOks;
+            int eks = mEks;
+            int rem = mRem;
+            int in = mIn;
+            if (rem == -1) {
+                long[] states = new long[odd.length * even.length];
+                int n = 0;
+                for (int e : even) {
+                    e = e << 1 ^ parity(e & LF_POLY_EVEN)
+                            ^ (((in & 4) != 0) ? 1 : 0);
+                    for (int o : odd) {
+                        int stateOdd = e ^ parity(o & LF_POLY_ODD);
+                        states[n++] = ((long) stateOdd << 32)
+                                | (o & 0xFFFFFFFFL);
+                    }
+                }
+                return states;
+            }
+            for (int i = 0; i < 4 && rem-- != 0; i++) {
+                oks >>>= 1;
+                eks >>>= 1;
+                in >>>= 2;
+                odd = extendTable(odd, oks & 1, LF_POLY_EVEN << 1 | 1,
+                        LF_POLY_ODD << 1, 0, true);
+                if (odd.length == 0) {
+                    return new long[0];
+                }
+                even = extendTable(even, eks & 1, LF_POLY_ODD,
+                        LF_POLY_EVEN << 1 | 1, in & 3, true);
+                if (even.length == 0) {
+                    return new long[0];
+                }
+            }
+            sortUnsigned(odd);
+            sortUnsigned(even);
+            ArrayList<RecoverTask> forked = new ArrayList<>();
+            ArrayList<long[]> results = new ArrayList<>();
+            int oTail = odd.length - 1;
+            int eTail = even.length - 1;
+            while (oTail >= 0 && eTail >= 0) {
+                int oGroup = odd[oTail] >>> 24;
+                int eGroup = even[eTail] >>> 24;
+                if (oGroup == eGroup) {
+                    int o = groupStart(odd, oTail);
+                    int e = groupStart(even, eTail);
+                    RecoverTask task = new RecoverTask(
+                            Arrays.copyOfRange(odd, o, oTail + 1), oks,
+                            Arrays.copyOfRange(even, e, eTail + 1), eks,
+                            rem, in, mFork);
+                    if (mFork && (long) (oTail - o + 1) * (eTail - e + 1)
+                            >= MIN_FORK_SIZE) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        results.add(task.compute());
+                    }
+                    oTail = o - 1;
+                    eTail = e - 1;
+                } else if (oGroup > eGroup) {
+                    oTail = groupStart(odd, oTail) - 1;
+                } else {
+                    eTail = groupStart(even, eTail) - 1;
+                }
+            }
+            for (RecoverTask task : forked) {
+                results.add(task.join());
+            }
+            int size = 0;
+            for (long[] result : results) {
+                size += result.length;
+            }
+            long[] states = new long[size];
+            int n = 0;
+            for (long[] result : results) {
+                System.arraycopy(result, 0, states, n, result.length);
+                n += result.length;
+            }
+            return states;
+        }
+    }
+}
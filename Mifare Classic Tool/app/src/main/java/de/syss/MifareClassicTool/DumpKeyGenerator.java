@@ -0,0 +1,203 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Key candidates taken from the sector trailers of dumps. When a dump is
+ * written back to a tag (e.g. a tag and its own backup), the keys of
+ * the dump are most likely the keys on the tag. Unlike the generators of
+ * {@link KeyGenerators}, the candidates depend on the sector: for each
+ * sector only the keys of the trailers of this very sector are
+ * returned (first the ones of the dump to write, then the ones of
+ * related dumps).<br /><br />
+ * The candidates must be added before the key mapping starts. After that,
+ * this generator is only read (and therefore thread-safe).
+ * @author Gerhard Klostermeier
+ * @see MCReader#setKeyGenerators(KeyGenerator[])
+ */
+public class DumpKeyGenerator implements KeyGenerator {
+
+    private static final String LOG_TAG =
+            DumpKeyGenerator.class.getSimpleName();
+
+    private final SparseArray<KeyDictionary> mSectorKeys = new SparseArray<>();
+    private int mKeyCount = 0;
+
+    @Override
+    public String getId() {
+        return "dump-keys";
+    }
+
+    @Override
+    public int getKeyCount() {
+        return mKeyCount;
+    }
+
+    @Override
+    public long getKey(int index, byte[] uid, int sector, byte[] block0) {
+        KeyDictionary keys = mSectorKeys.get(sector);
+        if (keys == null || index >= keys.size()) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        return keys.get(index);
+    }
+
+    /**
+     * Add the keys of the sector trailers of a dump. Unknown keys
+     * ({@link MCReader#NO_KEY}) will be ignored.
+     * @param dump The dump (format: headers (sectors) marked with "+").
+     * Might contain multiple dumps (appended by the dump editor).
+     * @return Number of sector trailers with at least one known key.
+     */
+    public int addDump(String[] dump) {
+        int trailers = 0;
+        int sector = -1;
+        String lastBlock = null;
+        for (String line : dump) {
+            line = line.trim();
+            if (line.startsWith("+")) {
+                // The last block of the previous sector is the trailer.
+                if (addTrailer(sector, lastBlock)) {
+                    trailers++;
+                }
+                String[] tmp = line.split(": ");
+                try {
+                    sector = Integer.parseInt(tmp[tmp.length-1]);
+                } catch (NumberFormatException e) {
+                    sector = -1;
+                }
+                lastBlock = null;
+            } else if (line.length() == 32) {
+                lastBlock = line;
+            } else {
+                lastBlock = null;
+            }
+        }
+        if (addTrailer(sector, lastBlock)) {
+            trailers++;
+        }
+        return trailers;
+    }
+
+    /**
+     * Add the keys of all dumps of a tag. A dump belongs to the tag if
+     * its manufacturer block starts with the UID of the tag.
+     * @param dumpsDir The directory with the dumps
+     * (see {@link Common#DUMPS_DIR}).
+     * @param uid The UID of the tag (hex).
+     * @return Number of related dumps.
+     */
+    public int addRelatedDumps(File dumpsDir, String uid) {
+        File[] dumps = (dumpsDir == null) ? null : dumpsDir.listFiles();
+        if (dumps == null || uid == null || uid.equals("")) {
+            return 0;
+        }
+        int related = 0;
+        for (File dump : dumps) {
+            if (!dump.isFile()) {
+                continue;
+            }
+            String[] lines = readDump(dump);
+            if (lines != null && isDumpOf(lines, uid)) {
+                addDump(lines);
+                related++;
+            }
+        }
+        return related;
+    }
+
+    /**
+     * Check if a dump belongs to a tag.
+     * @param dump The dump.
+     * @param uid The UID of the tag (hex).
+     * @return True if the manufacturer block (first block of sector 0)
+     * starts with the UID.
+     */
+    private static boolean isDumpOf(String[] dump, String uid) {
+        for (int i = 0; i < dump.length - 1; i++) {
+            if (dump[i].trim().equals("+Sector: 0")
+                    && dump[i+1].trim().regionMatches(
+                            true, 0, uid, 0, uid.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a dump file.
+     * @param dump The dump file.
+     * @return The lines of the dump or null on error.
+     */
+    private static String[] readDump(File dump) {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(dump))) {
+            ArrayList<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines.toArray(new String[0]);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading dump " + dump.getName() + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Add the keys of a sector trailer.
+     * @param sector The sector of the trailer.
+     * @param trailer The sector trailer (hex) or null.
+     * @return True if at least one key of the trailer was known.
+     */
+    private boolean addTrailer(int sector, String trailer) {
+        if (sector < 0 || trailer == null) {
+            return false;
+        }
+        boolean added = false;
+        long[] keys = new long[] {
+                KeyDictionary.parseKey(trailer.substring(0, 12)),
+                KeyDictionary.parseKey(trailer.substring(20))};
+        for (long key : keys) {
+            if (key == KeyDictionary.INVALID_KEY) {
+                continue;
+            }
+            KeyDictionary sectorKeys = mSectorKeys.get(sector);
+            if (sectorKeys == null) {
+                sectorKeys = new KeyDictionary(4);
+                mSectorKeys.put(sector, sectorKeys);
+            }
+            if (!sectorKeys.contains(key)) {
+                sectorKeys.add(key);
+                mKeyCount = Math.max(mKeyCount, sectorKeys.size());
+            }
+            added = true;
+        }
+        return added;
+    }
+}
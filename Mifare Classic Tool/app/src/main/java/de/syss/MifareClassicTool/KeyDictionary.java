@@ -0,0 +1,550 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An ordered list of MIFARE Classic keys. Each 48 bit key is packed into
+ * a primitive long, so that the list can be walked during the key mapping
+ * without any String parsing or object allocation. Use
+ * {@link #toBytes(long, byte[])} with a reusable buffer to get the
+ * key in the form needed for the authentication.
+ * Large compiled dictionaries ({@link BinaryKeyDictionary}) can be attached
+ * with {@link #addMapped(BinaryKeyDictionary)}. Their keys stay in the
+ * mapped file and follow the keys held in memory.
+ * A read-only view of another dictionary ({@link #view(KeyDictionary)})
+ * shares the keys of the other dictionary instead of copying them. Keys
+ * moved to the front of a view are copied, the shared keys are never
+ * changed.
+ * This class has no Android dependencies.
+ * @author Gerhard Klostermeier
+ */
+public class KeyDictionary {
+
+    /**
+     * Length of a MIFARE Classic key in bytes.
+     */
+    public static final int KEY_LENGTH = 6;
+    /**
+     * Returned by {@link #parseKey(CharSequence)} if the input
+     * is not a valid key. Valid keys are always positive.
+     */
+    public static final long INVALID_KEY = -1;
+    /**
+     * The default key (FFFFFFFFFFFF) in its packed form.
+     */
+    public static final long DEFAULT_KEY = 0xFFFFFFFFFFFFL;
+
+    private long[] mKeys;
+    private int mSize = 0;
+    /**
+     * Keys shared with another dictionary (read-only). They follow the
+     * in-memory keys of this dictionary.
+     * @see #view(KeyDictionary)
+     */
+    private long[] mShared = new long[0];
+    private int mSharedSize = 0;
+    /**
+     * Keys of the read-only parts (shared keys and attached compiled
+     * dictionaries) that were copied to the in-memory part (sorted).
+     * @see #isShadowed(int)
+     */
+    private long[] mShadowed = new long[0];
+    private int mShadowedSize = 0;
+    private final ArrayList<BinaryKeyDictionary> mMapped = new ArrayList<>();
+    private int mMappedSize = 0;
+
+    /**
+     * Create an empty key dictionary.
+     */
+    public KeyDictionary() {
+        this(1024);
+    }
+
+    /**
+     * Create an empty key dictionary.
+     * @param initialCapacity Number of keys that can be added without
+     * growing the internal array.
+     */
+    public KeyDictionary(int initialCapacity) {
+        mKeys = new long[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Create a copy of a key dictionary. Attached compiled dictionaries
+     * are shared (they can not be changed anyway).
+     * @param other The dictionary to copy.
+     */
+    public KeyDictionary(KeyDictionary other) {
+        mKeys = Arrays.copyOf(other.mKeys, Math.max(other.mSize, 16));
+        mSize = other.mSize;
+        mShared = other.mShared;
+        mSharedSize = other.mSharedSize;
+        mShadowed = Arrays.copyOf(other.mShadowed, other.mShadowedSize);
+        mShadowedSize = other.mShadowedSize;
+        mMapped.addAll(other.mMapped);
+        mMappedSize = other.mMappedSize;
+    }
+
+    /**
+     * Create a view of a dictionary. The view shares the keys of the
+     * other dictionary (no copy), so many views of a large dictionary do
+     * not need more memory. Keys can be moved to the front of the view
+     * or inserted (see {@link #moveOrInsert(long, int)}) without changing
+     * the other dictionary. The other dictionary must not be changed
+     * as long as the view is in use.
+     * @param other The dictionary to share.
+     * @return A view of the dictionary.
+     */
+    public static KeyDictionary view(KeyDictionary other) {
+        if (other.mSharedSize > 0) {
+            // Already a view. Share the same keys.
+            return new KeyDictionary(other);
+        }
+        KeyDictionary view = new KeyDictionary(16);
+        view.mShared = other.mKeys;
+        view.mSharedSize = other.mSize;
+        view.mMapped.addAll(other.mMapped);
+        view.mMappedSize = other.mMappedSize;
+        return view;
+    }
+
+    /**
+     * Get the number of keys in this dictionary (including the keys of
+     * attached compiled dictionaries).
+     * @return The number of keys.
+     */
+    public int size() {
+        return mSize + mSharedSize + mMappedSize;
+    }
+
+    /**
+     * Get the key at the given position.
+     * @param index Position of the key.
+     * @return The packed key.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(
+                    "Key index out of bounds: " + index);
+        }
+        if (index < mSize) {
+            return mKeys[index];
+        }
+        index -= mSize;
+        if (index < mSharedSize) {
+            return mShared[index];
+        }
+        index -= mSharedSize;
+        for (BinaryKeyDictionary mapped : mMapped) {
+            if (index < mapped.size()) {
+                return mapped.get(index);
+            }
+            index -= mapped.size();
+        }
+        // Not reachable.
+        throw new IndexOutOfBoundsException(
+                "Key index out of bounds: " + index);
+    }
+
+    /**
+     * Attach a compiled dictionary. Its keys are not copied into memory,
+     * they are read from the mapped file on demand and follow all other
+     * keys (including keys added later on). Keys moved to the front
+     * (see {@link #move(int, int)}) are copied into memory, the mapped
+     * file itself is never changed.
+     * @param mapped The compiled dictionary.
+     */
+    public void addMapped(BinaryKeyDictionary mapped) {
+        mMapped.add(mapped);
+        mMappedSize += mapped.size();
+    }
+
+    /**
+     * Copy all keys of a compiled dictionary into the in-memory part of
+     * this dictionary (in their order). Use this for small, ranked
+     * dictionaries, where the order matters more than the memory.
+     * @param compiled The compiled dictionary.
+     * @throws OutOfMemoryError If there is not enough memory to grow
+     * the dictionary.
+     * @see #addMapped(BinaryKeyDictionary)
+     */
+    public void addAll(BinaryKeyDictionary compiled) {
+        ensureCapacity(mSize + compiled.size());
+        for (int i = 0; i < compiled.size(); i++) {
+            mKeys[mSize++] = compiled.get(i);
+        }
+    }
+
+    /**
+     * Append a key at the end of the in-memory part of the dictionary
+     * (before the shared keys of a view and the keys of attached compiled
+     * dictionaries).
+     * Duplicates are not checked (see {@link #removeDuplicates()}).
+     * @param key The packed key.
+     * @throws OutOfMemoryError If there is not enough memory to grow
+     * the dictionary.
+     */
+    public void add(long key) {
+        ensureCapacity(mSize + 1);
+        mKeys[mSize++] = key;
+    }
+
+    /**
+     * Insert a key at the given position.
+     * All following keys will be shifted by one.
+     * @param index Position of the new key.
+     * @param key The packed key.
+     */
+    public void insert(int index, long key) {
+        if (index < 0 || index > mSize) {
+            throw new IndexOutOfBoundsException(
+                    "Key index out of bounds: " + index);
+        }
+        ensureCapacity(mSize + 1);
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        mKeys[index] = key;
+        mSize++;
+    }
+
+    /**
+     * Find the first position of a key.
+     * @param key The packed key.
+     * @return The position of the key or -1 if it was not found.
+     */
+    public int indexOf(long key) {
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        for (int i = 0; i < mSharedSize; i++) {
+            if (mShared[i] == key) {
+                return mSize + i;
+            }
+        }
+        int offset = mSize + mSharedSize;
+        for (BinaryKeyDictionary mapped : mMapped) {
+            int index = mapped.indexOf(key);
+            if (index != -1) {
+                return offset + index;
+            }
+            offset += mapped.size();
+        }
+        return -1;
+    }
+
+    /**
+     * Check if this dictionary contains a key.
+     * @param key The packed key.
+     * @return True if the key is in the dictionary. False otherwise.
+     */
+    public boolean contains(long key) {
+        return indexOf(key) != -1;
+    }
+
+    /**
+     * Check if the key at a position of a read-only part (shared keys or
+     * attached compiled dictionaries) was copied to the front. Such a key
+     * has already been tried at its new position and can be skipped.
+     * @param index Position of the key.
+     * @return True if the key is a copy of an in-memory key.
+     * @see #move(int, int)
+     */
+    public boolean isShadowed(int index) {
+        return index >= mSize && mShadowedSize > 0 && Arrays.binarySearch(
+                mShadowed, 0, mShadowedSize, get(index)) >= 0;
+    }
+
+    /**
+     * Remember a key of a read-only part that was copied to the
+     * in-memory part.
+     * @param key The packed key.
+     * @see #isShadowed(int)
+     */
+    private void shadow(long key) {
+        int pos = Arrays.binarySearch(mShadowed, 0, mShadowedSize, key);
+        if (pos >= 0) {
+            return;
+        }
+        pos = -pos - 1;
+        if (mShadowedSize == mShadowed.length) {
+            mShadowed = Arrays.copyOf(mShadowed,
+                    Math.max(16, mShadowedSize * 2));
+        }
+        System.arraycopy(mShadowed, pos, mShadowed, pos + 1,
+                mShadowedSize - pos);
+        mShadowed[pos] = key;
+        mShadowedSize++;
+    }
+
+    /**
+     * Move a key from one position to another. The keys between these
+     * positions will be shifted by one. If the key is part of an attached
+     * compiled dictionary or of the shared keys, it will be copied to the
+     * new position instead (these parts can not be changed, see
+     * {@link #isShadowed(int)}).
+     * @param from Current position of the key.
+     * @param to New position of the key (within the in-memory part).
+     */
+    public void move(int from, int to) {
+        if (from >= mSize && from < size() && to >= 0 && to <= mSize) {
+            long key = get(from);
+            insert(to, key);
+            shadow(key);
+            return;
+        }
+        if (from < 0 || from >= mSize || to < 0 || to >= mSize) {
+            throw new IndexOutOfBoundsException(
+                    "Key index out of bounds: " + from + " -> " + to);
+        }
+        if (from == to) {
+            return;
+        }
+        long key = mKeys[from];
+        if (from > to) {
+            System.arraycopy(mKeys, to, mKeys, to + 1, from - to);
+        } else {
+            System.arraycopy(mKeys, from + 1, mKeys, from, to - from);
+        }
+        mKeys[to] = key;
+    }
+
+    /**
+     * Move a key to the given position. If the key is not
+     * part of the dictionary, it will be inserted.
+     * @param key The packed key.
+     * @param to New position of the key.
+     */
+    public void moveOrInsert(long key, int to) {
+        int from = indexOf(key);
+        if (from == -1 || from >= mSize) {
+            insert(Math.min(to, mSize), key);
+            if (from != -1) {
+                shadow(key);
+            }
+        } else {
+            move(from, Math.min(to, mSize - 1));
+        }
+    }
+
+    /**
+     * Remove all duplicate keys from the in-memory part. The first
+     * occurrence of a key is kept, so the order of the dictionary stays
+     * intact. Attached compiled dictionaries are free of duplicates by
+     * design and are not checked against the in-memory keys.
+     * @return Number of keys that were removed.
+     */
+    public int removeDuplicates() {
+        if (mSize < 2) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mKeys, mSize);
+        Arrays.sort(sorted);
+        int unique = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[unique - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        if (unique == mSize) {
+            return 0;
+        }
+        boolean[] seen = new boolean[unique];
+        int newSize = 0;
+        for (int i = 0; i < mSize; i++) {
+            int pos = Arrays.binarySearch(sorted, 0, unique, mKeys[i]);
+            if (!seen[pos]) {
+                seen[pos] = true;
+                mKeys[newSize++] = mKeys[i];
+            }
+        }
+        int removed = mSize - newSize;
+        mSize = newSize;
+        return removed;
+    }
+
+    /**
+     * Calculate a fingerprint of the keys and their order. Two
+     * dictionaries with the same keys in the same order have the
+     * same fingerprint (FNV-1a over all keys).
+     * @return The fingerprint of this dictionary.
+     */
+    public long fingerprint() {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < mSize; i++) {
+            hash ^= mKeys[i];
+            hash *= 0x100000001B3L;
+        }
+        for (int i = 0; i < mSharedSize; i++) {
+            hash ^= mShared[i];
+            hash *= 0x100000001B3L;
+        }
+        for (BinaryKeyDictionary mapped : mMapped) {
+            for (int i = 0; i < mapped.size(); i++) {
+                hash ^= mapped.get(i);
+                hash *= 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Read all keys of a key file and append them to this dictionary.
+     * The file is read line by line. Empty lines and comments
+     * (starting with "#") will be ignored, as well as lines that
+     * are not a valid key. No line is kept in memory.
+     * @param file The key file.
+     * @return Number of keys added or -1 if the file could not be read.
+     * @throws OutOfMemoryError If there is not enough memory to hold
+     * all the keys.
+     */
+    public int addFromFile(File file) {
+        int added = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long key = parseKey(line);
+                if (key != INVALID_KEY) {
+                    add(key);
+                    added++;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return added;
+    }
+
+    /**
+     * Parse a key in its hex form (12 hex chars). Leading/tailing
+     * whitespaces and comments (starting with "#") will be ignored.
+     * This does not use regular expressions or create any objects.
+     * @param line The line containing the key.
+     * @return The packed key or {@link #INVALID_KEY} if the line
+     * does not contain a valid key.
+     */
+    public static long parseKey(CharSequence line) {
+        if (line == null) {
+            return INVALID_KEY;
+        }
+        int start = 0;
+        int end = line.length();
+        // Ignore the comment.
+        for (int i = 0; i < end; i++) {
+            if (line.charAt(i) == '#') {
+                end = i;
+                break;
+            }
+        }
+        // Ignore leading/tailing whitespaces.
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start != KEY_LENGTH * 2) {
+            return INVALID_KEY;
+        }
+        long key = 0;
+        for (int i = start; i < end; i++) {
+            int nibble = Character.digit(line.charAt(i), 16);
+            if (nibble == -1) {
+                return INVALID_KEY;
+            }
+            key = (key << 4) | nibble;
+        }
+        return key;
+    }
+
+    /**
+     * Pack a key (6 bytes) into a long.
+     * @param key The key as byte array.
+     * @return The packed key or {@link #INVALID_KEY} if the key
+     * is not 6 bytes long.
+     */
+    public static long fromBytes(byte[] key) {
+        if (key == null || key.length != KEY_LENGTH) {
+            return INVALID_KEY;
+        }
+        long ret = 0;
+        for (byte b : key) {
+            ret = (ret << 8) | (b & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Unpack a key into an existing buffer. This does not
+     * allocate any memory and is therefore used in the mapping loop.
+     * @param key The packed key.
+     * @param out Buffer with at least 6 bytes.
+     * @return The given buffer.
+     */
+    public static byte[] toBytes(long key, byte[] out) {
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            out[i] = (byte) key;
+            key >>>= 8;
+        }
+        return out;
+    }
+
+    /**
+     * Unpack a key into a new byte array.
+     * @param key The packed key.
+     * @return The key as byte array (6 bytes).
+     */
+    public static byte[] toBytes(long key) {
+        return toBytes(key, new byte[KEY_LENGTH]);
+    }
+
+    /**
+     * Convert a packed key into its hex form (12 chars, upper case).
+     * @param key The packed key.
+     * @return The key as hex string.
+     */
+    public static String toHex(long key) {
+        String hex = Long.toHexString(key).toUpperCase();
+        StringBuilder sb = new StringBuilder(KEY_LENGTH * 2);
+        for (int i = hex.length(); i < KEY_LENGTH * 2; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    /**
+     * Make sure the internal array can hold the given number of keys.
+     * @param capacity Minimum number of keys.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            int newCapacity = Math.max(capacity,
+                    mKeys.length + (mKeys.length >> 1));
+            mKeys = Arrays.copyOf(mKeys, newCapacity);
+        }
+    }
+}
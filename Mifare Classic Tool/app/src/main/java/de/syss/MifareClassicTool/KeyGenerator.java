@@ -0,0 +1,60 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+/**
+ * A source of key candidates that are calculated on the fly instead of
+ * being read from a key file. This is meant for systems that derive their
+ * keys from the UID, the sector or the manufacturer block. No key is
+ * stored, each candidate is calculated once it is needed (see
+ * {@link MCReader#setKeyGenerators(KeyGenerator[])}).<br /><br />
+ * Implementations must be stateless (or at least thread-safe) and must
+ * always return the same key for the same input.
+ * @author Gerhard Klostermeier
+ * @see KeyGenerators
+ */
+public interface KeyGenerator {
+
+    /**
+     * Get the unique ID of this generator. It is used to remember the
+     * selected generators and as part of the mapping checkpoint.
+     * @return The ID of the generator (e.g. "uid-padding").
+     */
+    String getId();
+
+    /**
+     * Get the number of key candidates per sector.
+     * @return The number of keys this generator produces for one sector.
+     */
+    int getKeyCount();
+
+    /**
+     * Calculate a key candidate.
+     * @param index The index of the candidate
+     * (0 to {@link #getKeyCount()}-1).
+     * @param uid The UID of the tag.
+     * @param sector The sector the key is for.
+     * @param block0 The manufacturer block (16 bytes) or null if it is
+     * not known (yet).
+     * @return The packed key (see {@link KeyDictionary}) or
+     * {@link KeyDictionary#INVALID_KEY} if there is no key for this
+     * input (e.g. because block 0 is not known).
+     */
+    long getKey(int index, byte[] uid, int sector, byte[] block0);
+}
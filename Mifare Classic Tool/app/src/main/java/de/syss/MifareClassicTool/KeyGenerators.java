@@ -0,0 +1,214 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+/**
+ * The built-in key generators (see {@link KeyGenerator}). They cover
+ * common patterns of derived keys and serve as reference for new
+ * generators. To add a generator, implement {@link KeyGenerator} and
+ * add it to {@link #GENERATORS}.
+ * @author Gerhard Klostermeier
+ */
+public final class KeyGenerators {
+
+    /**
+     * All available key generators (in the order they are listed).
+     */
+    private static final KeyGenerator[] GENERATORS = {
+            new UidPadding(),
+            new UidSector(),
+            new Block0Window(),
+            new RepeatedByte()
+    };
+
+    private KeyGenerators() { }
+
+    /**
+     * Get all available key generators.
+     * @return All key generators.
+     */
+    public static KeyGenerator[] getAll() {
+        return GENERATORS.clone();
+    }
+
+    /**
+     * Get a key generator by its ID.
+     * @param id The ID of the generator (see {@link KeyGenerator#getId()}).
+     * @return The key generator or null if there is none with this ID.
+     */
+    public static KeyGenerator get(String id) {
+        for (KeyGenerator generator : GENERATORS) {
+            if (generator.getId().equals(id)) {
+                return generator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pack 6 bytes of an array into a key.
+     * @param data The data.
+     * @param offset The position of the first key byte.
+     * @return The packed key or {@link KeyDictionary#INVALID_KEY} if
+     * there are not enough bytes.
+     */
+    static long pack(byte[] data, int offset) {
+        if (data == null || offset < 0
+                || offset + KeyDictionary.KEY_LENGTH > data.length) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        long key = 0;
+        for (int i = offset; i < offset + KeyDictionary.KEY_LENGTH; i++) {
+            key = (key << 8) | (data[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Pack the first 4 bytes of the UID into a long.
+     * @param uid The UID.
+     * @return The first 4 bytes of the UID or
+     * {@link KeyDictionary#INVALID_KEY} if the UID is too short.
+     */
+    static long uid4(byte[] uid) {
+        if (uid == null || uid.length < 4) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        return ((uid[0] & 0xFFL) << 24) | ((uid[1] & 0xFFL) << 16)
+                | ((uid[2] & 0xFFL) << 8) | (uid[3] & 0xFFL);
+    }
+
+    /**
+     * The UID padded to 6 bytes: UID+0000, 0000+UID, UID+FFFF, FFFF+UID,
+     * UID+first two UID bytes, last two UID bytes+UID, and (for 7 byte
+     * UIDs) the first and the last 6 bytes of the UID.
+     */
+    static class UidPadding implements KeyGenerator {
+        @Override
+        public String getId() {
+            return "uid-padding";
+        }
+
+        @Override
+        public int getKeyCount() {
+            return 8;
+        }
+
+        @Override
+        public long getKey(int index, byte[] uid, int sector,
+                byte[] block0) {
+            long u = uid4(uid);
+            if (u == KeyDictionary.INVALID_KEY) {
+                return u;
+            }
+            switch (index) {
+                case 0: return u << 16;
+                case 1: return u;
+                case 2: return (u << 16) | 0xFFFF;
+                case 3: return 0xFFFF00000000L | u;
+                case 4: return (u << 16) | (u >>> 16);
+                case 5: return ((u & 0xFFFF) << 32) | u;
+                case 6: return (uid.length > 6) ? pack(uid, 0)
+                        : KeyDictionary.INVALID_KEY;
+                case 7: return (uid.length > 6)
+                        ? pack(uid, uid.length - KeyDictionary.KEY_LENGTH)
+                        : KeyDictionary.INVALID_KEY;
+                default: return KeyDictionary.INVALID_KEY;
+            }
+        }
+    }
+
+    /**
+     * The UID combined with the sector number: UID+sector (2 bytes),
+     * sector (2 bytes)+UID and each UID byte XOR sector followed
+     * by the sector and its complement.
+     */
+    static class UidSector implements KeyGenerator {
+        @Override
+        public String getId() {
+            return "uid-sector";
+        }
+
+        @Override
+        public int getKeyCount() {
+            return 3;
+        }
+
+        @Override
+        public long getKey(int index, byte[] uid, int sector,
+                byte[] block0) {
+            long u = uid4(uid);
+            if (u == KeyDictionary.INVALID_KEY) {
+                return u;
+            }
+            long s = sector & 0xFF;
+            switch (index) {
+                case 0: return (u << 16) | s;
+                case 1: return (s << 32) | u;
+                case 2: return ((u ^ (s * 0x01010101L)) << 16)
+                        | (s << 8) | (s ^ 0xFF);
+                default: return KeyDictionary.INVALID_KEY;
+            }
+        }
+    }
+
+    /**
+     * All 6 byte windows of the manufacturer block (offset 0 to 10).
+     * Only available once block 0 was read.
+     */
+    static class Block0Window implements KeyGenerator {
+        @Override
+        public String getId() {
+            return "block0-window";
+        }
+
+        @Override
+        public int getKeyCount() {
+            return 16 - KeyDictionary.KEY_LENGTH + 1;
+        }
+
+        @Override
+        public long getKey(int index, byte[] uid, int sector,
+                byte[] block0) {
+            return pack(block0, index);
+        }
+    }
+
+    /**
+     * The same byte 6 times (000000000000, 010101010101, ...,
+     * FFFFFFFFFFFF). Does not depend on the tag.
+     */
+    static class RepeatedByte implements KeyGenerator {
+        @Override
+        public String getId() {
+            return "repeated-byte";
+        }
+
+        @Override
+        public int getKeyCount() {
+            return 256;
+        }
+
+        @Override
+        public long getKey(int index, byte[] uid, int sector,
+                byte[] block0) {
+            return (index & 0xFFL) * 0x010101010101L;
+        }
+    }
+}
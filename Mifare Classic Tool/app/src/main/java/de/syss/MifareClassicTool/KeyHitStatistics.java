@@ -0,0 +1,246 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent statistics of successful key mappings. For each sector
+ * and key type (A/B) it is counted how often a key was valid. Tags of the
+ * same kind (e.g. a fleet of identical access cards) mostly use the same
+ * keys on the same sectors, so the keys with the most hits are good
+ * candidates to try first (see
+ * {@link MCReader#setKeyHitStatistics(KeyHitStatistics)}).
+ * @author Gerhard Klostermeier
+ */
+public class KeyHitStatistics {
+
+    private static final String LOG_TAG =
+            KeyHitStatistics.class.getSimpleName();
+
+    /**
+     * Key type A (see {@link #record(int, int, long)}).
+     */
+    public static final int KEY_A = 0;
+    /**
+     * Key type B (see {@link #record(int, int, long)}).
+     */
+    public static final int KEY_B = 1;
+
+    private final File mFile;
+    private HashMap<Integer, HashMap<Long, Integer>> mHits;
+    private boolean mChanged = false;
+
+    /**
+     * Create the key hit statistics. The statistics will be loaded from
+     * the file on first use.
+     * @param file The file to store the statistics in.
+     * @see Common#KEY_HIT_STATISTICS_FILE
+     */
+    public KeyHitStatistics(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Count a hit of a key.
+     * @param sector The sector the key is valid for.
+     * @param keyType {@link #KEY_A} or {@link #KEY_B}.
+     * @param key The packed key (see {@link KeyDictionary}).
+     */
+    public void record(int sector, int keyType, long key) {
+        HashMap<Long, Integer> hits = getHits().get(slot(sector, keyType));
+        if (hits == null) {
+            hits = new HashMap<>();
+            getHits().put(slot(sector, keyType), hits);
+        }
+        Integer count = hits.get(key);
+        hits.put(key, (count == null) ? 1 : count + 1);
+        mChanged = true;
+    }
+
+    /**
+     * Get the keys with the most hits for a sector and key type.
+     * @param sector The sector.
+     * @param keyType {@link #KEY_A} or {@link #KEY_B}.
+     * @param max Maximum number of keys to return.
+     * @return The packed keys, ordered by the number of hits (most hits
+     * first). The array is empty if there are no statistics.
+     */
+    public long[] getCandidates(int sector, int keyType, int max) {
+        HashMap<Long, Integer> hits = getHits().get(slot(sector, keyType));
+        if (hits == null || max <= 0) {
+            return new long[0];
+        }
+        ArrayList<Map.Entry<Long, Integer>> entries =
+                new ArrayList<>(hits.entrySet());
+        // Most hits first. Same number of hits: lower key first (stable).
+        Collections.sort(entries, (a, b) -> {
+            int cmp = Integer.compare(b.getValue(), a.getValue());
+            return (cmp != 0) ? cmp : Long.compare(a.getKey(), b.getKey());
+        });
+        long[] ret = new long[Math.min(max, entries.size())];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = entries.get(i).getKey();
+        }
+        return ret;
+    }
+
+    /**
+     * Check if there are any statistics.
+     * @return True if no hit was recorded yet.
+     */
+    public boolean isEmpty() {
+        return getHits().isEmpty();
+    }
+
+    /**
+     * Save the statistics (if they have changed).
+     * @return True if the statistics were saved or nothing has changed.
+     * False on error.
+     */
+    public boolean save() {
+        if (!mChanged) {
+            return true;
+        }
+        String[] lines = toLines(":", "# Key hit statistics of MCT. "
+                + "Format: sector:key type:key:hits");
+        if (!Common.saveFile(mFile, lines, false)) {
+            return false;
+        }
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Delete all statistics (in memory and on disk).
+     */
+    public void reset() {
+        mHits = new HashMap<>();
+        mChanged = false;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.d(LOG_TAG, "Could not delete key hit statistics.");
+        }
+    }
+
+    /**
+     * Export the statistics as CSV file
+     * (columns: sector, key type, key, hits).
+     * @param file The file to export to.
+     * @return True if the statistics were exported. False otherwise.
+     */
+    public boolean export(File file) {
+        return Common.saveFile(file,
+                toLines(",", "sector,key_type,key,hits"), false);
+    }
+
+    /**
+     * Convert the statistics into text lines, ordered by sector,
+     * key type and hits.
+     * @param separator The separator between the fields.
+     * @param header The first line.
+     * @return The statistics as text lines.
+     */
+    private String[] toLines(String separator, String header) {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(header);
+        Integer[] slots = getHits().keySet().toArray(new Integer[0]);
+        Arrays.sort(slots);
+        for (int slot : slots) {
+            int sector = slot >> 1;
+            int keyType = slot & 1;
+            for (long key : getCandidates(sector, keyType, Integer.MAX_VALUE)) {
+                lines.add(sector + separator + ((keyType == KEY_A) ? "A" : "B")
+                        + separator + KeyDictionary.toHex(key) + separator
+                        + getHits().get(slot).get(key));
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Get the statistics. Load them from the file first, if
+     * this was not done already.
+     * @return The hits, by slot (see {@link #slot(int, int)}) and key.
+     */
+    private HashMap<Integer, HashMap<Long, Integer>> getHits() {
+        if (mHits == null) {
+            mHits = new HashMap<>();
+            if (mFile.exists()) {
+                load();
+            }
+        }
+        return mHits;
+    }
+
+    /**
+     * Load the statistics from the file. Invalid lines will be ignored.
+     */
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("") || line.startsWith("#")) {
+                    continue;
+                }
+                String[] entry = line.split(":");
+                try {
+                    long key = KeyDictionary.parseKey(entry[2]);
+                    if (key == KeyDictionary.INVALID_KEY) {
+                        continue;
+                    }
+                    int sector = Integer.parseInt(entry[0]);
+                    int keyType = entry[1].equals("A") ? KEY_A : KEY_B;
+                    HashMap<Long, Integer> hits = mHits.get(
+                            slot(sector, keyType));
+                    if (hits == null) {
+                        hits = new HashMap<>();
+                        mHits.put(slot(sector, keyType), hits);
+                    }
+                    hits.put(key, Integer.parseInt(entry[3]));
+                } catch (RuntimeException e) {
+                    // Ignore invalid line.
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key hit statistics.", e);
+        }
+    }
+
+    /**
+     * Combine a sector and a key type into one index.
+     * @param sector The sector.
+     * @param keyType {@link #KEY_A} or {@link #KEY_B}.
+     * @return The index of the statistics slot.
+     */
+    private static int slot(int sector, int keyType) {
+        return (sector << 1) | (keyType & 1);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Persistent cache of key maps. There is one entry (file) per tag,
+ * identified by the UID of the tag. Additionally, a hash of the
+ * manufacturer block (block 0) is stored to detect different tags with
+ * the same UID (e.g. clones). The cached keys are only hints. They must
+ * be verified by authenticating with the tag (see
+ * {@link MCReader#setKeyMapCache(KeyMapCache)}).
+ * @author Gerhard Klostermeier
+ */
+public class KeyMapCache {
+
+    private static final String LOG_TAG = KeyMapCache.class.getSimpleName();
+    private static final String NO_HASH = "-";
+
+    private final File mDir;
+
+    /**
+     * A cache entry of a tag: the hash of block 0 and the key map.
+     * @see #loadEntry(String)
+     */
+    public static class Entry {
+        private final String mBlock0Hash;
+        private final SparseArray<byte[][]> mKeyMap;
+
+        private Entry(String block0Hash, SparseArray<byte[][]> keyMap) {
+            mBlock0Hash = block0Hash;
+            mKeyMap = keyMap;
+        }
+
+        /**
+         * @return The hash of block 0 or null if it is unknown.
+         * @see #hashBlock0(byte[])
+         */
+        public String getBlock0Hash() {
+            return mBlock0Hash;
+        }
+
+        /**
+         * @return The key map (sector number to keys A/B, each of
+         * them might be null).
+         */
+        public SparseArray<byte[][]> getKeyMap() {
+            return mKeyMap;
+        }
+    }
+
+    /**
+     * Create a key map cache.
+     * @param dir The directory holding the cache entries. It will be
+     * created if it does not exist.
+     * @see Common#KEY_MAP_CACHE_DIR
+     */
+    public KeyMapCache(File dir) {
+        mDir = dir;
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(LOG_TAG, "Error while creating the key map cache "
+                    + "directory.");
+        }
+    }
+
+    /**
+     * Load the cached key map of a tag.
+     * @param uid The UID of the tag (hex).
+     * @return The cached key map (sector number to keys A/B, each of
+     * them might be null) or null if there is no entry for this tag.
+     * @see #getBlock0Hash(String)
+     */
+    public SparseArray<byte[][]> load(String uid) {
+        Entry entry = loadEntry(uid);
+        return (entry == null) ? null : entry.getKeyMap();
+    }
+
+    /**
+     * Get the hash of the manufacturer block stored along with the
+     * cached key map of a tag.
+     * @param uid The UID of the tag (hex).
+     * @return The hash of block 0 or null if it is unknown.
+     * @see #hashBlock0(byte[])
+     */
+    public String getBlock0Hash(String uid) {
+        Entry entry = loadEntry(uid);
+        return (entry == null) ? null : entry.getBlock0Hash();
+    }
+
+    /**
+     * Load the cache entry of a tag (block 0 hash and key map). The
+     * entry file is read only once.
+     * @param uid The UID of the tag (hex).
+     * @return The cache entry or null if there is no (valid) entry
+     * for this tag.
+     */
+    public Entry loadEntry(String uid) {
+        String[] lines = readEntry(uid);
+        if (lines == null) {
+            return null;
+        }
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        try {
+            for (int i = 1; i < lines.length; i++) {
+                String[] entry = lines[i].split(":");
+                keyMap.put(Integer.parseInt(entry[0]), new byte[][] {
+                        hexToKey(entry[1]), hexToKey(entry[2])});
+            }
+        } catch (RuntimeException e) {
+            Log.d(LOG_TAG, "Invalid key map cache entry for " + uid + ".");
+            return null;
+        }
+        String block0Hash = lines[0].equals(NO_HASH) ? null : lines[0];
+        return new Entry(block0Hash, keyMap);
+    }
+
+    /**
+     * Save a key map to the cache. If there already is an entry
+     * with the same UID and block 0 hash, the sectors of the given key
+     * map will be updated and all other sectors will be kept.
+     * @param uid The UID of the tag (hex).
+     * @param block0Hash The hash of block 0 or null if it is unknown.
+     * @param keyMap The key map to save.
+     * @return True if the key map was saved. False otherwise.
+     */
+    public boolean save(String uid, String block0Hash,
+            SparseArray<byte[][]> keyMap) {
+        if (uid == null || keyMap == null || keyMap.size() == 0) {
+            return false;
+        }
+        Entry oldEntry = loadEntry(uid);
+        SparseArray<byte[][]> merged = null;
+        String oldHash = null;
+        if (oldEntry != null) {
+            merged = oldEntry.getKeyMap();
+            oldHash = oldEntry.getBlock0Hash();
+        }
+        if (merged == null || (block0Hash != null && oldHash != null
+                && !block0Hash.equals(oldHash))) {
+            // New tag (or a different tag with the same UID).
+            merged = new SparseArray<>();
+        } else if (block0Hash == null) {
+            block0Hash = oldHash;
+        }
+        for (int i = 0; i < keyMap.size(); i++) {
+            merged.put(keyMap.keyAt(i), keyMap.valueAt(i));
+        }
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("# Key map cache of MCT (UID " + uid + ").");
+        lines.add((block0Hash == null) ? NO_HASH : block0Hash);
+        for (int i = 0; i < merged.size(); i++) {
+            byte[][] keys = merged.valueAt(i);
+            lines.add(merged.keyAt(i) + ":" + keyToHex(keys[0])
+                    + ":" + keyToHex(keys[1]));
+        }
+        return Common.saveFile(getEntryFile(uid),
+                lines.toArray(new String[0]), false);
+    }
+
+    /**
+     * Remove the cache entry of a tag.
+     * @param uid The UID of the tag (hex).
+     */
+    public void remove(String uid) {
+        File file = getEntryFile(uid);
+        if (file.exists() && !file.delete()) {
+            Log.d(LOG_TAG, "Could not delete key map cache entry.");
+        }
+    }
+
+    /**
+     * Get the UIDs of all tags in the cache.
+     * @return The UIDs (hex) of all cache entries.
+     */
+    public String[] getUIDs() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return new String[0];
+        }
+        ArrayList<String> uids = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.endsWith(".txt")) {
+                uids.add(name.substring(0, name.length() - 4));
+            }
+        }
+        return uids.toArray(new String[0]);
+    }
+
+    /**
+     * Calculate the hash of the manufacturer block (block 0).
+     * @param block0 The data of block 0.
+     * @return SHA-256 of block 0 as hex string or null on error.
+     */
+    public static String hashBlock0(byte[] block0) {
+        if (block0 == null) {
+            return null;
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Common.bytes2Hex(md.digest(block0));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the lines of a cache entry (comments excluded).
+     * @param uid The UID of the tag (hex).
+     * @return The lines (first line is the block 0 hash) or null if
+     * there is no (valid) entry.
+     */
+    private String[] readEntry(String uid) {
+        File file = getEntryFile(uid);
+        if (!file.exists()) {
+            return null;
+        }
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.equals("") && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key map cache entry.", e);
+            return null;
+        }
+        if (lines.size() == 0) {
+            return null;
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Get the file of a cache entry.
+     * @param uid The UID of the tag (hex).
+     * @return The file of the cache entry.
+     */
+    private File getEntryFile(String uid) {
+        return new File(mDir, uid.toUpperCase() + ".txt");
+    }
+
+    /**
+     * Convert a key into its hex form.
+     * @param key The key (or null).
+     * @return The key as hex string or {@link MCReader#NO_KEY} if the key
+     * is null.
+     */
+    private static String keyToHex(byte[] key) {
+        return (key == null) ? MCReader.NO_KEY : Common.bytes2Hex(key);
+    }
+
+    /**
+     * Convert a hex string into a key.
+     * @param hex The key as hex string or {@link MCReader#NO_KEY}.
+     * @return The key or null if there is no key.
+     */
+    private static byte[] hexToKey(String hex) {
+        return hex.equals(MCReader.NO_KEY) ? null : Common.hex2Bytes(hex);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent index of key pairs. For each key A it is counted how often
+ * it was used together with a key B in the same sector. Many systems
+ * derive key B from key A (or use fixed pairs), so once key A of a sector
+ * is known, the associated keys B are good candidates to try first (see
+ * {@link MCReader#setKeyPairIndex(KeyPairIndex)}).<br /><br />
+ * If there is no index yet, it will be built from the key map cache
+ * ({@link KeyMapCache}) and the sector trailers of the dumps on first use.
+ * After that, it is updated with every key mapping.
+ * @author Gerhard Klostermeier
+ */
+public class KeyPairIndex {
+
+    private static final String LOG_TAG = KeyPairIndex.class.getSimpleName();
+
+    private final File mFile;
+    private final File mKeyMapCacheDir;
+    private final File mDumpsDir;
+    private HashMap<Long, HashMap<Long, Integer>> mPairs;
+    private boolean mChanged = false;
+
+    /**
+     * Create the key pair index. The index will be loaded from the
+     * file (or built, if there is no file) on first use.
+     * @param file The file to store the index in.
+     * @param keyMapCacheDir The directory of the key map cache
+     * (used to build the index). Might be null.
+     * @param dumpsDir The directory of the dumps (used to build the index).
+     * Might be null.
+     * @see Common#KEY_PAIR_INDEX_FILE
+     * @see #rebuild()
+     */
+    public KeyPairIndex(File file, File keyMapCacheDir, File dumpsDir) {
+        mFile = file;
+        mKeyMapCacheDir = keyMapCacheDir;
+        mDumpsDir = dumpsDir;
+    }
+
+    /**
+     * Count a key pair (key A and key B of the same sector).
+     * @param keyA The packed key A (see {@link KeyDictionary}).
+     * @param keyB The packed key B.
+     */
+    public void record(long keyA, long keyB) {
+        if (keyA == KeyDictionary.INVALID_KEY
+                || keyB == KeyDictionary.INVALID_KEY) {
+            return;
+        }
+        HashMap<Long, Integer> pairs = getPairs().get(keyA);
+        if (pairs == null) {
+            pairs = new HashMap<>();
+            getPairs().put(keyA, pairs);
+        }
+        Integer count = pairs.get(keyB);
+        pairs.put(keyB, (count == null) ? 1 : count + 1);
+        mChanged = true;
+    }
+
+    /**
+     * Get the keys B that were used together with a key A.
+     * @param keyA The packed key A.
+     * @param max Maximum number of keys to return.
+     * @return The packed keys B, ordered by how often they were used
+     * with this key A (most often first). The array is empty if
+     * nothing is known about this key A.
+     */
+    public long[] getCandidates(long keyA, int max) {
+        HashMap<Long, Integer> pairs = getPairs().get(keyA);
+        if (pairs == null || max <= 0) {
+            return new long[0];
+        }
+        ArrayList<Map.Entry<Long, Integer>> entries =
+                new ArrayList<>(pairs.entrySet());
+        // Most often first. Same count: lower key first (stable).
+        Collections.sort(entries, (a, b) -> {
+            int cmp = Integer.compare(b.getValue(), a.getValue());
+            return (cmp != 0) ? cmp : Long.compare(a.getKey(), b.getKey());
+        });
+        long[] ret = new long[Math.min(max, entries.size())];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = entries.get(i).getKey();
+        }
+        return ret;
+    }
+
+    /**
+     * Get the number of keys A in the index.
+     * @return The number of known keys A.
+     */
+    public int size() {
+        return getPairs().size();
+    }
+
+    /**
+     * Save the index (if it has changed).
+     * @return True if the index was saved or nothing has changed.
+     * False on error.
+     */
+    public boolean save() {
+        if (!mChanged) {
+            return true;
+        }
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("# Key pair index of MCT. Format: key A:key B:count");
+        for (Map.Entry<Long, HashMap<Long, Integer>> entry
+                : getPairs().entrySet()) {
+            String keyA = KeyDictionary.toHex(entry.getKey());
+            for (Map.Entry<Long, Integer> pair : entry.getValue().entrySet()) {
+                lines.add(keyA + ":" + KeyDictionary.toHex(pair.getKey())
+                        + ":" + pair.getValue());
+            }
+        }
+        if (!Common.saveFile(mFile, lines.toArray(new String[0]), false)) {
+            return false;
+        }
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Drop the index and build it again from the key map cache and
+     * the dumps. The index is saved afterwards.
+     * @return True if the new index was saved. False otherwise.
+     */
+    public boolean rebuild() {
+        mPairs = new HashMap<>();
+        if (mKeyMapCacheDir != null) {
+            KeyMapCache cache = new KeyMapCache(mKeyMapCacheDir);
+            for (String uid : cache.getUIDs()) {
+                addKeyMap(cache.load(uid));
+            }
+        }
+        if (mDumpsDir != null) {
+            File[] dumps = mDumpsDir.listFiles();
+            if (dumps != null) {
+                for (File dump : dumps) {
+                    if (dump.isFile()) {
+                        addDump(dump);
+                    }
+                }
+            }
+        }
+        mChanged = true;
+        return save();
+    }
+
+    /**
+     * Add the key pairs of a key map.
+     * @param keyMap The key map (sector number to keys A/B).
+     * Might be null.
+     */
+    public void addKeyMap(SparseArray<byte[][]> keyMap) {
+        if (keyMap == null) {
+            return;
+        }
+        for (int i = 0; i < keyMap.size(); i++) {
+            byte[][] keys = keyMap.valueAt(i);
+            if (keys != null && keys[0] != null && keys[1] != null) {
+                record(KeyDictionary.fromBytes(keys[0]),
+                        KeyDictionary.fromBytes(keys[1]));
+            }
+        }
+    }
+
+    /**
+     * Add the key pairs of the sector trailers of a dump file. Sectors
+     * with unknown keys (marked with "-") will be ignored. A file can
+     * contain multiple dumps (appended by the dump editor).
+     * @param dump The dump file.
+     */
+    public void addDump(File dump) {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(dump))) {
+            String line;
+            String lastBlock = null;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("+Sector")) {
+                    // The last block of the previous sector is the trailer.
+                    addTrailer(lastBlock);
+                    lastBlock = null;
+                } else if (line.length() == 32) {
+                    lastBlock = line;
+                } else {
+                    lastBlock = null;
+                }
+            }
+            addTrailer(lastBlock);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Error while reading dump " + dump.getName() + ".");
+        }
+    }
+
+    /**
+     * Add the keys of a sector trailer.
+     * @param trailer The sector trailer (hex) or null.
+     */
+    private void addTrailer(String trailer) {
+        if (trailer == null) {
+            return;
+        }
+        record(KeyDictionary.parseKey(trailer.substring(0, 12)),
+                KeyDictionary.parseKey(trailer.substring(20)));
+    }
+
+    /**
+     * Get the index. Load it from the file (or build it) first, if
+     * this was not done already.
+     * @return The key pairs (key A to key B to count).
+     */
+    private HashMap<Long, HashMap<Long, Integer>> getPairs() {
+        if (mPairs == null) {
+            mPairs = new HashMap<>();
+            if (mFile.exists()) {
+                load();
+            } else {
+                rebuild();
+            }
+        }
+        return mPairs;
+    }
+
+    /**
+     * Load the index from the file. Invalid lines will be ignored.
+     */
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("") || line.startsWith("#")) {
+                    continue;
+                }
+                String[] entry = line.split(":");
+                try {
+                    long keyA = KeyDictionary.parseKey(entry[0]);
+                    long keyB = KeyDictionary.parseKey(entry[1]);
+                    if (keyA == KeyDictionary.INVALID_KEY
+                            || keyB == KeyDictionary.INVALID_KEY) {
+                        continue;
+                    }
+                    HashMap<Long, Integer> pairs = mPairs.get(keyA);
+                    if (pairs == null) {
+                        pairs = new HashMap<>();
+                        mPairs.put(keyA, pairs);
+                    }
+                    pairs.put(keyB, Integer.parseInt(entry[2]));
+                } catch (RuntimeException e) {
+                    // Ignore invalid line.
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error while reading key pair index.", e);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Offline recovery of sector keys from sniffed authentications (like
+ * "mfkey32" and "mfkey64" of the Proxmark3 tools). The traces are read
+ * from text files with one authentication per line:<br />
+ * <pre>
+ * # Two authentications of a reader (e.g. against an emulated tag).
+ * mfkey32 &lt;uid&gt; &lt;nt0&gt; &lt;{nr0}&gt; &lt;{ar0}&gt; &lt;nt1&gt; &lt;{nr1}&gt; &lt;{ar1}&gt; [&lt;sector&gt; &lt;A|B&gt;]
+ * # One complete authentication between reader and tag.
+ * mfkey64 &lt;uid&gt; &lt;nt&gt; &lt;{nr}&gt; &lt;{ar}&gt; &lt;{at}&gt; [&lt;sector&gt; &lt;A|B&gt;]
+ * </pre>
+ * All values are hex. Values in braces are encrypted. The UID has 4 or 7
+ * bytes, all other values have 4 bytes. Only plain (not nested)
+ * authentications are supported.<br /><br />
+ * The work is done by {@link Crypto1#lfsrRecovery32(int, int, ForkJoinPool)}
+ * and can be spread over all cores with a fork-join pool.
+ * This class has no Android dependencies.
+ * @author Gerhard Klostermeier
+ */
+public class KeyRecovery {
+
+    /**
+     * The sector of a trace, if it is unknown.
+     */
+    public static final int UNKNOWN_SECTOR = -1;
+
+    /**
+     * Candidate lists shorter than this will be checked without
+     * splitting them up into sub-tasks.
+     */
+    private static final int MIN_VERIFY_CHUNK = 8192;
+
+    /**
+     * One sniffed authentication (mfkey64) or two authentications with
+     * the same key (mfkey32).
+     */
+    public static class Trace {
+        private final boolean mIsMfkey64;
+        private final byte[] mUid;
+        private final int[] mValues;
+        private final int mSector;
+        private final boolean mIsKeyB;
+
+        private Trace(boolean isMfkey64, byte[] uid, int[] values,
+                int sector, boolean isKeyB) {
+            mIsMfkey64 = isMfkey64;
+            mUid = uid;
+            mValues = values;
+            mSector = sector;
+            mIsKeyB = isKeyB;
+        }
+
+        /**
+         * Parse a line of a trace file.
+         * @param line The line.
+         * @return The trace or null if the line is no (valid) trace.
+         */
+        public static Trace parse(String line) {
+            if (line == null) {
+                return null;
+            }
+            int comment = line.indexOf('#');
+            if (comment != -1) {
+                line = line.substring(0, comment);
+            }
+            String[] fields = line.trim().split("\\s+");
+            boolean isMfkey64;
+            if (fields[0].equalsIgnoreCase("mfkey32")) {
+                isMfkey64 = false;
+            } else if (fields[0].equalsIgnoreCase("mfkey64")) {
+                isMfkey64 = true;
+            } else {
+                return null;
+            }
+            int valueCount = isMfkey64 ? 4 : 6;
+            if (fields.length != valueCount + 2
+                    && fields.length != valueCount + 4) {
+                return null;
+            }
+            String uidHex = fields[1];
+            if (!uidHex.matches("([0-9A-Fa-f]{8}|[0-9A-Fa-f]{14})")) {
+                return null;
+            }
+            byte[] uid = new byte[uidHex.length() / 2];
+            for (int i = 0; i < uid.length; i++) {
+                uid[i] = (byte) Integer.parseInt(
+                        uidHex.substring(i * 2, i * 2 + 2), 16);
+            }
+            int[] values = new int[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                String value = fields[i + 2];
+                if (!value.matches("[0-9A-Fa-f]{8}")) {
+                    return null;
+                }
+                values[i] = (int) Long.parseLong(value, 16);
+            }
+            int sector = UNKNOWN_SECTOR;
+            boolean isKeyB = false;
+            if (fields.length == valueCount + 4) {
+                try {
+                    sector = Integer.parseInt(fields[valueCount + 2]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                String keyType = fields[valueCount + 3];
+                if (sector < 0 || sector > 39 || !keyType.matches("[AaBb]")) {
+                    return null;
+                }
+                isKeyB = keyType.equalsIgnoreCase("B");
+            }
+            return new Trace(isMfkey64, uid, values, sector, isKeyB);
+        }
+
+        /**
+         * Get the UID of the tag.
+         * @return The UID (4 or 7 bytes).
+         */
+        public byte[] getUid() {
+            return mUid.clone();
+        }
+
+        /**
+         * Get the sector of the authentication.
+         * @return The sector or {@link #UNKNOWN_SECTOR}.
+         */
+        public int getSector() {
+            return mSector;
+        }
+
+        /**
+         * Check whether the authentication used key B.
+         * @return True for key B. False for key A (or if it is unknown).
+         */
+        public boolean isKeyB() {
+            return mIsKeyB;
+        }
+
+        /**
+         * Get the part of the UID that is fed into the cipher.
+         * For 7 byte UIDs, this are the last 4 bytes.
+         * @return The UID as 32 bit value.
+         */
+        private int getCipherUid() {
+            int offset = mUid.length - 4;
+            return (mUid[offset] & 0xFF) << 24
+                    | (mUid[offset + 1] & 0xFF) << 16
+                    | (mUid[offset + 2] & 0xFF) << 8
+                    | (mUid[offset + 3] & 0xFF);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(
+                    mIsMfkey64 ? "mfkey64 " : "mfkey32 ");
+            for (byte b : mUid) {
+                sb.append(String.format(Locale.ROOT, "%02X", b));
+            }
+            for (int value : mValues) {
+                sb.append(String.format(Locale.ROOT, " %08X", value));
+            }
+            if (mSector != UNKNOWN_SECTOR) {
+                sb.append(' ').append(mSector).append(mIsKeyB ? " B" : " A");
+            }
+            return sb.toString();
+        }
+    }
+
+    private KeyRecovery() { }
+
+    /**
+     * Parse all traces of a trace file. Empty lines, comments and
+     * invalid lines will be ignored.
+     * @param lines The lines of the file.
+     * @return The traces (might be empty).
+     * @see Trace#parse(String)
+     */
+    public static Trace[] parseTraces(String[] lines) {
+        ArrayList<Trace> traces = new ArrayList<>();
+        if (lines != null) {
+            for (String line : lines) {
+                Trace trace = Trace.parse(line);
+                if (trace != null) {
+                    traces.add(trace);
+                }
+            }
+        }
+        return traces.toArray(new Trace[0]);
+    }
+
+    /**
+     * Recover the key of a trace.
+     * @param trace The trace.
+     * @param pool The pool to spread the work over all cores or null
+     * to do everything in the calling thread.
+     * @return The packed key (see {@link KeyDictionary}) or
+     * {@link KeyDictionary#INVALID_KEY} if no key matches the trace
+     * (e.g. because it was not sniffed correctly).
+     */
+    public static long recover(Trace trace, ForkJoinPool pool) {
+        int[] v = trace.mValues;
+        int nt = v[0];
+        int ks2 = v[2] ^ Crypto1.prngSuccessor(nt, 64);
+        long[] states = Crypto1.lfsrRecovery32(ks2, 0, pool);
+        VerifyTask task = new VerifyTask(trace, states, 0, states.length,
+                pool != null);
+        if (pool == null) {
+            return task.compute();
+        }
+        return ForkJoinTask.inForkJoinPool() ? task.invoke()
+                : pool.invoke(task);
+    }
+
+    /**
+     * Recover the keys of multiple traces. With a pool, all traces are
+     * handled in parallel.
+     * @param traces The traces.
+     * @param pool The pool to spread the work over all cores or null
+     * to do everything in the calling thread.
+     * @return The recovered keys (same order as the traces). Keys that
+     * could not be recovered are {@link KeyDictionary#INVALID_KEY}.
+     * @see #recover(Trace, ForkJoinPool)
+     */
+    public static long[] recoverAll(Trace[] traces, ForkJoinPool pool) {
+        long[] keys = new long[traces.length];
+        if (pool == null) {
+            for (int i = 0; i < traces.length; i++) {
+                keys[i] = recover(traces[i], null);
+            }
+            return keys;
+        }
+        ArrayList<ForkJoinTask<Long>> tasks = new ArrayList<>();
+        for (Trace trace : traces) {
+            tasks.add(pool.submit(() -> recover(trace, pool)));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = tasks.get(i).join();
+        }
+        return keys;
+    }
+
+    /**
+     * Check the candidate states of a trace. The states are right after
+     * the reader answer (ar) of the (first) authentication. They are
+     * rolled back to get the key, which is then checked against the rest
+     * of the trace (the tag answer for mfkey64, the second authentication
+     * for mfkey32).
+     */
+    private static class VerifyTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final Trace mTrace;
+        private final long[] mStates;
+        private final int mFrom;
+        private final int mTo;
+        private final boolean mFork;
+
+        VerifyTask(Trace trace, long[] states, int from, int to,
+                boolean fork) {
+            mTrace = trace;
+            mStates = states;
+            mFrom = from;
+            mTo = to;
+            mFork = fork;
+        }
+
+        @Override
+        protected Long compute() {
+            if (mFork && mTo - mFrom > MIN_VERIFY_CHUNK) {
+                int middle = (mFrom + mTo) >>> 1;
+                VerifyTask left = new VerifyTask(
+                        mTrace, mStates, mFrom, middle, true);
+                left.fork();
+                long key = new VerifyTask(
+                        mTrace, mStates, middle, mTo, true).compute();
+                long leftKey = left.join();
+                return (leftKey != KeyDictionary.INVALID_KEY) ? leftKey : key;
+            }
+            int[] v = mTrace.mValues;
+            int uid = mTrace.getCipherUid();
+            for (int i = mFrom; i < mTo; i++) {
+                Crypto1 state = new Crypto1(
+                        (int) (mStates[i] >>> 32), (int) mStates[i]);
+                if (mTrace.mIsMfkey64) {
+                    // The next keystream word encrypts the tag answer.
+                    int ks3 = v[3] ^ Crypto1.prngSuccessor(v[0], 96);
+                    if (state.copy().word(0, false) != ks3) {
+                        continue;
+                    }
+                }
+                state.rollbackWord(0, false);
+                state.rollbackWord(v[1], true);
+                state.rollbackWord(uid ^ v[0], false);
+                long key = state.getLfsr();
+                if (mTrace.mIsMfkey64 || verifySecondAuth(key, uid, v)) {
+                    return key;
+                }
+            }
+            return KeyDictionary.INVALID_KEY;
+        }
+
+        /**
+         * Simulate the second authentication of a mfkey32 trace and
+         * check the reader answer.
+         * @param key The key candidate.
+         * @param uid The UID (cipher part).
+         * @param v The values of the trace.
+         * @return True if the key produces the same reader answer.
+         */
+        private static boolean verifySecondAuth(long key, int uid, int[] v) {
+            Crypto1 state = new Crypto1(key);
+            state.word(uid ^ v[3], false);
+            state.word(v[4], true);
+            int ar = Crypto1.prngSuccessor(v[3], 64);
+            return (ar ^ state.word(0, false)) == v[5];
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * In-memory cache of the parsed and deduplicated keys of a set of key
+ * files. Parsing large key files takes a while and the same selection is
+ * often used for many tags in a row. The cache is identified by the paths
+ * of the key files (in order), their modification times and their sizes,
+ * so a changed file is never served from the cache. Only the last key set
+ * is kept.
+ * @author Gerhard Klostermeier
+ * @see MCReader#setKeyFile(File[], android.content.Context)
+ */
+public class KeySetCache {
+
+    private static final String LOG_TAG = KeySetCache.class.getSimpleName();
+
+    private static final Object LOCK = new Object();
+    /**
+     * Identifiers of the key sets which are parsed at the moment.
+     */
+    private static final HashSet<String> mParsing = new HashSet<>();
+    private static String mCacheKey;
+    private static KeyDictionary mKeys;
+
+    /**
+     * Get the keys of a set of key files. If the keys are not cached yet
+     * (or the files have changed), the files will be parsed. If another
+     * thread is parsing the same files at the moment (see
+     * {@link #preload(File[])}), this waits for it instead of
+     * parsing the files twice (an interrupt does not end the waiting,
+     * it is passed on to the caller afterwards). The parsing itself is done without
+     * holding the lock, so other key sets can be loaded at the same time.
+     * @param keyFiles The key files (text or compiled dictionaries).
+     * @return A view of the cached keys ({@link KeyDictionary#view(
+     * KeyDictionary)}). The cached keys are shared, not copied. The
+     * order of the view can be changed freely.
+     * @throws OutOfMemoryError If there is not enough memory to hold
+     * all the keys.
+     */
+    public static KeyDictionary load(File[] keyFiles) {
+        String cacheKey = createCacheKey(keyFiles);
+        synchronized (LOCK) {
+            // Wait until the other thread is done, even if interrupted.
+            // Otherwise the same files would be parsed twice and the other
+            // thread's parsing marker would be removed by this one.
+            boolean interrupted = false;
+            while (mParsing.contains(cacheKey)) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                // Keep the interrupt for the caller.
+                Thread.currentThread().interrupt();
+            }
+            if (mKeys != null && cacheKey.equals(mCacheKey)) {
+                return KeyDictionary.view(mKeys);
+            }
+            // Drop the old keys to free the memory (views which are still
+            // in use keep them).
+            mKeys = null;
+            mCacheKey = null;
+            mParsing.add(cacheKey);
+        }
+        KeyDictionary keys = null;
+        try {
+            keys = parse(keyFiles);
+        } finally {
+            synchronized (LOCK) {
+                mParsing.remove(cacheKey);
+                if (keys != null) {
+                    mKeys = keys;
+                    mCacheKey = cacheKey;
+                }
+                LOCK.notifyAll();
+            }
+        }
+        return KeyDictionary.view(keys);
+    }
+
+    /**
+     * Parse the key files in a background thread, so that the keys
+     * are ready once they are needed.
+     * @param keyFiles The key files.
+     * @see #load(File[])
+     */
+    public static void preload(final File[] keyFiles) {
+        if (keyFiles == null || keyFiles.length == 0) {
+            return;
+        }
+        new Thread(() -> {
+            try {
+                load(keyFiles);
+            } catch (OutOfMemoryError e) {
+                invalidate();
+                Log.d(LOG_TAG, "Not enough memory to preload keys.");
+            }
+        }).start();
+    }
+
+    /**
+     * Drop the cached keys (e.g. because a key file was changed).
+     */
+    public static void invalidate() {
+        synchronized (LOCK) {
+            mKeys = null;
+            mCacheKey = null;
+        }
+    }
+
+    /**
+     * Parse and deduplicate the keys of the key files. The standard key
+     * files are replaced by their compiled versions (if available).
+     * Small, ranked dictionaries are copied into memory to keep their
+     * order, all others are mapped.
+     * @param keyFiles The key files.
+     * @return The keys in the order of the files.
+     * @throws OutOfMemoryError If there is not enough memory to hold
+     * all the keys.
+     * @see #getCompiledStdKeys(File)
+     */
+    private static KeyDictionary parse(File[] keyFiles) {
+        KeyDictionary keys = new KeyDictionary();
+        for (File file : keyFiles) {
+            File compiled = getCompiledStdKeys(file);
+            if (compiled != null) {
+                file = compiled;
+            }
+            if (BinaryKeyDictionary.isBinaryDictionary(file)) {
+                BinaryKeyDictionary mapped = BinaryKeyDictionary.open(file);
+                if (mapped == null) {
+                    Log.e(LOG_TAG, "Error while mapping key file "
+                            + file.getName() + ".");
+                } else if (mapped.isRanked() && !mapped.isSorted()) {
+                    keys.addAll(mapped);
+                } else {
+                    keys.addMapped(mapped);
+                }
+                continue;
+            }
+            if (keys.addFromFile(file) == -1) {
+                Log.e(LOG_TAG, "Error while reading key file "
+                        + file.getName() + ".");
+            }
+        }
+        keys.removeDuplicates();
+        return keys;
+    }
+
+    /**
+     * Get the compiled version of a standard key file
+     * ({@link Common#STD_KEYS} or {@link Common#STD_KEYS_EXTENDED}).
+     * Both versions are restored from the assets on every start of
+     * the app (the compiled one last). If the key file was changed
+     * afterwards (e.g. with the {@link
+     * de.syss.MifareClassicTool.Activities.KeyEditor}), it is newer than
+     * its compiled version and the compiled version will not be used.
+     * @param keyFile The key file.
+     * @return The compiled key file or null if the key file is not
+     * a standard key file, there is no compiled version of it or the
+     * compiled version is outdated.
+     */
+    private static File getCompiledStdKeys(File keyFile) {
+        String name = keyFile.getName();
+        if (!name.equals(Common.STD_KEYS)
+                && !name.equals(Common.STD_KEYS_EXTENDED)) {
+            return null;
+        }
+        if (!keyFile.getAbsoluteFile().getParentFile().equals(
+                Common.getFile(Common.KEYS_DIR).getAbsoluteFile())) {
+            return null;
+        }
+        File compiled = new File(Common.getFile(
+                Common.STD_KEYS_COMPILED_DIR), name.substring(0,
+                name.lastIndexOf('.')) + BinaryKeyDictionary.FILE_EXTENSION);
+        if (!compiled.isFile()
+                || !BinaryKeyDictionary.isBinaryDictionary(compiled)) {
+            return null;
+        }
+        if (keyFile.lastModified() > compiled.lastModified()) {
+            // The key file was edited. Use the edited keys.
+            return null;
+        }
+        return compiled;
+    }
+
+    /**
+     * Create the identifier of a set of key files.
+     * @param keyFiles The key files.
+     * @return Paths, modification times and sizes of all files.
+     */
+    private static String createCacheKey(File[] keyFiles) {
+        StringBuilder sb = new StringBuilder();
+        for (File file : keyFiles) {
+            sb.append(file.getAbsolutePath()).append('|')
+                    .append(file.lastModified()).append('|')
+                    .append(file.length()).append('\n');
+        }
+        return sb.toString();
+    }
+}
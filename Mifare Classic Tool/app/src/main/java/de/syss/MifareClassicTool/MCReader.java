@@ -25,14 +25,15 @@ import android.nfc.tech.MifareClassic;
 import android.nfc.tech.NfcA;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.syss.MifareClassicTool.Activities.Preferences.Preference;
@@ -57,14 +58,135 @@ public class MCReader {
      * Default key of MIFARE Classic tags.
      */
     public static final String DEFAULT_KEY = "FFFFFFFFFFFF";
+    /**
+     * Maximum number of keys per sector and key type taken from the
+     * key hit statistics (see {@link #setKeyHitStatistics(KeyHitStatistics)}).
+     */
+    private static final int MAX_HIT_CANDIDATES = 8;
+    /**
+     * Maximum number of keys B taken from the key pair index once key A
+     * is known (see {@link #setKeyPairIndex(KeyPairIndex)}).
+     */
+    private static final int MAX_PAIR_CANDIDATES = 8;
+    /**
+     * Number of keys used to probe a sector
+     * (see {@link #probeSector(int, boolean)}).
+     */
+    private static final int PROBE_KEY_COUNT = 3;
+    /**
+     * Keys used to probe a sector if no key file was set.
+     */
+    private static final long[] PROBE_KEYS = {
+            KeyDictionary.DEFAULT_KEY, 0xA0A1A2A3A4A5L, 0xD3F7D3F7D3F7L};
+    /**
+     * Possible sector counts of MIFARE Classic tags
+     * (Mini, 1K, 2K and 4K).
+     */
+    private static final int[] SECTOR_COUNTS = {5, 16, 32, 40};
+    private static final int SECTOR_EXISTS = 1;
+    private static final int SECTOR_UNKNOWN = 0;
+    private static final int SECTOR_DEAD = -1;
+    /**
+     * Delay before the first retry of a failed block read (ms). It is
+     * doubled with each further attempt.
+     * @see #retryFailedBlocks(SparseArray, SparseArray, int)
+     */
+    private static final long RETRY_BASE_DELAY = 20;
+    /**
+     * Upper bound for the delay between two retries (ms).
+     */
+    private static final long RETRY_MAX_DELAY = 500;
 
     private final MifareClassic mMFC;
     private SparseArray<byte[][]> mKeyMap = new SparseArray<>();
     private int mKeyMapStatus = 0;
     private int mLastSector = -1;
     private int mFirstSector = 0;
-    private ArrayList<String> mKeysWithOrder;
+    private BitSet mMappingSectors;
+    private int mLastReadSector = -1;
+    private boolean mReadInterrupted = false;
+    /**
+     * The sector (and key) that was authenticated for
+     * {@link #readBlocks(int[], SparseArray, boolean)} and is still
+     * authenticated (-1 = none).
+     */
+    private int mAuthSector = -1;
+    private byte[] mAuthKey;
+    private boolean mAuthKeyB;
+    /**
+     * Sectors whose blocks could only be read with key B
+     * (see {@link #readBlocks(int[], SparseArray, boolean)}).
+     */
+    private final SparseBooleanArray mReadWithKeyB = new SparseBooleanArray();
+    private KeyDictionary mKeysWithOrder;
+    private final byte[] mKeyBuffer = new byte[KeyDictionary.KEY_LENGTH];
     private boolean mHasAllZeroKey = false;
+    private volatile boolean mStopMapping = false;
+    private long mMappingDeadline = 0;
+    private long mKeysFingerprint = 0;
+    private File mCheckpointFile;
+    private long mLastCheckpointTime = 0;
+    private int mResumeKeyIndex = 0;
+    private byte[][] mResumeSectorKeys;
+    private KeyMapCache mKeyMapCache;
+    private SparseArray<byte[][]> mCachedKeys;
+    private String mCachedBlock0Hash;
+    private boolean mCacheVerified = false;
+    private SparseBooleanArray mPartialCacheHits = new SparseBooleanArray();
+    private String mBlock0Hash;
+    private boolean mUseKeyReuse = false;
+    private SparseArray<byte[][]> mReusedKeys = new SparseArray<>();
+    private KeyDictionary mReuseTestedKeys = new KeyDictionary(16);
+    private int mSectorsByCache = 0;
+    private int mSectorsByReuse = 0;
+    private int mSectorsByDictionary = 0;
+    private boolean mReadWhileMapping = false;
+    private SparseArray<String[]> mReadSectors = new SparseArray<>();
+    private SparseArray<byte[][]> mInterruptedKeyMap;
+    private SectorReadListener mSectorReadListener;
+    private int mTierSize = 0;
+    private int mTierLimit = 0;
+    private int mMappingPass = 0;
+    /**
+     * Keys of the first tier (sorted for {@link Arrays#binarySearch(
+     * long[], long)}).
+     * @see #initTiers()
+     */
+    private long[] mTierKeys;
+    /**
+     * Number of keys moved to the front of {@link #mKeysWithOrder} during
+     * the current mapping process (see {@link #prioritizeKey(long)}).
+     */
+    private int mPrioritizedKeys = 0;
+    private KeyHitStatistics mKeyHitStatistics;
+    private KeyPairIndex mKeyPairIndex;
+    private KeyGenerator[] mKeyGenerators;
+    private int mGeneratedKeyCount = 0;
+    private byte[] mUid;
+    private byte[] mBlock0;
+    private boolean mDetectDeadSectors = false;
+    private SparseArray<Boolean> mDeadSectors = new SparseArray<>();
+    private int mDetectedSectorCount = -1;
+    /**
+     * Sector counts found by {@link #detectSectorCount()} (UID to sector
+     * count). A new reader for the same tag does not need to probe again.
+     */
+    private static final HashMap<String, Integer> mDetectedSectorCounts =
+            new HashMap<>();
+
+    /**
+     * Listener for sectors that were read during the key mapping.
+     * @see #setReadWhileMapping(boolean, SectorReadListener)
+     */
+    public interface SectorReadListener {
+        /**
+         * Called (from the mapping thread) once a sector was read.
+         * @param sectorIndex The sector that was read.
+         * @param data The sector data. See
+         * {@link #readSector(int, byte[], boolean)}.
+         */
+        void onSectorRead(int sectorIndex, String[] data);
+    }
 
     /**
      * Initialize a MIFARE Classic reader for the given tag.
@@ -116,45 +238,90 @@ public class MCReader {
      * one block per field (index 0-3 or 0-15).
      * If a block is "null" it means that the block couldn't be
      * read with the given key information.<br />
-     * On Error, "null" will be returned (tag was removed during reading or
-     * keyMap is null). If none of the keys in the key map are valid for reading
-     * (and therefore no sector is read), an empty set (SparseArray.size() == 0)
-     * will be returned.
+     * On Error, "null" will be returned (keyMap is null). If the tag was
+     * removed during reading, the sectors read so far will be returned
+     * (see {@link #isReadInterrupted()}). If none of the keys in the key
+     * map are valid for reading (and therefore no sector is read), an empty
+     * set (SparseArray.size() == 0) will be returned.
      * @see #buildNextKeyMapPart()
+     * @see #readAsMuchAsPossible(SparseArray, int)
      */
     public SparseArray<String[]> readAsMuchAsPossible(
             SparseArray<byte[][]> keyMap) {
+        return readAsMuchAsPossible(keyMap, 0);
+    }
+
+    /**
+     * Same as {@link #readAsMuchAsPossible(SparseArray)}, but only the
+     * sectors starting at the given sector are read. This is used to
+     * continue reading after the tag was lost (e.g. after a brief loss of
+     * the RF coupling) without reading the sectors again that were already
+     * read.
+     * @param keyMap Keys (A and B) mapped to a sector.
+     * @param firstSector The first sector to read. Use
+     * {@link #getLastReadSector()} + 1 of the interrupted read.
+     * @return The sectors read (see {@link #readAsMuchAsPossible(
+     * SparseArray)}). If the tag was removed, these are the sectors read
+     * until then and {@link #isReadInterrupted()} will return true.
+     * @see #getLastReadSector()
+     */
+    public SparseArray<String[]> readAsMuchAsPossible(
+            SparseArray<byte[][]> keyMap, int firstSector) {
         SparseArray<String[]> resultSparseArray;
+        mReadInterrupted = false;
+        mLastReadSector = firstSector - 1;
         if (keyMap != null && keyMap.size() > 0) {
             resultSparseArray = new SparseArray<>(keyMap.size());
             // For all entries in map do:
             for (int i = 0; i < keyMap.size(); i++) {
-                String[][] results = new String[2][];
+                int sector = keyMap.keyAt(i);
+                if (sector < firstSector) {
+                    continue;
+                }
+                String[] result;
                 try {
-                    if (keyMap.valueAt(i)[0] != null) {
-                        // Read with key A.
-                        results[0] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[0], false);
-                    }
-                    if (keyMap.valueAt(i)[1] != null) {
-                        // Read with key B.
-                        results[1] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[1], true);
-                    }
+                    // Read with key A and/or key B (as the Access
+                    // Conditions say).
+                    result = readSector(sector, keyMap.valueAt(i));
                 } catch (TagLostException e) {
-                    return null;
+                    // Keep what was read so far.
+                    mReadInterrupted = true;
+                    return resultSparseArray;
                 }
-                // Merge results.
-                if (results[0] != null || results[1] != null) {
-                    resultSparseArray.put(keyMap.keyAt(i), mergeSectorData(
-                            results[0], results[1]));
+                if (result != null) {
+                    resultSparseArray.put(sector, result);
                 }
+                mLastReadSector = sector;
             }
             return resultSparseArray;
         }
         return null;
     }
 
+    /**
+     * Check if the last call of
+     * {@link #readAsMuchAsPossible(SparseArray, int)} was interrupted
+     * because the tag was removed.
+     * @return True if the reading was interrupted and only a part of the
+     * sectors was read.
+     * @see #getLastReadSector()
+     */
+    public boolean isReadInterrupted() {
+        return mReadInterrupted;
+    }
+
+    /**
+     * Get the last sector that was completely handled by the last call of
+     * {@link #readAsMuchAsPossible(SparseArray, int)}. If the reading was
+     * interrupted, it can be continued from the next sector on.
+     * @return The last handled sector or the first sector - 1 if no sector
+     * was handled.
+     * @see #isReadInterrupted()
+     */
+    public int getLastReadSector() {
+        return mLastReadSector;
+    }
+
     /**
      * Read as much as possible from the tag depending on the
      * mapping range and the given key information.
@@ -176,7 +343,10 @@ public class MCReader {
      */
     public SparseArray<String[]> readAsMuchAsPossible() {
         mKeyMapStatus = getSectorCount();
-        while (buildNextKeyMapPart() < getSectorCount()-1);
+        int status;
+        do {
+            status = buildNextKeyMapPart();
+        } while (status >= 0 && !isMappingFinished());
         return readAsMuchAsPossible(mKeyMap);
     }
 
@@ -198,87 +368,642 @@ public class MCReader {
      */
     public String[] readSector(int sectorIndex, byte[] key,
             boolean useAsKeyB) throws TagLostException {
-        boolean auth = authenticate(sectorIndex, key, useAsKeyB);
-        String[] ret = null;
-        // Read sector.
-        if (auth) {
-            // Read all blocks.
-            ArrayList<String> blocks = new ArrayList<>();
-            int firstBlock = mMFC.sectorToBlock(sectorIndex);
-            int lastBlock = firstBlock + 4;
-            if (mMFC.getSize() == MifareClassic.SIZE_4K
-                    && sectorIndex > 31) {
-                lastBlock = firstBlock + 16;
+        if (!authenticate(sectorIndex, key, useAsKeyB)) {
+            return null;
+        }
+        return readAuthenticatedSector(sectorIndex, key, useAsKeyB);
+    }
+
+    /**
+     * Read a sector with both keys, using each key only for the blocks
+     * the Access Conditions allow it to read. First, the sector is
+     * authenticated with key A (or key B if key A is unknown) and the
+     * sector trailer is read. Then the Access Conditions are decoded
+     * ({@link Common#acBytesToACMatrix(byte[])},
+     * {@link Common#getOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)}) and every data block is read with a key that
+     * has read rights for it (the one already authenticated, if possible).
+     * Blocks no known key can read are skipped without trying.
+     * This way, there is at most one authentication per key and no
+     * failed read. Should a block fail anyway, it is tried again with
+     * the other key (if that one has read rights too).<br /><br />
+     * If the Access Conditions can not be read or are invalid, the
+     * sector is read completely with each key
+     * ({@link #readSector(int, byte[], boolean)}) and the results are
+     * merged ({@link #mergeSectorData(String[], String[])}).
+     * @param sectorIndex Index of the sector to read.
+     * @param keys Keys A and B of the sector. Each of them might be null.
+     * @return Array of blocks (index 0-3 or 0-15), see
+     * {@link #readSector(int, byte[], boolean)} or null if the sector
+     * could not be read with any of the keys.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    public String[] readSector(int sectorIndex, byte[][] keys)
+            throws TagLostException {
+        if (keys == null || (keys[0] == null && keys[1] == null)) {
+            return null;
+        }
+        // Start with key A. It can always read the Access Conditions.
+        boolean firstIsKeyB = keys[0] == null;
+        byte[] firstKey = firstIsKeyB ? keys[1] : keys[0];
+        byte[] secondKey = firstIsKeyB ? null : keys[1];
+        int firstBlock = mMFC.sectorToBlock(sectorIndex);
+        int blockCount = mMFC.getBlockCountInSector(sectorIndex);
+        int last = blockCount - 1;
+        byte[] trailer = null;
+        if (authenticate(sectorIndex, firstKey, firstIsKeyB)) {
+            trailer = readBlockOrNull(firstBlock + last);
+        }
+        byte[][] acMatrix = null;
+        if (trailer != null) {
+            acMatrix = Common.acBytesToACMatrix(
+                    Arrays.copyOfRange(trailer, 6, 9));
+        }
+        if (acMatrix == null) {
+            // No Access Conditions. Read with both keys and merge.
+            String[][] results = new String[2][];
+            for (int i = 0; i < 2; i++) {
+                if (keys[i] != null) {
+                    results[i] = readSector(sectorIndex, keys[i], i == 1);
+                }
             }
-            for (int i = firstBlock; i < lastBlock; i++) {
-                try {
-                    byte[] blockBytes = mMFC.readBlock(i);
-                    // mMFC.readBlock(i) must return 16 bytes or throw an error.
-                    // At least this is what the documentation says.
-                    // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
-                    // sometimes returns < 16 bytes for unknown reasons.
-                    // Update: Aaand sometimes it returns more than 16 bytes...
-                    // The appended byte(s) are 0x00.
-                    if (blockBytes.length < 16) {
-                        throw new IOException();
-                    }
-                    if (blockBytes.length > 16) {
-                        blockBytes = Arrays.copyOf(blockBytes,16);
+            return mergeSectorData(results[0], results[1]);
+        }
+
+        // Plan which key reads which block.
+        boolean keyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        int firstRight = firstIsKeyB ? 2 : 1;
+        int secondRight = firstIsKeyB ? 1 : 2;
+        String[] ret = new String[blockCount];
+        ArrayList<Integer> secondKeyBlocks = new ArrayList<>();
+        for (int i = 0; i < last; i++) {
+            int acGroup = getAcGroup(sectorIndex, i);
+            int requirement = Common.getOperationRequirements(
+                    acMatrix[0][acGroup], acMatrix[1][acGroup],
+                    acMatrix[2][acGroup], Operation.Read, false,
+                    keyBReadable);
+            ret[i] = NO_DATA;
+            if ((requirement & firstRight) != 0 && requirement != -1) {
+                byte[] block = readBlockOrNull(firstBlock + i);
+                if (block != null) {
+                    ret[i] = Common.bytes2Hex(block);
+                } else {
+                    // Should not happen. Re-authenticate and go on.
+                    authenticate(sectorIndex, firstKey, firstIsKeyB);
+                    if ((requirement & secondRight) != 0
+                            && secondKey != null) {
+                        // Maybe the other key can read it.
+                        secondKeyBlocks.add(i);
                     }
+                }
+            } else if ((requirement & secondRight) != 0
+                    && requirement != -1 && secondKey != null) {
+                secondKeyBlocks.add(i);
+            }
+        }
+        if (!secondKeyBlocks.isEmpty()
+                && authenticate(sectorIndex, secondKey, !firstIsKeyB)) {
+            for (int i : secondKeyBlocks) {
+                byte[] block = readBlockOrNull(firstBlock + i);
+                if (block != null) {
+                    ret[i] = Common.bytes2Hex(block);
+                } else {
+                    authenticate(sectorIndex, secondKey, !firstIsKeyB);
+                }
+            }
+        }
 
-                    blocks.add(Common.bytes2Hex(blockBytes));
-                } catch (TagLostException e) {
-                    throw e;
-                } catch (IOException e) {
-                    // Could not read block.
-                    // (Maybe due to key/authentication method.)
-                    Log.d(LOG_TAG, "(Recoverable) Error while reading block "
-                            + i + " from tag.");
-                    blocks.add(NO_DATA);
-                    if (!isConnected()) {
-                        throw new TagLostException(
-                                "Tag removed during readSector(...)");
+        // Sector trailer. The keys can not be read (except a readable
+        // key B), so they are taken from the key map.
+        String ac = Common.bytes2Hex(trailer).substring(12, 20);
+        String keyA = (keys[0] != null) ? Common.bytes2Hex(keys[0]) : NO_KEY;
+        String keyB;
+        if (keyBReadable && !firstIsKeyB) {
+            keyB = Common.bytes2Hex(trailer).substring(20);
+        } else {
+            keyB = (keys[1] != null) ? Common.bytes2Hex(keys[1]) : NO_KEY;
+        }
+        ret[last] = keyA + ac + keyB;
+        return ret;
+    }
+
+    /**
+     * Read a block of an already authenticated sector.
+     * @param block The block (absolute index).
+     * @return The block (16 bytes) or null if it could not be read.
+     * After a failed read, the sector must be authenticated again.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    private byte[] readBlockOrNull(int block) throws TagLostException {
+        try {
+            byte[] blockBytes = mMFC.readBlock(block);
+            // See readAuthenticatedSector() for broken readBlock()
+            // implementations.
+            if (blockBytes == null || blockBytes.length < 16) {
+                return null;
+            }
+            if (blockBytes.length > 16) {
+                blockBytes = Arrays.copyOf(blockBytes, 16);
+            }
+            return blockBytes;
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "(Recoverable) Error while reading block "
+                    + block + " from tag.");
+            if (!isConnected()) {
+                throw new TagLostException(
+                        "Tag removed during readSector(...)");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read the blocks of a dump again that could not be read before
+     * ({@link #NO_DATA}). Only the sectors with such blocks are
+     * authenticated and only these blocks are read. Each block is retried
+     * up to the given number of times with a growing delay (starting at
+     * {@link #RETRY_BASE_DELAY} ms, doubled each time, bounded by
+     * {@link #RETRY_MAX_DELAY} ms). The keys are taken from the key map
+     * or, if the sector is not in the key map or if its key does not
+     * work, from the sector trailer of the dump. If the Access Conditions
+     * of the sector are known, only keys with read rights are used.<br /><br />
+     * The results are merged with the dump (like
+     * {@link #mergeSectorData(String[], String[])}): blocks that were
+     * already read stay untouched.
+     * @param dump The dump. Keys are the sector numbers, values the blocks
+     * (see {@link #readAsMuchAsPossible(SparseArray)}).
+     * @param keyMap Keys (A and B) mapped to a sector. Might be null.
+     * @param maxAttempts Maximum number of read attempts per block.
+     * @return A copy of the dump with the recovered blocks. If the tag was
+     * removed, the sectors done so far are updated
+     * and {@link #isReadInterrupted()} will return true.
+     * @see #countFailedBlocks(SparseArray)
+     */
+    public SparseArray<String[]> retryFailedBlocks(SparseArray<String[]> dump,
+            SparseArray<byte[][]> keyMap, int maxAttempts) {
+        mReadInterrupted = false;
+        SparseArray<String[]> ret = dump.clone();
+        try {
+            for (int i = 0; i < dump.size(); i++) {
+                int sector = dump.keyAt(i);
+                String[] data = dump.valueAt(i);
+                if (data == null || sector >= getSectorCount()
+                        || data.length != getBlockCountInSector(sector)) {
+                    continue;
+                }
+                String[] retried = retryFailedBlocks(sector, data,
+                        (keyMap != null) ? keyMap.get(sector) : null,
+                        maxAttempts);
+                if (retried != null) {
+                    ret.put(sector, mergeSectorData(data, retried));
+                }
+            }
+        } catch (TagLostException e) {
+            mReadInterrupted = true;
+        }
+        return ret;
+    }
+
+    /**
+     * Count the blocks of a dump that could not be read ({@link #NO_DATA}).
+     * @param dump The dump (see {@link #readAsMuchAsPossible(SparseArray)}).
+     * @return Number of blocks that could not be read.
+     * @see #retryFailedBlocks(SparseArray, SparseArray, int)
+     */
+    public static int countFailedBlocks(SparseArray<String[]> dump) {
+        int count = 0;
+        for (int i = 0; i < dump.size(); i++) {
+            String[] data = dump.valueAt(i);
+            if (data == null) {
+                continue;
+            }
+            for (String block : data) {
+                if (NO_DATA.equals(block)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retry the failed blocks of a single sector.
+     * See {@link #retryFailedBlocks(SparseArray, SparseArray, int)}.
+     * @param sector The sector.
+     * @param data The blocks of the sector read before.
+     * @param keys The keys (A/B) from the key map. Might be null. If a key
+     * of the key map does not work, the key of the sector trailer
+     * of the dump is used.
+     * @param maxAttempts Maximum number of read attempts per block.
+     * @return The retried blocks (all other blocks are {@link #NO_DATA})
+     * or null if there was nothing to do or no key was known.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    private String[] retryFailedBlocks(int sector, String[] data,
+            byte[][] keys, int maxAttempts) throws TagLostException {
+        int last = data.length - 1;
+        boolean hasFailedBlocks = false;
+        for (int i = 0; i < last && !hasFailedBlocks; i++) {
+            hasFailedBlocks = NO_DATA.equals(data[i]);
+        }
+        if (!hasFailedBlocks) {
+            return null;
+        }
+        String trailer = data[last];
+        // Keys from the key map or from the sector trailer.
+        byte[][] sectorKeys = new byte[2][];
+        for (int k = 0; k < 2; k++) {
+            String hexKey = (k == 0) ? trailer.substring(0, 12)
+                    : trailer.substring(20);
+            if (KeyDictionary.parseKey(hexKey) != KeyDictionary.INVALID_KEY) {
+                sectorKeys[k] = Common.hex2Bytes(hexKey);
+            }
+            if (keys != null && keys[k] != null && (sectorKeys[k] == null
+                    || Arrays.equals(keys[k], sectorKeys[k])
+                    || authenticate(sector, keys[k], k == 1))) {
+                // Prefer the key of the key map, but only if it works.
+                // The key map might be from another tag.
+                sectorKeys[k] = keys[k];
+            }
+        }
+        if (sectorKeys[0] == null && sectorKeys[1] == null) {
+            return null;
+        }
+        byte[][] acMatrix = null;
+        String ac = trailer.substring(12, 18);
+        if (!ac.contains("-")) {
+            acMatrix = Common.acBytesToACMatrix(Common.hex2Bytes(ac));
+        }
+        boolean keyBReadable = acMatrix != null && Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+
+        String[] ret = new String[data.length];
+        Arrays.fill(ret, NO_DATA);
+        // The key the sector is authenticated with (-1 = none).
+        int authKey = -1;
+        int firstBlock = mMFC.sectorToBlock(sector);
+        for (int i = 0; i < last; i++) {
+            if (!NO_DATA.equals(data[i])) {
+                continue;
+            }
+            // Which keys may read this block?
+            int requirement = 3;
+            if (acMatrix != null) {
+                int acGroup = getAcGroup(sector, i);
+                requirement = Common.getOperationRequirements(
+                        acMatrix[0][acGroup], acMatrix[1][acGroup],
+                        acMatrix[2][acGroup], Operation.Read, false,
+                        keyBReadable);
+            }
+            ArrayList<Integer> usableKeys = new ArrayList<>(2);
+            for (int k = 0; k < 2; k++) {
+                if (sectorKeys[k] != null
+                        && (requirement == -1 || (requirement & (k + 1)) != 0)) {
+                    usableKeys.add(k);
+                }
+            }
+            long delay = RETRY_BASE_DELAY;
+            for (int attempt = 0; attempt < maxAttempts
+                    && !usableKeys.isEmpty(); attempt++) {
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return ret;
+                    }
+                    delay = Math.min(delay * 2, RETRY_MAX_DELAY);
+                }
+                // Alternate between the usable keys.
+                int k = usableKeys.get(attempt % usableKeys.size());
+                if (authKey != k) {
+                    if (!authenticate(sector, sectorKeys[k], k == 1)) {
+                        authKey = -1;
+                        continue;
                     }
-                    // After an error, a re-authentication is needed.
-                    authenticate(sectorIndex, key, useAsKeyB);
+                    authKey = k;
+                }
+                byte[] block = readBlockOrNull(firstBlock + i);
+                if (block != null) {
+                    ret[i] = Common.bytes2Hex(block);
+                    break;
+                }
+                // A failed read ends the authentication.
+                authKey = -1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read a set of blocks (e.g. the value blocks of some sectors) without
+     * reading the rest of the sectors. The blocks are grouped by sector
+     * and each sector is authenticated only once: with key A if it is
+     * known, otherwise with key B. Only the blocks that can not be read
+     * this way are read again with the other key.
+     * Sector trailers are returned as read from the tag (the keys
+     * are not merged in like in {@link #readSector(int, byte[], boolean)}).
+     * @param blocks The blocks (absolute block numbers, in any order).
+     * @param keyMap Keys (A and B) mapped to a sector. If a sector is not
+     * in the key map (or if the key map is null or its keys do not work),
+     * the keys will be resolved using {@link #resolveSectorKeys(int)}.
+     * @return The requested blocks. The key is the absolute block number,
+     * the value the block data (hex) or {@link #NO_DATA} if the block
+     * could not be read. Null if a block is not on the tag.
+     * @throws TagLostException When connection with/to tag is lost.
+     * @see #readBlocks(int[], SparseArray, boolean)
+     */
+    public SparseArray<String> readBlocks(int[] blocks,
+            SparseArray<byte[][]> keyMap) throws TagLostException {
+        return readBlocks(blocks, keyMap, false, true);
+    }
+
+    /**
+     * Same as {@link #readBlocks(int[], SparseArray)}, but made for reading
+     * the same blocks over and over again (e.g. to watch value blocks
+     * change). If keepAuthentication is true, the sector that is still
+     * authenticated from the last call is read first and without a new
+     * authentication. If all blocks are in one sector, no authentication
+     * is needed at all after the first call. Sectors that can only be
+     * read with key B are read with key B right away the next time.
+     * Unlike {@link #readBlocks(int[], SparseArray)}, the keys are never
+     * resolved here. Resolve them once before polling (e.g. with
+     * {@link #resolveSectorKeys(int)}). Blocks that can not be read with
+     * the keys of the key map are {@link #NO_DATA}.
+     * @param blocks The blocks (absolute block numbers, in any order).
+     * @param keyMap Keys (A and B) mapped to a sector. It should contain
+     * all sectors of the blocks.
+     * @param keepAuthentication If true, the last authentication
+     * will be reused.
+     * @return The requested blocks (see {@link #readBlocks(int[],
+     * SparseArray)}).
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    public SparseArray<String> readBlocks(int[] blocks,
+            SparseArray<byte[][]> keyMap, boolean keepAuthentication)
+            throws TagLostException {
+        return readBlocks(blocks, keyMap, keepAuthentication, false);
+    }
+
+    /**
+     * Read a set of blocks.
+     * See {@link #readBlocks(int[], SparseArray, boolean)}.
+     * @param blocks The blocks (absolute block numbers, in any order).
+     * @param keyMap Keys (A and B) mapped to a sector. Might be null.
+     * @param keepAuthentication If true, the last authentication
+     * will be reused.
+     * @param resolveKeys If true, the keys of sectors that are not in the
+     * key map (or whose keys do not work) are resolved with
+     * {@link #resolveSectorKeys(int)}.
+     * @return The requested blocks.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    private SparseArray<String> readBlocks(int[] blocks,
+            SparseArray<byte[][]> keyMap, boolean keepAuthentication,
+            boolean resolveKeys) throws TagLostException {
+        int sectorCount = getSectorCount();
+        // Group blocks by sector.
+        SparseArray<ArrayList<Integer>> sectors = new SparseArray<>();
+        SparseArray<String> ret = new SparseArray<>(blocks.length);
+        for (int block : blocks) {
+            if (block < 0 || block >= 256
+                    || blockToSector(block) >= sectorCount) {
+                return null;
+            }
+            int sector = blockToSector(block);
+            if (ret.indexOfKey(block) >= 0) {
+                // Duplicate.
+                continue;
+            }
+            ret.put(block, NO_DATA);
+            ArrayList<Integer> sectorBlocks = sectors.get(sector);
+            if (sectorBlocks == null) {
+                sectorBlocks = new ArrayList<>();
+                sectors.put(sector, sectorBlocks);
+            }
+            sectorBlocks.add(block);
+        }
+
+        // Start with the sector that is still authenticated.
+        int start = 0;
+        if (keepAuthentication && mAuthSector != -1) {
+            start = Math.max(0, sectors.indexOfKey(mAuthSector));
+        }
+        for (int n = 0; n < sectors.size(); n++) {
+            int i = (start + n) % sectors.size();
+            int sector = sectors.keyAt(i);
+            ArrayList<Integer> pending = sectors.valueAt(i);
+            byte[][] keys = (keyMap != null) ? keyMap.get(sector) : null;
+            if (keys != null) {
+                pending = readAuthenticatedBlocks(sector, keys, pending,
+                        keepAuthentication, ret);
+            }
+            if (resolveKeys && !pending.isEmpty()) {
+                // Not in the key map or the keys of the key map
+                // do not match (e.g. key map of another tag).
+                keys = resolveSectorKeys(sector);
+                if (keys != null) {
+                    readAuthenticatedBlocks(sector, keys, pending,
+                            keepAuthentication, ret);
                 }
             }
-            ret = blocks.toArray(new String[0]);
-            int last = ret.length -1;
+        }
+        return ret;
+    }
+
+    /**
+     * Read some blocks of a sector, first with key A and then the blocks
+     * that could not be read with key B. If the blocks of the sector
+     * could only be read with key B the last time, key B is used first.
+     * @param sector The sector of the blocks.
+     * @param keys The keys (A/B, each of them might be null).
+     * @param blocks The blocks to read (absolute block numbers).
+     * @param keepAuthentication If true, an authentication of this sector
+     * that is left from the last call will be reused.
+     * @param result The block data (hex) of the successfully
+     * read blocks will be put in here (key is the block number).
+     * @return The blocks that could not be read.
+     * @throws TagLostException When connection with/to tag is lost.
+     * @see #readBlocks(int[], SparseArray, boolean)
+     */
+    private ArrayList<Integer> readAuthenticatedBlocks(int sector,
+            byte[][] keys, ArrayList<Integer> blocks,
+            boolean keepAuthentication, SparseArray<String> result)
+            throws TagLostException {
+        int first = mReadWithKeyB.get(sector) ? 1 : 0;
+        boolean readWithFirstKey = false;
+        for (int n = 0; n < 2 && !blocks.isEmpty(); n++) {
+            int k = (first + n) % 2;
+            if (keys[k] == null) {
+                continue;
+            }
+            int pending = blocks.size();
+            blocks = readAuthenticatedBlocks(sector, keys[k], k == 1,
+                    blocks, keepAuthentication, result);
+            if (n == 0) {
+                readWithFirstKey = blocks.size() < pending;
+            } else if (!readWithFirstKey && blocks.isEmpty()) {
+                // Everything was read with the second key.
+                // Use it first next time.
+                mReadWithKeyB.put(sector, k == 1);
+            }
+        }
+        return blocks;
+    }
 
-            // Validate if it was possible to read any data.
-            boolean noData = true;
-            for (String s : ret) {
-                if (!s.equals(NO_DATA)) {
-                    noData = false;
+    /**
+     * Authenticate a sector and read some of its blocks. If a block can not
+     * be read, the sector is authenticated again (a failed read ends the
+     * authentication) and the remaining blocks are read.
+     * @param sector The sector of the blocks.
+     * @param key The key.
+     * @param useAsKeyB If true, key will be treated as key B
+     * for authentication.
+     * @param blocks The blocks to read (absolute block numbers).
+     * @param keepAuthentication If true and the sector is still
+     * authenticated with this key, the authentication is skipped.
+     * @param result The block data (hex) of the successfully
+     * read blocks will be put in here (key is the block number).
+     * @return The blocks that could not be read.
+     * @throws TagLostException When connection with/to tag is lost.
+     * @see #readBlocks(int[], SparseArray, boolean)
+     */
+    private ArrayList<Integer> readAuthenticatedBlocks(int sector,
+            byte[] key, boolean useAsKeyB, ArrayList<Integer> blocks,
+            boolean keepAuthentication, SparseArray<String> result)
+            throws TagLostException {
+        ArrayList<Integer> failed = new ArrayList<>();
+        boolean authenticated = keepAuthentication && mAuthSector == sector
+                && mAuthKeyB == useAsKeyB && Arrays.equals(mAuthKey, key);
+        boolean reused = authenticated;
+        for (int i = 0; i < blocks.size(); i++) {
+            int block = blocks.get(i);
+            if (!authenticated) {
+                authenticated = authenticate(sector, key, useAsKeyB);
+                if (!authenticated) {
+                    // Wrong key. Leave the remaining blocks to the other key.
+                    failed.addAll(blocks.subList(i, blocks.size()));
                     break;
                 }
             }
-            if (noData) {
-                // Was is possible to read any data (especially with key B)?
-                // If Key B may be read in the corresponding Sector Trailer,
-                // it cannot serve for authentication (according to NXP).
-                // What they mean is that you can authenticate successfully,
-                // but can not read data. In this case the
-                // readBlock() result is 0 for each block.
-                // Also, a tag might be bricked in a way that the authentication
-                // works, but reading data does not.
-                ret = null;
+            byte[] data = readBlockOrNull(block);
+            if (data != null) {
+                result.put(block, Common.bytes2Hex(data));
+            } else if (reused) {
+                // The reused authentication is no longer valid.
+                // Authenticate again and retry the block.
+                authenticated = false;
+                reused = false;
+                i--;
             } else {
-                // Merge key in last block (sector trailer).
-                if (!useAsKeyB) {
-                    if (isKeyBReadable(Common.hex2Bytes(
-                            ret[last].substring(12, 20)))) {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 32);
-                    } else {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 20) + NO_KEY;
-                    }
+                failed.add(block);
+                authenticated = false;
+            }
+        }
+        if (authenticated) {
+            mAuthSector = sector;
+            mAuthKey = key;
+            mAuthKeyB = useAsKeyB;
+        }
+        return failed;
+    }
+
+    /**
+     * Same as {@link #readSector(int, byte[], boolean)} but without the
+     * initial authentication. The sector must already be authenticated
+     * with the given key (e.g. right after a successful authentication
+     * during the key mapping).
+     * @param sectorIndex Index of the Sector to read.
+     * @param key Key the sector is authenticated with. It is needed for
+     * re-authentication after a failed block read and for the sector
+     * trailer.
+     * @param useAsKeyB If true, key is key B.
+     * @return Array of blocks (index 0-3 or 0-15) or null if no block could
+     * be read. See {@link #readSector(int, byte[], boolean)}.
+     * @throws TagLostException When connection with/to tag is lost.
+     */
+    private String[] readAuthenticatedSector(int sectorIndex, byte[] key,
+            boolean useAsKeyB) throws TagLostException {
+        String[] ret;
+        // Read all blocks.
+        ArrayList<String> blocks = new ArrayList<>();
+        int firstBlock = mMFC.sectorToBlock(sectorIndex);
+        int lastBlock = firstBlock + 4;
+        if (mMFC.getSize() == MifareClassic.SIZE_4K
+                && sectorIndex > 31) {
+            lastBlock = firstBlock + 16;
+        }
+        for (int i = firstBlock; i < lastBlock; i++) {
+            try {
+                byte[] blockBytes = mMFC.readBlock(i);
+                // mMFC.readBlock(i) must return 16 bytes or throw an error.
+                // At least this is what the documentation says.
+                // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
+                // sometimes returns < 16 bytes for unknown reasons.
+                // Update: Aaand sometimes it returns more than 16 bytes...
+                // The appended byte(s) are 0x00.
+                if (blockBytes.length < 16) {
+                    throw new IOException();
+                }
+                if (blockBytes.length > 16) {
+                    blockBytes = Arrays.copyOf(blockBytes,16);
+                }
+
+                blocks.add(Common.bytes2Hex(blockBytes));
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                // Could not read block.
+                // (Maybe due to key/authentication method.)
+                Log.d(LOG_TAG, "(Recoverable) Error while reading block "
+                        + i + " from tag.");
+                blocks.add(NO_DATA);
+                if (!isConnected()) {
+                    throw new TagLostException(
+                            "Tag removed during readSector(...)");
+                }
+                // After an error, a re-authentication is needed.
+                authenticate(sectorIndex, key, useAsKeyB);
+            }
+        }
+        ret = blocks.toArray(new String[0]);
+        int last = ret.length -1;
+
+        // Validate if it was possible to read any data.
+        boolean noData = true;
+        for (String s : ret) {
+            if (!s.equals(NO_DATA)) {
+                noData = false;
+                break;
+            }
+        }
+        if (noData) {
+            // Was is possible to read any data (especially with key B)?
+            // If Key B may be read in the corresponding Sector Trailer,
+            // it cannot serve for authentication (according to NXP).
+            // What they mean is that you can authenticate successfully,
+            // but can not read data. In this case the
+            // readBlock() result is 0 for each block.
+            // Also, a tag might be bricked in a way that the authentication
+            // works, but reading data does not.
+            ret = null;
+        } else {
+            // Merge key in last block (sector trailer).
+            if (!useAsKeyB) {
+                if (isKeyBReadable(Common.hex2Bytes(
+                        ret[last].substring(12, 20)))) {
+                    ret[last] = Common.bytes2Hex(key)
+                            + ret[last].substring(12, 32);
                 } else {
-                    ret[last] = NO_KEY + ret[last].substring(12, 20)
-                            + Common.bytes2Hex(key);
+                    ret[last] = Common.bytes2Hex(key)
+                            + ret[last].substring(12, 20) + NO_KEY;
                 }
+            } else {
+                ret[last] = NO_KEY + ret[last].substring(12, 20)
+                        + Common.bytes2Hex(key);
             }
         }
         return ret;
@@ -450,9 +1175,28 @@ public class MCReader {
      * sectors on the tag (See {@link #getSectorCount()}). If you call
      * this method once more after a full key map was created, it resets the
      * key map and starts all over.
+     * If key A was found and the access conditions allow reading key B,
+     * key B will be read from the sector trailer (and verified) instead of
+     * searching it in the dictionary.<br /><br />
+     * The mapping can be stopped at any key (not only between sectors)
+     * by calling {@link #stopMapping()} or by setting a time budget with
+     * {@link #setMappingTimeBudget(long)}. In this case the keys found
+     * so far (including the ones of the current sector) stay in the
+     * key map.<br /><br />
+     * If the tiered mapping is enabled ({@link #setTieredMapping(int)}),
+     * the sectors are walked twice. Use {@link #isMappingFinished()} to
+     * check if the key map is complete.
      * @return The sector that was just checked. On an error condition,
-     * it returns "-1" and resets the key map to "null".
+     * it returns "-1" and resets the key map to "null". If the mapping
+     * was stopped or the time budget is exceeded, it returns "-2" and
+     * the (partial) key map is kept.<br /><br />
+     * If a checkpoint file is set ({@link #setMappingCheckpoint(File)}),
+     * the progress will be saved regularly, so that an interrupted
+     * mapping can be resumed later on.
      * @see #getKeyMap()
+     * @see #stopMapping()
+     * @see #setMappingTimeBudget(long)
+     * @see #setTieredMapping(int)
      * @see #setKeyFile(File[], Context)
      * @see #setMappingRange(int, int)
      * @see #readAsMuchAsPossible(SparseArray)
@@ -460,10 +1204,33 @@ public class MCReader {
     public int buildNextKeyMapPart() {
         // Clear status and key map before new walk through sectors.
         boolean error = false;
+        boolean stopped = false;
         if (mKeysWithOrder != null && mLastSector != -1) {
-            if (mKeyMapStatus == mLastSector+1) {
+            int pendingSector = -1;
+            if (mKeyMapStatus == mLastSector+1 && mMappingPass == 1
+                    && mTierSize > 0) {
+                pendingSector = nextPendingSector(mFirstSector);
+            }
+            if (pendingSector != -1) {
+                // First tier is done. Now try the rest of the keys on
+                // the sectors with missing keys.
+                mMappingPass = 2;
+                mKeyMapStatus = pendingSector;
+            } else if (mKeyMapStatus == mLastSector+1) {
                 mKeyMapStatus = mFirstSector;
+                mMappingPass = 1;
+                initTiers();
+                mPrioritizedKeys = 0;
                 mKeyMap = new SparseArray<>();
+                mReusedKeys = new SparseArray<>();
+                mReuseTestedKeys = new KeyDictionary(16);
+                mSectorsByCache = 0;
+                mSectorsByReuse = 0;
+                mSectorsByDictionary = 0;
+                mReadSectors = new SparseArray<>();
+                mInterruptedKeyMap = null;
+                mDeadSectors = new SparseArray<>();
+                mPartialCacheHits = new SparseBooleanArray();
             }
 
             // Get auto reconnect setting.
@@ -475,43 +1242,244 @@ public class MCReader {
             int retryAuthCount = Common.getPreferences().getInt(
                     Preference.RetryAuthenticationCount.toString(), 1);
 
-            String[] keys = new String[2];
+            long[] keys = new long[2];
             boolean[] foundKeys = new boolean[] {false, false};
+            boolean[] preloadedKeys = new boolean[] {false, false};
             boolean auth;
+            boolean fromCache = false;
+            boolean fromDictionary = false;
+            boolean probed = false;
+            // Keys (A/B) already tried from the key hit statistics.
+            long[][] hitCandidates = new long[2][];
+            String[][] sectorData = new String[2][];
+            int sector = mKeyMapStatus;
+            boolean isNewSector = mKeyMap.get(sector) == null;
+            int i = 0;
+            // Only the first tier of keys in the first pass, all
+            // other keys in the second pass.
+            int keyCount = mKeysWithOrder.size();
+            if (mTierSize > 0 && mMappingPass == 1) {
+                keyCount = Math.min(mTierLimit, keyCount);
+            }
+            // The generated keys come first. They are all part of the
+            // first pass.
+            int generatedCount = (mMappingPass == 2) ? 0 : mGeneratedKeyCount;
+            int candidateCount = generatedCount + keyCount;
+
+            // Resume from a checkpoint?
+            if (mResumeSectorKeys != null) {
+                for (int k = 0; k < 2; k++) {
+                    if (mResumeSectorKeys[k] != null) {
+                        keys[k] = KeyDictionary.fromBytes(
+                                mResumeSectorKeys[k]);
+                        foundKeys[k] = true;
+                    }
+                }
+                i = mResumeKeyIndex;
+                mResumeSectorKeys = null;
+            } else if (mMappingPass == 2) {
+                // Use the keys found during the first pass.
+                byte[][] knownKeys = mKeyMap.get(sector);
+                for (int k = 0; k < 2; k++) {
+                    if (knownKeys != null && knownKeys[k] != null) {
+                        keys[k] = KeyDictionary.fromBytes(knownKeys[k]);
+                        foundKeys[k] = true;
+                        preloadedKeys[k] = true;
+                    }
+                }
+            } else if (mCachedKeys != null
+                    && tryCachedKeys(mKeyMapStatus, keys, foundKeys)) {
+                // The cached keys of this sector are still valid (and
+                // a missing key is not needed for reading).
+                // No need to walk through the dictionary.
+                i = candidateCount;
+                fromCache = true;
+                if (!foundKeys[0] || !foundKeys[1]) {
+                    // Don't search for the missing key in the second pass.
+                    mPartialCacheHits.put(mKeyMapStatus, true);
+                }
+            } else if (applyReusedKeys(mKeyMapStatus, keys, foundKeys)) {
+                // Both keys are known from the key reuse pass.
+                i = candidateCount;
+            }
+            if (mKeyHitStatistics != null && i == 0 && mMappingPass != 2
+                    && tryHitCandidates(mKeyMapStatus, keys, foundKeys,
+                            hitCandidates)) {
+                // The keys with the most hits in the past are valid.
+                fromDictionary = true;
+                if (foundKeys[0] && foundKeys[1]) {
+                    i = candidateCount;
+                }
+            }
+            if (foundKeys[0] && !foundKeys[1] && i == 0) {
+                // Key A is already known (cache or key reuse).
+                // Maybe key B can be read.
+                keys[1] = readKeyBFromTrailer(mKeyMapStatus,
+                        KeyDictionary.toBytes(keys[0]));
+                foundKeys[1] = keys[1] != KeyDictionary.INVALID_KEY;
+                if (!foundKeys[1] && mKeyPairIndex != null) {
+                    // Maybe key B is known to come with this key A.
+                    keys[1] = tryPairedKeyB(mKeyMapStatus, keys[0]);
+                    foundKeys[1] = keys[1] != KeyDictionary.INVALID_KEY;
+                    fromDictionary |= foundKeys[1];
+                }
+            }
 
             // Check next sector against all keys (lines) with
             // authentication method A and B.
             keysloop:
-            for (int i = 0; i < mKeysWithOrder.size(); i++) {
-                String key = mKeysWithOrder.get(i);
-                byte[] bytesKey = Common.hex2Bytes(key);
+            for (; i < candidateCount; i++) {
+                // Stop mapping or time budget exceeded?
+                if (isMappingStopped()) {
+                    stopped = true;
+                    break;
+                }
+                // Save the progress once in a while.
+                if (mCheckpointFile != null && System.currentTimeMillis()
+                        - mLastCheckpointTime >= 1000) {
+                    saveCheckpoint(i, keys, foundKeys);
+                }
+                long key;
+                if (i < generatedCount) {
+                    key = getGeneratedKey(i, mKeyMapStatus);
+                    if (key == KeyDictionary.INVALID_KEY) {
+                        // No key for this input (e.g. block 0 unknown).
+                        continue;
+                    }
+                } else {
+                    if (mKeysWithOrder.isShadowed(i - generatedCount)) {
+                        // Moved to the front and already tried there.
+                        continue;
+                    }
+                    key = mKeysWithOrder.get(i - generatedCount);
+                    if (mMappingPass == 2
+                            && Arrays.binarySearch(mTierKeys, key) >= 0) {
+                        // Already tried in the first pass.
+                        continue;
+                    }
+                }
+                if (mDetectDeadSectors && !probed && mMappingPass != 2
+                        && i >= PROBE_KEY_COUNT
+                        && !foundKeys[0] && !foundKeys[1]) {
+                    // Does the sector exist at all? Only checked once
+                    // per sector and only if the first keys failed.
+                    probed = true;
+                    if (probeSector(mKeyMapStatus, false) == SECTOR_DEAD) {
+                        // The sector does not exist or is damaged.
+                        // Don't waste thousands of authentications on it.
+                        Log.d(LOG_TAG, "Sector " + mKeyMapStatus
+                                + " does not respond. Skipping it.");
+                        mDeadSectors.put(mKeyMapStatus, true);
+                        break;
+                    }
+                }
+                // Skip the key types this key was already tried as (key hit
+                // statistics).
+                boolean skipKeyA = foundKeys[0]
+                        || wasTried(hitCandidates[0], key);
+                boolean skipKeyB = foundKeys[1]
+                        || wasTried(hitCandidates[1], key);
+                if (skipKeyA && skipKeyB) {
+                    continue;
+                }
+                // Reuse the same buffer for all keys (no allocation).
+                byte[] bytesKey = KeyDictionary.toBytes(key, mKeyBuffer);
                 for (int j = 0; j < retryAuthCount+1;) {
                     try {
-                        if (!foundKeys[0]) {
+                        if (!foundKeys[0] && !skipKeyA) {
                             auth = mMFC.authenticateSectorWithKeyA(
                                     mKeyMapStatus, bytesKey);
                             if (auth) {
                                 keys[0] = key;
                                 foundKeys[0] = true;
+                                fromDictionary = true;
+                                if (mReadWhileMapping) {
+                                    // Read while still authenticated.
+                                    sectorData[0] = readAuthenticatedSector(
+                                            mKeyMapStatus, bytesKey, false);
+                                }
+                                // Still authenticated with key A.
+                                // Maybe key B can be read.
+                                if (!foundKeys[1]) {
+                                    if (sectorData[0] != null) {
+                                        // Use the trailer that was just
+                                        // read.
+                                        keys[1] = readKeyBFromTrailer(
+                                                mKeyMapStatus, sectorData[0][
+                                                sectorData[0].length - 1]);
+                                    } else {
+                                        keys[1] = readKeyBFromTrailer(
+                                                mKeyMapStatus, (byte[]) null);
+                                    }
+                                    foundKeys[1] = keys[1]
+                                            != KeyDictionary.INVALID_KEY;
+                                    if (!foundKeys[1]
+                                            && mKeyPairIndex != null) {
+                                        // Try the keys B that came with
+                                        // this key A in the past.
+                                        keys[1] = tryPairedKeyB(
+                                                mKeyMapStatus, key);
+                                        foundKeys[1] = keys[1]
+                                                != KeyDictionary.INVALID_KEY;
+                                    }
+                                    if (foundKeys[1] && mReadWhileMapping) {
+                                        // Authenticated with key B now.
+                                        sectorData[1] = readAuthenticatedSector(
+                                                mKeyMapStatus,
+                                                KeyDictionary.toBytes(keys[1]),
+                                                true);
+                                    }
+                                }
                             }
                         }
-                        if (!foundKeys[1]) {
+                        if (!foundKeys[1] && !skipKeyB) {
                             auth = mMFC.authenticateSectorWithKeyB(
                                     mKeyMapStatus, bytesKey);
                             if (auth) {
                                 keys[1] = key;
                                 foundKeys[1] = true;
+                                fromDictionary = true;
+                                if (mReadWhileMapping) {
+                                    // Read while still authenticated.
+                                    sectorData[1] = readAuthenticatedSector(
+                                            mKeyMapStatus, bytesKey, true);
+                                }
                             }
                         }
                     } catch (Exception e) {
                         Log.d(LOG_TAG,
                                 "Error while building next key map part");
+                        if (mDetectDeadSectors && !probed && mMappingPass != 2
+                                && !foundKeys[0] && !foundKeys[1]) {
+                            // Does the sector exist at all? Only checked
+                            // once per sector.
+                            probed = true;
+                            int state = probeSector(mKeyMapStatus, true);
+                            if (state == SECTOR_DEAD) {
+                                // The sector does not exist or is damaged.
+                                // Don't waste thousands of authentications
+                                // on it.
+                                Log.d(LOG_TAG, "Sector " + mKeyMapStatus
+                                        + " does not respond. Skipping it.");
+                                mDeadSectors.put(mKeyMapStatus, true);
+                                break keysloop;
+                            }
+                            if (isConnected()) {
+                                // The probe reconnected. Repeat last loop
+                                // (do not incr. j).
+                                continue;
+                            }
+                        }
                         if (autoReconnect) {
                             // Is the tag still in range?
                             if (isConnectedButTagLost()) {
                                 close();
                             }
                             while (!isConnected()) {
+                                if (isMappingStopped()) {
+                                    stopped = true;
+                                    break keysloop;
+                                }
                                 // Sleep for 500ms.
                                 try {
                                     Thread.sleep(500);
@@ -545,11 +1513,19 @@ public class MCReader {
                     break;
                 }
             }
+            if ((error || stopped) && mCheckpointFile != null) {
+                // Save the progress to resume from here later on.
+                saveCheckpoint(i, keys, foundKeys);
+            }
             if (!error && (foundKeys[0] || foundKeys[1])) {
                 // At least one key found. Add key(s).
                 byte[][] bytesKeys = new byte[2][];
-                bytesKeys[0] = Common.hex2Bytes(keys[0]);
-                bytesKeys[1] = Common.hex2Bytes(keys[1]);
+                if (foundKeys[0]) {
+                    bytesKeys[0] = KeyDictionary.toBytes(keys[0]);
+                }
+                if (foundKeys[1]) {
+                    bytesKeys[1] = KeyDictionary.toBytes(keys[1]);
+                }
                 mKeyMap.put(mKeyMapStatus, bytesKeys);
                 // Key reuse is very likely, so try the found keys first or,
                 // if a all all-0 key is present, second.
@@ -559,34 +1535,1065 @@ public class MCReader {
                 // https://github.com/ikarus23/MifareClassicTool/issues/66
                 if (mKeysWithOrder.size() > 2) {
                     if (foundKeys[0]) {
-                        mKeysWithOrder.remove(keys[0]);
-                        if (mHasAllZeroKey && !keys[0].equals(DEFAULT_KEY)) {
-                            mKeysWithOrder.add(1, keys[0]);
-                        } else {
-                            mKeysWithOrder.add(0, keys[0]);
-                        }
+                        prioritizeKey(keys[0]);
                     }
                     if (foundKeys[1]) {
-                        mKeysWithOrder.remove(keys[1]);
-                        if (mHasAllZeroKey && !keys[1].equals(DEFAULT_KEY)) {
-                            mKeysWithOrder.add(1, keys[1]);
-                        } else {
-                            mKeysWithOrder.add(0, keys[1]);
+                        prioritizeKey(keys[1]);
+                    }
+                }
+                // Count the hits of the new keys.
+                if (mKeyHitStatistics != null) {
+                    for (int k = 0; k < 2; k++) {
+                        if (foundKeys[k] && !preloadedKeys[k]) {
+                            mKeyHitStatistics.record(mKeyMapStatus, k, keys[k]);
                         }
                     }
                 }
-            }
-            mKeyMapStatus++;
-        } else {
-            error = true;
-        }
-
-        if (error) {
+                // Remember which key B came with which key A.
+                if (mKeyPairIndex != null && foundKeys[0] && foundKeys[1]
+                        && !(preloadedKeys[0] && preloadedKeys[1])) {
+                    mKeyPairIndex.record(keys[0], keys[1]);
+                }
+                if (mKeyMapStatus == 0 && mKeyMapCache != null
+                        && mBlock0Hash == null) {
+                    mBlock0Hash = readBlock0Hash(bytesKeys);
+                }
+                if (mKeyMapStatus == 0 && mKeyGenerators != null
+                        && mBlock0 == null) {
+                    // Some key generators derive the keys from block 0.
+                    mBlock0 = readBlock0(bytesKeys);
+                }
+                // Update statistics.
+                if (!isNewSector) {
+                    // Already counted in the first pass.
+                } else if (fromCache) {
+                    mSectorsByCache++;
+                } else if (fromDictionary) {
+                    mSectorsByDictionary++;
+                } else {
+                    mSectorsByReuse++;
+                }
+                // Read the sector (if not already done during the mapping).
+                if (mReadWhileMapping && (isNewSector || fromDictionary)) {
+                    readMappedSector(mKeyMapStatus, bytesKeys, sectorData);
+                }
+                // Try the found keys on all remaining sectors.
+                if (mUseKeyReuse && !stopped) {
+                    for (int k = 0; k < 2; k++) {
+                        if (foundKeys[k]) {
+                            reuseKey(keys[k], mKeyMapStatus + 1);
+                        }
+                    }
+                }
+            }
+            if (mMappingPass == 2) {
+                mKeyMapStatus = nextPendingSector(sector + 1);
+                if (mKeyMapStatus == -1) {
+                    mKeyMapStatus = mLastSector + 1;
+                }
+            } else {
+                mKeyMapStatus = nextMappingSector(mKeyMapStatus + 1);
+            }
+            if (!error && !stopped && mCheckpointFile != null) {
+                if (isMappingFinished()) {
+                    // Mapping finished. The checkpoint is not needed anymore.
+                    MappingCheckpoint.delete(mCheckpointFile);
+                } else {
+                    saveCheckpoint(0, null, null);
+                }
+            }
+            if (!error && (stopped || isMappingFinished())) {
+                // Remember the keys for the rest of the session.
+                Common.addSessionKeys(getUID(), mKeyMap);
+            }
+            if (!error && mKeyMapCache != null
+                    && (stopped || isMappingFinished())) {
+                // Remember the keys of this tag for the next time.
+                mKeyMapCache.save(getUID(), mBlock0Hash, mKeyMap);
+            }
+            if (!error && mKeyHitStatistics != null
+                    && (stopped || isMappingFinished())) {
+                mKeyHitStatistics.save();
+            }
+            if (!error && mKeyPairIndex != null
+                    && (stopped || isMappingFinished())) {
+                mKeyPairIndex.save();
+            }
+        } else {
+            error = true;
+        }
+
+        if (error) {
+            // Keep the keys found so far, e.g. to show the sectors
+            // read so far after the tag was lost.
+            mInterruptedKeyMap = mKeyMap;
             mKeyMapStatus = 0;
             mKeyMap = null;
             return -1;
         }
-        return mKeyMapStatus - 1;
+        if (stopped) {
+            // Keep the partial key map but start all over on the next call.
+            mKeyMapStatus = mLastSector + 1;
+            mMappingPass = 0;
+            return -2;
+        }
+        return sector;
+    }
+
+    /**
+     * Enable or disable the detection of dead sectors for
+     * {@link #buildNextKeyMapPart()}. If enabled, a sector that is still
+     * without keys after the first keys of the dictionary (or after an
+     * error) will be probed once (see {@link #probeSector(int, boolean)}).
+     * If the tag drops the connection on each authentication or answers
+     * in a clearly different time than for a sector that exists, the
+     * sector does not exist (wrong sector count) or is damaged. Such
+     * sectors will be skipped.
+     * @param detectDeadSectors True to skip dead sectors.
+     * @see #getDeadSectors()
+     */
+    public void setDeadSectorDetection(boolean detectDeadSectors) {
+        mDetectDeadSectors = detectDeadSectors;
+    }
+
+    /**
+     * Get the sectors that were skipped by the last key mapping process
+     * because they did not respond (see
+     * {@link #setDeadSectorDetection(boolean)}).
+     * @return The skipped sectors (ascending).
+     */
+    public int[] getDeadSectors() {
+        int[] ret = new int[mDeadSectors.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = mDeadSectors.keyAt(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Probe a sector with the first keys of the dictionary (or some
+     * well known keys if no key file was set) using key A and key B.
+     * Android reports a transmission error during the authentication just
+     * as a failed authentication. Therefore a sector is only considered
+     * dead if each authentication either lost the connection to the tag
+     * or took clearly more or less time than the same (wrong key)
+     * authentication on a reference sector that exists.
+     * @param sector The sector to probe.
+     * @param afterError True if the last transmission failed with an error.
+     * The connection will be reset before probing in this case.
+     * @return
+     * <ul>
+     * <li>{@link #SECTOR_EXISTS} - One of the keys is valid.</li>
+     * <li>{@link #SECTOR_UNKNOWN} - None of the keys is valid, but
+     * the sector seems to exist (or the tag is gone).</li>
+     * <li>{@link #SECTOR_DEAD} - Every authentication lost the connection
+     * or had a suspicious timing while the tag is still responding.</li>
+     * </ul>
+     */
+    private int probeSector(int sector, boolean afterError) {
+        long[] probeKeys = PROBE_KEYS;
+        if (mKeysWithOrder != null && mKeysWithOrder.size() > 0) {
+            probeKeys = new long[Math.min(PROBE_KEY_COUNT,
+                    mKeysWithOrder.size())];
+            for (int i = 0; i < probeKeys.length; i++) {
+                probeKeys[i] = mKeysWithOrder.get(i);
+            }
+        }
+        if (afterError && !reconnect()) {
+            // Tag is gone. Nothing can be said about the sector.
+            return SECTOR_UNKNOWN;
+        }
+        ProbeResult target = probeAuthentications(sector, probeKeys);
+        if (target == null) {
+            return SECTOR_UNKNOWN;
+        }
+        if (target.opened) {
+            return SECTOR_EXISTS;
+        }
+        // Compare with a sector that exists (a mapped one if possible).
+        int refSector = (sector == 0) ? 1 : 0;
+        for (int i = 0; mKeyMap != null && i < mKeyMap.size(); i++) {
+            if (mKeyMap.keyAt(i) != sector) {
+                refSector = mKeyMap.keyAt(i);
+                break;
+            }
+        }
+        ProbeResult ref = probeAuthentications(refSector, probeKeys);
+        if (ref == null || ref.errors > 0 || ref.wrongKey == 0) {
+            // The tag is gone or unstable. No reliable reference.
+            return SECTOR_UNKNOWN;
+        }
+        int suspicious = target.errors;
+        for (int i = 0; i < target.wrongKey; i++) {
+            long time = target.wrongKeyNanos[i];
+            if (time < ref.minWrongKeyNanos / 2
+                    || time > ref.maxWrongKeyNanos * 2) {
+                suspicious++;
+            }
+        }
+        return (suspicious == target.errors + target.wrongKey)
+                ? SECTOR_DEAD : SECTOR_UNKNOWN;
+    }
+
+    /**
+     * Result of {@link #probeAuthentications(int, long[])}.
+     */
+    private static class ProbeResult {
+        private boolean opened = false;
+        private int wrongKey = 0;
+        private int errors = 0;
+        private long[] wrongKeyNanos;
+        private long minWrongKeyNanos = Long.MAX_VALUE;
+        private long maxWrongKeyNanos = 0;
+    }
+
+    /**
+     * Authenticate a sector with the given keys (key A and key B) and
+     * measure how long each failed authentication took. An authentication
+     * after which the tag is no longer connected counts as error and the
+     * connection will be reset.
+     * @param sector The sector to authenticate.
+     * @param keys The keys to use.
+     * @return The result of the authentications or null if the tag
+     * is gone.
+     */
+    private ProbeResult probeAuthentications(int sector, long[] keys) {
+        ProbeResult result = new ProbeResult();
+        result.wrongKeyNanos = new long[keys.length * 2];
+        for (long key : keys) {
+            byte[] bytesKey = KeyDictionary.toBytes(key);
+            for (int k = 0; k < 2; k++) {
+                long start = System.nanoTime();
+                boolean auth;
+                boolean error = false;
+                try {
+                    auth = (k == 0)
+                            ? mMFC.authenticateSectorWithKeyA(sector, bytesKey)
+                            : mMFC.authenticateSectorWithKeyB(sector, bytesKey);
+                } catch (IOException | RuntimeException e) {
+                    auth = false;
+                    error = true;
+                }
+                long time = System.nanoTime() - start;
+                if (auth) {
+                    result.opened = true;
+                    return result;
+                }
+                if (error || !isConnected()) {
+                    result.errors++;
+                    if (!reconnect()) {
+                        return null;
+                    }
+                    continue;
+                }
+                result.wrongKeyNanos[result.wrongKey++] = time;
+                result.minWrongKeyNanos = Math.min(
+                        result.minWrongKeyNanos, time);
+                result.maxWrongKeyNanos = Math.max(
+                        result.maxWrongKeyNanos, time);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Close the connection to the tag and connect again. This resets the
+     * state of the tag after a failed transmission.
+     * @return True if the tag is connected again. False otherwise.
+     */
+    private boolean reconnect() {
+        close();
+        try {
+            connect();
+        } catch (Exception e) {
+            return false;
+        }
+        return isConnected();
+    }
+
+    /**
+     * Detect the real sector count of the tag by probing the last sector
+     * of each possible tag size (see {@link #probeSector(int, boolean)}).
+     * Some (clone) tags report a wrong size. The sector count reported by
+     * Android is only reduced if its last sector is dead, and only
+     * increased if a sector beyond is accessible with one of the
+     * probe keys. The result is cached for this tag (UID) and used by
+     * {@link #getSectorCount()}. Probing resets the connection. Therefore
+     * this should only be called once right after connecting the reader,
+     * never in the middle of another operation.
+     * @return The detected sector count.
+     * @see #getSectorCount()
+     */
+    public int detectSectorCount() {
+        if (mDetectedSectorCount != -1) {
+            return mDetectedSectorCount;
+        }
+        String uid = getUID();
+        synchronized (mDetectedSectorCounts) {
+            Integer cached = mDetectedSectorCounts.get(uid);
+            if (cached != null) {
+                mDetectedSectorCount = cached;
+                return cached;
+            }
+        }
+        int count = mMFC.getSectorCount();
+        // Smaller than reported?
+        for (int i = SECTOR_COUNTS.length - 1; i > 0; i--) {
+            if (SECTOR_COUNTS[i] == count
+                    && probeSector(count - 1, false) == SECTOR_DEAD) {
+                count = SECTOR_COUNTS[i - 1];
+            }
+        }
+        // Larger than reported?
+        for (int sectorCount : SECTOR_COUNTS) {
+            if (sectorCount <= count) {
+                continue;
+            }
+            if (probeSector(sectorCount - 1, false) != SECTOR_EXISTS) {
+                break;
+            }
+            count = sectorCount;
+        }
+        mDetectedSectorCount = count;
+        synchronized (mDetectedSectorCounts) {
+            mDetectedSectorCounts.put(uid, count);
+        }
+        return count;
+    }
+
+    /**
+     * Check if the current key mapping process is done. This is the case
+     * once the last sector of the mapping range was checked (and, for the
+     * tiered mapping, the second pass is done too).
+     * @return True if the key map is complete. False otherwise.
+     * @see #buildNextKeyMapPart()
+     * @see #setTieredMapping(int)
+     */
+    public boolean isMappingFinished() {
+        if (mKeyMapStatus != mLastSector + 1) {
+            return false;
+        }
+        return mMappingPass != 1 || mTierSize <= 0
+                || nextPendingSector(mFirstSector) == -1;
+    }
+
+    /**
+     * Get the pass of the key mapping process. Without the tiered mapping,
+     * there is only one pass. With the tiered mapping, the first pass
+     * tries the first tier of keys on all sectors and the second pass
+     * tries the rest of the keys on sectors with missing keys.
+     * @return The pass (1 or 2) of the sector returned by the last call of
+     * {@link #buildNextKeyMapPart()}. 0 if there is no mapping in progress.
+     * @see #setTieredMapping(int)
+     */
+    public int getMappingPass() {
+        return mMappingPass;
+    }
+
+    /**
+     * Enable or disable the tiered (breadth-first) key mapping. In the
+     * first pass only the first keys of the dictionary (the first tier,
+     * plus all keys found in the meantime) are tried on all sectors.
+     * In the second pass, the rest of the keys are tried on the sectors
+     * which still have missing keys. This way, the readable part of the
+     * tag is mapped quickly, even if some "hard" sectors are at the
+     * beginning. This must be called before the mapping starts.
+     * @param tierSize Number of keys in the first tier. 0 disables the
+     * tiered mapping.
+     * @see #buildNextKeyMapPart()
+     * @see #isMappingFinished()
+     */
+    public void setTieredMapping(int tierSize) {
+        mTierSize = Math.max(tierSize, 0);
+    }
+
+    /**
+     * Remember the keys of the first tier (the first keys of the
+     * dictionary) at the beginning of a mapping process. They are
+     * sorted, so the second pass can skip them with a binary search.
+     * @see #setTieredMapping(int)
+     */
+    private void initTiers() {
+        mTierLimit = Math.min(mTierSize, mKeysWithOrder.size());
+        mTierKeys = new long[mTierLimit];
+        for (int i = 0; i < mTierLimit; i++) {
+            mTierKeys[i] = mKeysWithOrder.get(i);
+        }
+        Arrays.sort(mTierKeys);
+    }
+
+    /**
+     * Find the next sector of the mapping range for which key A or key B
+     * is still unknown.
+     * @param fromSector The sector to start searching from.
+     * @return The next sector with missing keys or -1 if there is none.
+     */
+    private int nextPendingSector(int fromSector) {
+        if (mKeyMap == null) {
+            return -1;
+        }
+        for (int i = nextMappingSector(Math.max(fromSector, mFirstSector));
+                i <= mLastSector; i = nextMappingSector(i + 1)) {
+            byte[][] keys = mKeyMap.get(i);
+            if (mDeadSectors.get(i) != null || mPartialCacheHits.get(i)) {
+                continue;
+            }
+            if (keys == null || keys[0] == null || keys[1] == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Set a file for saving checkpoints of the key mapping process.
+     * If the file already contains a checkpoint of the same tag (UID),
+     * mapping range and keys (see {@link #setKeyFile(File[], Context)}),
+     * the key mapping will continue from this checkpoint, including the
+     * pass of the tiered mapping, the key order and the key index of the
+     * sector that was mapped at that time.
+     * This must be called after {@link #setKeyFile(File[], Context)} and
+     * {@link #setMappingRange(int, int)}.
+     * @param checkpointFile The checkpoint file or null to disable
+     * checkpoints.
+     * @return The sector from which the mapping will resume or -1 if there
+     * is no matching checkpoint.
+     * @see MappingCheckpoint
+     * @see Common#KEY_MAP_CHECKPOINT_FILE
+     */
+    public int setMappingCheckpoint(File checkpointFile) {
+        mCheckpointFile = checkpointFile;
+        mResumeKeyIndex = 0;
+        mResumeSectorKeys = null;
+        if (checkpointFile == null || mKeysWithOrder == null
+                || mLastSector == -1) {
+            return -1;
+        }
+        MappingCheckpoint checkpoint = MappingCheckpoint.load(checkpointFile);
+        if (checkpoint == null || !checkpoint.matches(getUID(),
+                mMappingSectors, mKeysFingerprint)) {
+            return -1;
+        }
+        // Restore the key map, the pass and the key order as it was at
+        // the time of the checkpoint (found keys were moved to the front).
+        // The first tier is taken from the original key order.
+        mKeyMap = checkpoint.getKeyMap();
+        mMappingPass = (checkpoint.getPass() == 2 && mTierSize > 0) ? 2 : 1;
+        if (mTierSize > 0) {
+            initTiers();
+            mTierLimit = Math.min(Math.max(checkpoint.getTierLimit(),
+                    mTierLimit), mKeysWithOrder.size());
+        }
+        long[] keyOrder = checkpoint.getKeyOrder();
+        for (int i = keyOrder.length - 1; i >= 0; i--) {
+            mKeysWithOrder.moveOrInsert(keyOrder[i], 0);
+        }
+        mPrioritizedKeys = keyOrder.length;
+        mKeyMapStatus = checkpoint.getSector();
+        mResumeKeyIndex = Math.min(checkpoint.getKeyIndex(),
+                mGeneratedKeyCount + mKeysWithOrder.size());
+        mResumeSectorKeys = checkpoint.getSectorKeys();
+        return mKeyMapStatus;
+    }
+
+    /**
+     * Enable or disable reading the sectors during the key mapping. If
+     * enabled, {@link #buildNextKeyMapPart()} reads a sector right after
+     * a successful authentication, while the sector is still authenticated.
+     * This saves the authentications of a separate
+     * {@link #readAsMuchAsPossible(SparseArray)} call.
+     * The data can be retrieved by {@link #getReadSectors()} or
+     * streamed by a listener.
+     * @param readWhileMapping True to read while mapping.
+     * @param listener Listener for read sectors. Might be null.
+     */
+    public void setReadWhileMapping(boolean readWhileMapping,
+            SectorReadListener listener) {
+        mReadWhileMapping = readWhileMapping;
+        mSectorReadListener = listener;
+    }
+
+    /**
+     * Get the sectors read during the key mapping (see
+     * {@link #setReadWhileMapping(boolean, SectorReadListener)}).
+     * Not every sector of the key map is part of it: sectors restored
+     * from a checkpoint ({@link #setMappingCheckpoint(File)}), sectors
+     * whose reading failed (e.g. a short loss of the tag) and sectors
+     * for which keys were found after the mapping was stopped are missing.
+     * Read them with {@link #readAsMuchAsPossible(SparseArray)}.
+     * @return A Key-Value Pair like
+     * {@link #readAsMuchAsPossible(SparseArray)} returns it.
+     */
+    public SparseArray<String[]> getReadSectors() {
+        return mReadSectors;
+    }
+
+    /**
+     * Complete and store the data of a mapped sector. Keys whose data was
+     * not read during the mapping itself (e.g. keys from the cache or from
+     * the key reuse pass) need an additional authentication.
+     * @param sector The mapped sector.
+     * @param keys The keys (A/B) of the sector. Each of them might be null.
+     * @param sectorData The data read with key A and key B so far. Each of
+     * them might be null.
+     * @see #setReadWhileMapping(boolean, SectorReadListener)
+     */
+    private void readMappedSector(int sector, byte[][] keys,
+            String[][] sectorData) {
+        String[] data = null;
+        try {
+            if (sectorData[0] == null && sectorData[1] == null) {
+                // Nothing read yet. Read as the Access Conditions say.
+                data = readSector(sector, keys);
+            } else {
+                for (int i = 0; i < 2; i++) {
+                    if (keys[i] != null && sectorData[i] == null) {
+                        sectorData[i] = readSector(sector, keys[i], i == 1);
+                    }
+                }
+            }
+        } catch (TagLostException e) {
+            Log.d(LOG_TAG, "Tag lost while reading sector " + sector + ".");
+        }
+        if (data == null) {
+            data = mergeSectorData(sectorData[0], sectorData[1]);
+        }
+        if (data != null) {
+            mReadSectors.put(sector, data);
+            if (mSectorReadListener != null) {
+                mSectorReadListener.onSectorRead(sector, data);
+            }
+        }
+    }
+
+    /**
+     * Try to read key B from the sector trailer. This is possible if the
+     * access conditions allow reading key B with key A (see
+     * {@link Common#isKeyBReadable(byte, byte, byte)}). A key B read this
+     * way will be verified by an authentication.
+     * @param sector The sector of the trailer.
+     * @param keyA Key A of the sector. If null, the sector must
+     * already be authenticated with key A.
+     * @return Key B (packed) or {@link KeyDictionary#INVALID_KEY} if key B
+     * is not readable, could not be read or is not valid.
+     */
+    private long readKeyBFromTrailer(int sector, byte[] keyA) {
+        if (keyA != null && !authenticate(sector, keyA, false)) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        byte[] trailer;
+        try {
+            trailer = mMFC.readBlock(mMFC.sectorToBlock(sector)
+                    + mMFC.getBlockCountInSector(sector) - 1);
+        } catch (IOException | RuntimeException e) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        if (trailer == null || trailer.length < 16) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        byte[][] acMatrix = Common.acBytesToACMatrix(
+                Arrays.copyOfRange(trailer, 6, 9));
+        if (acMatrix == null || !Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3])) {
+            return KeyDictionary.INVALID_KEY;
+        }
+        byte[] keyB = Arrays.copyOfRange(trailer, 10, 16);
+        if (!authenticate(sector, keyB, true)) {
+            // Some tags do not allow the authentication with a
+            // readable key B.
+            return KeyDictionary.INVALID_KEY;
+        }
+        Log.d(LOG_TAG, "Key B of sector " + sector
+                + " was read from the sector trailer.");
+        return KeyDictionary.fromBytes(keyB);
+    }
+
+    /**
+     * Same as {@link #readKeyBFromTrailer(int, byte[])} but with a sector
+     * trailer that was already read with key A (see
+     * {@link #readAuthenticatedSector(int, byte[], boolean)}). The trailer
+     * is only read again if it is missing in the sector data. The sector
+     * must still be authenticated with key A in this case.
+     * @param sector The sector of the trailer.
+     * @param trailer The sector trailer as hex string (key B is
+     * {@link #NO_KEY} if it is not readable).
+     * @return Key B (packed) or {@link KeyDictionary#INVALID_KEY} if key B
+     * is not readable or is not valid.
+     */
+    private long readKeyBFromTrailer(int sector, String trailer) {
+        if (trailer == null || trailer.length() != 32
+                || !trailer.substring(12, 20).matches("[0-9A-Fa-f]+")) {
+            // The trailer could not be read before.
+            return readKeyBFromTrailer(sector, (byte[]) null);
+        }
+        String keyB = trailer.substring(20);
+        if (!keyB.matches("[0-9A-Fa-f]+")) {
+            // Key B is not readable.
+            return KeyDictionary.INVALID_KEY;
+        }
+        byte[] keyBBytes = Common.hex2Bytes(keyB);
+        if (!authenticate(sector, keyBBytes, true)) {
+            // Some tags do not allow the authentication with a
+            // readable key B.
+            return KeyDictionary.INVALID_KEY;
+        }
+        Log.d(LOG_TAG, "Key B of sector " + sector
+                + " was read from the sector trailer.");
+        return KeyDictionary.fromBytes(keyBBytes);
+    }
+
+    /**
+     * Enable or disable the key reuse pass of
+     * {@link #buildNextKeyMapPart()}. If enabled, every newly found key
+     * will be tried right away (as key A and key B) on all remaining sectors
+     * of the mapping range. Sectors which can be opened this way don't
+     * need a dictionary walk. This is very efficient for tags that use
+     * only a few different keys.
+     * @param useKeyReuse True to enable the key reuse pass.
+     * @see #getSectorsResolvedByReuse()
+     */
+    public void setKeyReuse(boolean useKeyReuse) {
+        mUseKeyReuse = useKeyReuse;
+    }
+
+    /**
+     * Get the number of sectors of the current/last mapping process
+     * whose keys were all found by the key reuse pass.
+     * @return Number of sectors resolved by key reuse.
+     * @see #setKeyReuse(boolean)
+     */
+    public int getSectorsResolvedByReuse() {
+        return mSectorsByReuse;
+    }
+
+    /**
+     * Get the number of sectors of the current/last mapping process
+     * for which at least one key was found by walking the dictionary.
+     * @return Number of sectors resolved by the dictionary.
+     */
+    public int getSectorsResolvedByDictionary() {
+        return mSectorsByDictionary;
+    }
+
+    /**
+     * Get the number of sectors of the current/last mapping process
+     * whose keys were all verified from the key map cache.
+     * @return Number of sectors resolved by the key map cache.
+     * @see #setKeyMapCache(KeyMapCache)
+     */
+    public int getSectorsResolvedByCache() {
+        return mSectorsByCache;
+    }
+
+    /**
+     * Try a found key as key A and key B on all remaining sectors of the
+     * mapping range for which the corresponding key is still unknown.
+     * The results are used by {@link #applyReusedKeys(int, long[], boolean[])}
+     * once the mapping reaches these sectors. Each key is only
+     * tried once per mapping process.
+     * @param key The found key.
+     * @param firstSector The first sector to try the key on.
+     */
+    private void reuseKey(long key, int firstSector) {
+        if (mReuseTestedKeys.contains(key)) {
+            return;
+        }
+        mReuseTestedKeys.add(key);
+        byte[] bytesKey = KeyDictionary.toBytes(key);
+        for (int sector = nextMappingSector(firstSector);
+                sector <= mLastSector; sector = nextMappingSector(sector + 1)) {
+            if (isMappingStopped()) {
+                return;
+            }
+            byte[][] reused = mReusedKeys.get(sector);
+            if (reused == null) {
+                reused = new byte[2][];
+            }
+            for (int k = 0; k < 2; k++) {
+                if (reused[k] == null && authenticate(sector, bytesKey, k == 1)) {
+                    reused[k] = bytesKey;
+                }
+            }
+            if (reused[0] != null || reused[1] != null) {
+                mReusedKeys.put(sector, reused);
+            }
+        }
+    }
+
+    /**
+     * Use the keys found by the key reuse pass for a sector.
+     * @param sector The sector.
+     * @param keys Reused keys (A/B) will be stored here (if not already
+     * found).
+     * @param foundKeys Will be set to true for each reused key.
+     * @return True if both keys (A and B) are known now.
+     * @see #reuseKey(long, int)
+     */
+    private boolean applyReusedKeys(int sector, long[] keys,
+            boolean[] foundKeys) {
+        byte[][] reused = mReusedKeys.get(sector);
+        if (reused == null) {
+            return false;
+        }
+        for (int k = 0; k < 2; k++) {
+            if (!foundKeys[k] && reused[k] != null) {
+                keys[k] = KeyDictionary.fromBytes(reused[k]);
+                foundKeys[k] = true;
+            }
+        }
+        return foundKeys[0] && foundKeys[1];
+    }
+
+    /**
+     * Set a key map cache for {@link #buildNextKeyMapPart()}. If the cache
+     * contains keys for this tag (UID), these keys are tried first (one
+     * authentication per key and sector). Only for sectors where a cached
+     * key is not valid anymore, the keys from the key files are used.
+     * Once the mapping is done, the key map of this tag will be saved
+     * to the cache.
+     * @param cache The key map cache or null to disable it.
+     * @return Number of sectors with cached keys for this tag.
+     * @see KeyMapCache
+     */
+    public int setKeyMapCache(KeyMapCache cache) {
+        mKeyMapCache = cache;
+        mCachedKeys = null;
+        mCachedBlock0Hash = null;
+        mCacheVerified = false;
+        mBlock0Hash = null;
+        if (cache == null) {
+            return 0;
+        }
+        KeyMapCache.Entry entry = cache.loadEntry(getUID());
+        if (entry != null) {
+            mCachedKeys = entry.getKeyMap();
+            mCachedBlock0Hash = entry.getBlock0Hash();
+        }
+        return (mCachedKeys == null) ? 0 : mCachedKeys.size();
+    }
+
+    /**
+     * Set the key hit statistics for {@link #buildNextKeyMapPart()}. For
+     * each sector, the keys that were valid most often for this sector
+     * (and key type) in the past are tried before the keys from the key
+     * files. All keys found during the mapping will be counted. The
+     * statistics are saved once the mapping is done or stopped.
+     * @param statistics The key hit statistics or null to disable them.
+     * @see KeyHitStatistics
+     */
+    public void setKeyHitStatistics(KeyHitStatistics statistics) {
+        mKeyHitStatistics = statistics;
+    }
+
+    /**
+     * Try the keys with the most hits of the key hit statistics on a
+     * sector (see {@link #setKeyHitStatistics(KeyHitStatistics)}).
+     * @param sector The sector to check.
+     * @param keys Found keys (A/B) will be stored here (if not already
+     * found).
+     * @param foundKeys Will be set to true for each found key.
+     * @param tried The keys tried as key A (index 0) and key B (index 1)
+     * will be stored here (sorted, see {@link #wasTried(long[], long)}),
+     * so the dictionary walk can skip them.
+     * @return True if at least one key was found.
+     */
+    private boolean tryHitCandidates(int sector, long[] keys,
+            boolean[] foundKeys, long[][] tried) {
+        boolean found = false;
+        for (int k = 0; k < 2; k++) {
+            if (foundKeys[k]) {
+                continue;
+            }
+            long[] candidates = mKeyHitStatistics.getCandidates(
+                    sector, k, MAX_HIT_CANDIDATES);
+            int count = 0;
+            for (long candidate : candidates) {
+                if (isMappingStopped()) {
+                    break;
+                }
+                count++;
+                if (authenticate(sector, KeyDictionary.toBytes(candidate),
+                        k == 1)) {
+                    keys[k] = candidate;
+                    foundKeys[k] = true;
+                    found = true;
+                    break;
+                }
+            }
+            tried[k] = Arrays.copyOf(candidates, count);
+            Arrays.sort(tried[k]);
+            if (isMappingStopped()) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Check if a key is one of the keys already tried on the current
+     * sector (see {@link #tryHitCandidates(int, long[], boolean[],
+     * long[][])}).
+     * @param tried The tried keys (sorted) or null if none were tried.
+     * @param key The key to check.
+     * @return True if the key was already tried.
+     */
+    private static boolean wasTried(long[] tried, long key) {
+        return tried != null && Arrays.binarySearch(tried, key) >= 0;
+    }
+
+    /**
+     * Set the key pair index for {@link #buildNextKeyMapPart()}. Once
+     * key A of a sector is found (and key B can not be read from the
+     * sector trailer), the keys B used together with this key A in the
+     * past are tried before the rest of the dictionary. All key pairs
+     * found during the mapping will be added. The index is saved once the
+     * mapping is done or stopped.
+     * @param index The key pair index or null to disable it.
+     * @see KeyPairIndex
+     */
+    public void setKeyPairIndex(KeyPairIndex index) {
+        mKeyPairIndex = index;
+    }
+
+    /**
+     * Try the keys B associated with a key A on a sector (see
+     * {@link #setKeyPairIndex(KeyPairIndex)}).
+     * @param sector The sector to check.
+     * @param keyA The (valid) key A of the sector.
+     * @return The valid key B or {@link KeyDictionary#INVALID_KEY} if
+     * none of the associated keys is valid.
+     */
+    private long tryPairedKeyB(int sector, long keyA) {
+        for (long candidate : mKeyPairIndex.getCandidates(
+                keyA, MAX_PAIR_CANDIDATES)) {
+            if (isMappingStopped()) {
+                break;
+            }
+            if (authenticate(sector, KeyDictionary.toBytes(candidate),
+                    true)) {
+                return candidate;
+            }
+        }
+        return KeyDictionary.INVALID_KEY;
+    }
+
+    /**
+     * Verify the cached keys of a sector (see
+     * {@link #setKeyMapCache(KeyMapCache)}). Before the first sector is
+     * checked, block 0 will be compared with the cached one (no matter
+     * if sector 0 is part of the mapping). If it differs, this is another
+     * tag with the same UID and the whole cache entry will be ignored.
+     * A partial hit (e.g. only key A is cached because key B was never
+     * found) is accepted if the missing key is not needed to read the
+     * data blocks of the sector.
+     * @param sector The sector to check.
+     * @param keys Found keys (A/B) will be stored here.
+     * @param foundKeys Will be set to true for each found key.
+     * @return True if the verified cached keys are sufficient and there is
+     * no need to search for the other key. False if there are no (valid)
+     * cached keys or if a missing key is needed to read the sector.
+     */
+    private boolean tryCachedKeys(int sector, long[] keys,
+            boolean[] foundKeys) {
+        if (!mCacheVerified) {
+            mCacheVerified = true;
+            if (!verifyCachedBlock0()) {
+                // Same UID but a different tag. Do not trust the cache.
+                Log.d(LOG_TAG, "Block 0 differs from the cached one. "
+                        + "Ignoring cached keys.");
+                mCachedKeys = null;
+                return false;
+            }
+        }
+        byte[][] cachedKeys = mCachedKeys.get(sector);
+        if (cachedKeys == null
+                || (cachedKeys[0] == null && cachedKeys[1] == null)) {
+            return false;
+        }
+        byte[][] validKeys = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            if (cachedKeys[i] != null
+                    && authenticate(sector, cachedKeys[i], i == 1)) {
+                keys[i] = KeyDictionary.fromBytes(cachedKeys[i]);
+                foundKeys[i] = true;
+                validKeys[i] = cachedKeys[i];
+            }
+        }
+        if (!foundKeys[0] && !foundKeys[1]) {
+            return false;
+        }
+        if (foundKeys[0] && foundKeys[1]) {
+            return true;
+        }
+        // Partial hit. Only search for the missing key if it is needed.
+        return !isKeyNeededForReading(sector, validKeys, foundKeys[0] ? 1 : 0);
+    }
+
+    /**
+     * Compare block 0 of the tag with the hash of block 0 stored in the
+     * key map cache entry. The cached keys of sector 0 are used to read
+     * block 0.
+     * @return True if block 0 matches or if it could not be checked
+     * (no hash or no keys of sector 0 cached). False if block 0 differs.
+     * @see #tryCachedKeys(int, long[], boolean[])
+     */
+    private boolean verifyCachedBlock0() {
+        byte[][] cachedKeys = mCachedKeys.get(0);
+        if (mCachedBlock0Hash == null || cachedKeys == null) {
+            return true;
+        }
+        String hash = readBlock0Hash(cachedKeys);
+        if (hash == null) {
+            return true;
+        }
+        mBlock0Hash = hash;
+        return mCachedBlock0Hash.equals(hash);
+    }
+
+    /**
+     * Check if a key type is needed to read the data blocks of a sector,
+     * according to the Access Conditions.
+     * @param sector The sector.
+     * @param keys The known keys (A/B) of the sector. One might be null.
+     * @param keyType The key type in question (0 = key A, 1 = key B).
+     * @return True if at least one data block can only be read with the
+     * given key type or if the Access Conditions could not be read.
+     * False otherwise.
+     */
+    private boolean isKeyNeededForReading(int sector, byte[][] keys,
+            int keyType) {
+        byte[][] acMatrix = readAcMatrix(sector, keys);
+        if (acMatrix == null) {
+            return true;
+        }
+        boolean isKeyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        for (int group = 0; group < 3; group++) {
+            int requirement = Common.getOperationRequirements(
+                    acMatrix[0][group], acMatrix[1][group],
+                    acMatrix[2][group], Operation.Read, false,
+                    isKeyBReadable);
+            if (requirement == keyType + 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read block 0 and calculate its hash.
+     * @param keys Keys (A/B) of sector 0. Each of them might be null.
+     * @return The hash of block 0 or null if it could not be read.
+     * @see KeyMapCache#hashBlock0(byte[])
+     */
+    private String readBlock0Hash(byte[][] keys) {
+        byte[] block0 = readBlock0(keys);
+        if (block0 == null) {
+            return null;
+        }
+        return KeyMapCache.hashBlock0(block0);
+    }
+
+    /**
+     * Read block 0 (the manufacturer block).
+     * @param keys Keys (A/B) of sector 0. Each of them might be null.
+     * @return Block 0 (16 bytes) or null if it could not be read.
+     */
+    private byte[] readBlock0(byte[][] keys) {
+        for (int i = 0; i < 2; i++) {
+            if (keys[i] != null && authenticate(0, keys[i], i == 1)) {
+                try {
+                    byte[] block0 = mMFC.readBlock(0);
+                    if (block0 != null && block0.length >= 16) {
+                        return Arrays.copyOf(block0, 16);
+                    }
+                } catch (IOException e) {
+                    // Try next key.
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save the current state of {@link #buildNextKeyMapPart()} to
+     * the checkpoint file.
+     * @param keyIndex Index of the next key to try for the current sector.
+     * @param keys Keys (A/B) found so far for the current sector or null.
+     * @param foundKeys Which of the keys were found or null.
+     * @see #setMappingCheckpoint(File)
+     */
+    private void saveCheckpoint(int keyIndex, long[] keys,
+            boolean[] foundKeys) {
+        byte[][] sectorKeys = new byte[2][];
+        if (keys != null && foundKeys != null) {
+            for (int i = 0; i < 2; i++) {
+                if (foundKeys[i]) {
+                    sectorKeys[i] = KeyDictionary.toBytes(keys[i]);
+                }
+            }
+        }
+        int pass = mMappingPass;
+        int sector = mKeyMapStatus;
+        if (sector == mLastSector + 1 && pass == 1 && mTierSize > 0) {
+            // The first pass is done. Resume with the second one.
+            pass = 2;
+            sector = nextPendingSector(mFirstSector);
+        }
+        // Save the keys that were moved to the front (plus the all-F key
+        // which might stay in front of them). The rest of the keys
+        // is still in the original order.
+        long[] keyOrder = new long[Math.min(mPrioritizedKeys + 1,
+                mKeysWithOrder.size())];
+        for (int i = 0; i < keyOrder.length; i++) {
+            keyOrder[i] = mKeysWithOrder.get(i);
+        }
+        MappingCheckpoint checkpoint = new MappingCheckpoint(getUID(),
+                mMappingSectors, mKeysFingerprint, pass, mTierLimit,
+                sector, keyIndex, keyOrder, sectorKeys, mKeyMap);
+        if (!checkpoint.save(mCheckpointFile)) {
+            Log.d(LOG_TAG, "Error while saving key mapping checkpoint.");
+        }
+        mLastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Stop the key mapping process of {@link #buildNextKeyMapPart()}.
+     * This can be called from any thread. The mapping will stop before
+     * the next key is tried.
+     * @see #buildNextKeyMapPart()
+     */
+    public void stopMapping() {
+        mStopMapping = true;
+    }
+
+    /**
+     * Limit the time of the key mapping process. Once the time
+     * budget is exceeded, {@link #buildNextKeyMapPart()} will stop and
+     * return "-2". The keys found so far stay in the key map.
+     * This also resets a previous {@link #stopMapping()}.
+     * @param millis The time budget in milliseconds, starting now.
+     * 0 or less means no limit.
+     * @see #buildNextKeyMapPart()
+     */
+    public void setMappingTimeBudget(long millis) {
+        mStopMapping = false;
+        if (millis > 0) {
+            mMappingDeadline = System.currentTimeMillis() + millis;
+        } else {
+            mMappingDeadline = 0;
+        }
+    }
+
+    /**
+     * Check if the key mapping was stopped by {@link #stopMapping()} or
+     * if the time budget set by {@link #setMappingTimeBudget(long)}
+     * is exceeded.
+     * @return True if the mapping should stop. False otherwise.
+     */
+    public boolean isMappingStopped() {
+        return mStopMapping || (mMappingDeadline > 0
+                && System.currentTimeMillis() >= mMappingDeadline);
     }
 
     /**
@@ -773,17 +2780,7 @@ public class MCReader {
                         blockWithWriteInfo.put(block, result);
                     } else {
                         // Data block.
-                        int acBitsForBlock = block;
-                        // Handle MIFARE Classic 4k Tags.
-                        if (sector >= 32) {
-                            if (block >= 0 && block <= 4) {
-                                acBitsForBlock = 0;
-                            } else if (block >= 5 && block <= 9) {
-                                acBitsForBlock = 1;
-                            } else if (block >= 10 && block <= 14) {
-                                acBitsForBlock = 2;
-                            }
-                        }
+                        int acBitsForBlock = getAcGroup(sector, block);
                         blockWithWriteInfo.put(
                                 block, Common.getOperationRequirements(
                                         acMatrix[0][acBitsForBlock],
@@ -802,13 +2799,243 @@ public class MCReader {
         return ret;
     }
 
+    /**
+     * Get the keys of a sector, searching them only when they are needed
+     * (lazy key lookup). The keys are searched in this order: keys
+     * already found during this session
+     * ({@link Common#getSessionKeys(String, int)}), the keys of the key
+     * map cache (if set, see {@link #setKeyMapCache(KeyMapCache)}) and
+     * then the key generators and key files (if set). Each key is
+     * verified with an authentication.<br /><br />
+     * Unlike {@link #buildNextKeyMapPart()}, this has no side effects on
+     * the mapping: the key map, the mapping range, the key order, the
+     * key map cache, the statistics and the checkpoint stay untouched.
+     * Only the found keys are remembered for the session.
+     * @param sector The sector.
+     * @return The keys (A/B, each of them might be null) or null if no
+     * key was found or if the tag was lost.
+     * @see #resolveKeys(int, int, Operation)
+     */
+    public byte[][] resolveSectorKeys(int sector) {
+        if (sector < 0 || sector >= getSectorCount()) {
+            return null;
+        }
+        String uid = getUID();
+        byte[][] keys = Common.getSessionKeys(uid, sector);
+        if (keys != null) {
+            // Verify the keys. The tag might have changed (same UID).
+            boolean valid = true;
+            for (int i = 0; i < 2; i++) {
+                if (keys[i] != null && !authenticate(sector, keys[i], i == 1)) {
+                    valid = false;
+                }
+            }
+            if (valid) {
+                return keys;
+            }
+            Common.removeSessionKeys(uid, sector);
+        }
+
+        keys = new byte[2][];
+        if (mCachedKeys != null && !mCacheVerified) {
+            mCacheVerified = true;
+            if (!verifyCachedBlock0()) {
+                // Same UID but a different tag. Do not trust the cache.
+                mCachedKeys = null;
+            }
+        }
+        byte[][] cachedKeys = (mCachedKeys == null) ? null
+                : mCachedKeys.get(sector);
+        if (cachedKeys != null) {
+            for (int i = 0; i < 2; i++) {
+                if (cachedKeys[i] != null
+                        && authenticate(sector, cachedKeys[i], i == 1)) {
+                    keys[i] = cachedKeys[i];
+                }
+            }
+        }
+        if (keys[0] != null && keys[1] == null) {
+            // Maybe key B can be read.
+            long keyB = readKeyBFromTrailer(sector, keys[0]);
+            if (keyB != KeyDictionary.INVALID_KEY) {
+                keys[1] = KeyDictionary.toBytes(keyB);
+            }
+        }
+        if ((keys[0] == null || keys[1] == null)
+                && !lookUpSectorKeys(sector, keys)) {
+            // Tag lost.
+            return null;
+        }
+        if (keys[0] == null && keys[1] == null) {
+            return null;
+        }
+        SparseArray<byte[][]> sessionKeys = new SparseArray<>();
+        sessionKeys.put(sector, keys);
+        Common.addSessionKeys(uid, sessionKeys);
+        return keys;
+    }
+
+    /**
+     * Search the missing keys of a sector in the key generators and the
+     * key files (see {@link #resolveSectorKeys(int)}). The order of the
+     * keys is not changed.
+     * @param sector The sector.
+     * @param keys The keys (A/B) found so far. Missing keys are null and
+     * will be set if they are found.
+     * @return True if the search was done (with or without finding the
+     * keys). False if the tag was lost.
+     */
+    private boolean lookUpSectorKeys(int sector, byte[][] keys) {
+        int generatedCount = (mKeyGenerators == null) ? 0
+                : mGeneratedKeyCount;
+        int keyCount = (mKeysWithOrder == null) ? 0 : mKeysWithOrder.size();
+        for (int i = 0; i < generatedCount + keyCount; i++) {
+            if (isMappingStopped()) {
+                return true;
+            }
+            long key;
+            if (i < generatedCount) {
+                key = getGeneratedKey(i, sector);
+                if (key == KeyDictionary.INVALID_KEY) {
+                    continue;
+                }
+            } else {
+                if (mKeysWithOrder.isShadowed(i - generatedCount)) {
+                    continue;
+                }
+                key = mKeysWithOrder.get(i - generatedCount);
+            }
+            byte[] bytesKey = KeyDictionary.toBytes(key, mKeyBuffer);
+            try {
+                if (keys[0] == null && mMFC.authenticateSectorWithKeyA(
+                        sector, bytesKey)) {
+                    keys[0] = KeyDictionary.toBytes(key);
+                    if (keys[1] == null) {
+                        // Still authenticated with key A.
+                        long keyB = readKeyBFromTrailer(sector,
+                                (byte[]) null);
+                        if (keyB != KeyDictionary.INVALID_KEY) {
+                            keys[1] = KeyDictionary.toBytes(keyB);
+                        }
+                    }
+                }
+                if (keys[1] == null && mMFC.authenticateSectorWithKeyB(
+                        sector, bytesKey)) {
+                    keys[1] = KeyDictionary.toBytes(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.d(LOG_TAG, "Error while looking up keys of sector "
+                        + sector);
+                return false;
+            } finally {
+                mAuthSector = -1;
+            }
+            if (keys[0] != null && keys[1] != null) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the keys of a sector that have the rights for an operation
+     * on a block (e.g. "a key with write rights for block 1 of
+     * sector 7"). The keys are resolved with
+     * {@link #resolveSectorKeys(int)} and then checked against the
+     * Access Conditions of the sector.
+     * @param sector The sector.
+     * @param block The block within the sector.
+     * @param op The operation.
+     * @return The keys (A/B) with the rights for the operation. A key is
+     * null if it has not the rights or if it is unknown. If the Access
+     * Conditions can not be read, all found keys are returned. Null if no
+     * key with the rights was found.
+     * @see Common#getOperationRequirements(byte, byte, byte, Operation,
+     * boolean, boolean)
+     */
+    public byte[][] resolveKeys(int sector, int block, Operation op) {
+        byte[][] keys = resolveSectorKeys(sector);
+        if (keys == null) {
+            return null;
+        }
+        byte[][] acMatrix = readAcMatrix(sector, keys);
+        if (acMatrix == null) {
+            // Maybe one of the keys works anyway.
+            return keys;
+        }
+        boolean isSectorTrailer = block == getBlockCountInSector(sector) - 1;
+        int acGroup = isSectorTrailer ? 3 : getAcGroup(sector, block);
+        boolean isKeyBReadable = Common.isKeyBReadable(
+                acMatrix[0][3], acMatrix[1][3], acMatrix[2][3]);
+        int requirement = Common.getOperationRequirements(
+                acMatrix[0][acGroup], acMatrix[1][acGroup],
+                acMatrix[2][acGroup], op, isSectorTrailer, isKeyBReadable);
+        byte[][] ret = new byte[2][];
+        if (requirement == 1 || requirement == 3) {
+            ret[0] = keys[0];
+        }
+        if (requirement == 2 || requirement == 3) {
+            ret[1] = keys[1];
+        }
+        if (ret[0] == null && ret[1] == null) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Read the Access Conditions of a sector.
+     * @param sector The sector.
+     * @param keys Keys (A/B) of the sector. Each of them might be null.
+     * @return The Access Conditions as matrix
+     * (see {@link Common#acBytesToACMatrix(byte[])}) or null if they
+     * could not be read or are invalid.
+     */
+    private byte[][] readAcMatrix(int sector, byte[][] keys) {
+        int acBlock = mMFC.sectorToBlock(sector)
+                + mMFC.getBlockCountInSector(sector) - 1;
+        for (int i = 0; i < 2; i++) {
+            if (keys[i] != null && authenticate(sector, keys[i], i == 1)) {
+                try {
+                    byte[] trailer = mMFC.readBlock(acBlock);
+                    if (trailer != null && trailer.length >= 16) {
+                        return Common.acBytesToACMatrix(
+                                Arrays.copyOfRange(trailer, 6, 9));
+                    }
+                } catch (IOException e) {
+                    // Try next key.
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the group of Access Conditions a data block belongs to. On the
+     * big sectors (32-39) of MIFARE Classic 4k tags, one group covers
+     * 5 blocks.
+     * @param sector The sector.
+     * @param block The data block within the sector.
+     * @return The index of the Access Condition group (0-2).
+     */
+    private static int getAcGroup(int sector, int block) {
+        if (sector >= 32) {
+            return block / 5;
+        }
+        return block;
+    }
+
     /**
      * Set the key files for {@link #buildNextKeyMapPart()}.
      * Key duplicates from the key file will be removed.
      * @param keyFiles One or more key files.
      * These files are simple text files with one key
      * per line. Empty lines and lines STARTING with "#"
-     * will not be interpreted.
+     * will not be interpreted. Compiled key dictionaries
+     * ({@link BinaryKeyDictionary}) are memory-mapped instead of being
+     * loaded. Their keys are tried after the keys of the text files.
+     * The parsed keys are cached ({@link KeySetCache}), so using the same
+     * key files again does not parse them again.
      * @param context The context in which the possible "Out of memory"-Toast
      * will be shown.
      * @return Number of keys loaded. -1 on error.
@@ -817,59 +3044,172 @@ public class MCReader {
         if (keyFiles == null || keyFiles.length == 0 || context == null) {
             return -1;
         }
-        HashSet<String> keys = new HashSet<>();
-        for (File file : keyFiles) {
-            String[] lines = Common.readFileLineByLine(file, false, context);
-            if (lines != null) {
-                for (String line : lines) {
-                    if (!line.equals("") && line.length() == 12
-                            && line.matches("[0-9A-Fa-f]+")) {
-                        try {
-                            keys.add(line);
-                        } catch (OutOfMemoryError e) {
-                            // Error. Too many keys (out of memory).
-                            Toast.makeText(context, R.string.info_to_many_keys,
-                                    Toast.LENGTH_LONG).show();
-                            return -1;
-                        }
-                    }
-                }
-            }
+        KeyDictionary keys;
+        try {
+            // Parsed and deduplicated keys (cached if the same key files
+            // were used before).
+            keys = KeySetCache.load(keyFiles);
+        } catch (OutOfMemoryError e) {
+            // Error. Too many keys (out of memory).
+            Toast.makeText(context, R.string.info_to_many_keys,
+                    Toast.LENGTH_LONG).show();
+            return -1;
         }
         if (keys.size() > 0) {
-            mHasAllZeroKey = keys.contains("000000000000");
-            mKeysWithOrder = new ArrayList<>(keys);
+            int keyCount = keys.size();
+            mHasAllZeroKey = keys.contains(0);
+            mKeysWithOrder = keys;
             if (mHasAllZeroKey) {
                 // NOTE: The all-F key has to be tested always first if there
                 // is a all-0 key in the key file, because of a bug in
                 // some tags and/or devices.
                 // https://github.com/ikarus23/MifareClassicTool/issues/66
-                mKeysWithOrder.remove(DEFAULT_KEY);
-                mKeysWithOrder.add(0, DEFAULT_KEY);
+                mKeysWithOrder.moveOrInsert(KeyDictionary.DEFAULT_KEY, 0);
             }
-            return keys.size();
+            updateKeysFingerprint();
+            return keyCount;
         }
         return 0;
     }
 
+    /**
+     * Set the key generators for {@link #buildNextKeyMapPart()}. The keys
+     * of the generators are calculated for each sector on the fly and
+     * are tried before the keys of the key files (in the order of the
+     * generators). Generators can be used with or without key files.
+     * @param generators The key generators or null to disable them.
+     * @return Number of generated keys per sector.
+     * @see KeyGenerators
+     * @see #setKeyFile(File[], Context)
+     */
+    public int setKeyGenerators(KeyGenerator[] generators) {
+        mKeyGenerators = null;
+        mGeneratedKeyCount = 0;
+        if (generators != null && generators.length > 0) {
+            mKeyGenerators = generators.clone();
+            for (KeyGenerator generator : mKeyGenerators) {
+                mGeneratedKeyCount += generator.getKeyCount();
+            }
+            mUid = mMFC.getTag().getId();
+            if (mKeysWithOrder == null) {
+                // Only generated keys (no key files).
+                mKeysWithOrder = new KeyDictionary();
+            }
+        }
+        if (mKeysWithOrder != null) {
+            updateKeysFingerprint();
+        }
+        return mGeneratedKeyCount;
+    }
+
+    /**
+     * Get a generated key (see {@link #setKeyGenerators(KeyGenerator[])}).
+     * @param index The index of the key over all generators.
+     * @param sector The sector the key is for.
+     * @return The packed key or {@link KeyDictionary#INVALID_KEY} if the
+     * generator has no key for this input.
+     */
+    private long getGeneratedKey(int index, int sector) {
+        for (KeyGenerator generator : mKeyGenerators) {
+            if (index < generator.getKeyCount()) {
+                return generator.getKey(index, mUid, sector, mBlock0);
+            }
+            index -= generator.getKeyCount();
+        }
+        return KeyDictionary.INVALID_KEY;
+    }
+
+    /**
+     * Update the fingerprint of the key candidates (keys from the key
+     * files and the key generators). It is used to match checkpoints.
+     * @see #setMappingCheckpoint(File)
+     */
+    private void updateKeysFingerprint() {
+        long hash = mKeysWithOrder.fingerprint();
+        if (mKeyGenerators != null) {
+            for (KeyGenerator generator : mKeyGenerators) {
+                hash = hash * 31 + generator.getId().hashCode();
+            }
+        }
+        mKeysFingerprint = hash;
+    }
+
+    /**
+     * Move a found key to the front of the key dictionary, because
+     * key reuse is very likely. If there is an all-0 key, the key will be
+     * moved to the second position (the all-F key must stay first).
+     * @param key The packed key that was found.
+     * @see #setKeyFile(File[], Context)
+     */
+    private void prioritizeKey(long key) {
+        int index = mKeysWithOrder.indexOf(key);
+        int size = mKeysWithOrder.size();
+        if (mHasAllZeroKey && key != KeyDictionary.DEFAULT_KEY) {
+            mKeysWithOrder.moveOrInsert(key, 1);
+        } else {
+            mKeysWithOrder.moveOrInsert(key, 0);
+        }
+        // A key from outside of the first tier (or a key that was copied
+        // to the front instead of being moved) pushes the last key of the
+        // first tier out. Extend the tier so that no key is skipped.
+        if (mTierSize > 0 && (index >= mTierLimit
+                || mKeysWithOrder.size() > size)) {
+            mTierLimit++;
+        }
+        mPrioritizedKeys++;
+    }
+
     /**
      * Set the mapping range for {@link #buildNextKeyMapPart()}.
      * @param firstSector Index of the first sector of the key map.
      * @param lastSector Index of the last sector of the key map.
      * @return True if range parameters were correct. False otherwise.
+     * @see #setMappingSectors(BitSet)
      */
     public boolean setMappingRange(int firstSector, int lastSector) {
-        if (firstSector >= 0 && lastSector < getSectorCount()
-                && firstSector <= lastSector) {
-            mFirstSector = firstSector;
-            mLastSector = lastSector;
-            // Init. status of buildNextKeyMapPart to create a new key map.
-            mKeyMapStatus = lastSector+1;
-            return true;
+        if (firstSector >= 0 && firstSector <= lastSector) {
+            BitSet sectors = new BitSet();
+            sectors.set(firstSector, lastSector + 1);
+            return setMappingSectors(sectors);
         }
         return false;
     }
 
+    /**
+     * Set the sectors for {@link #buildNextKeyMapPart()}. Unlike
+     * {@link #setMappingRange(int, int)}, the sectors do not have to be
+     * contiguous. Sectors in between are skipped completely (no
+     * authentications at all), e.g. to read only sector 1, 8 and 15.
+     * @param sectors The sectors of the key map.
+     * @return True if the sectors were correct. False otherwise.
+     * @see Common#parseSectors(String, int)
+     */
+    public boolean setMappingSectors(BitSet sectors) {
+        if (sectors == null || sectors.isEmpty()
+                || sectors.length() > getSectorCount()) {
+            return false;
+        }
+        mMappingSectors = (BitSet) sectors.clone();
+        mFirstSector = sectors.nextSetBit(0);
+        mLastSector = sectors.length() - 1;
+        // Init. status of buildNextKeyMapPart to create a new key map.
+        mKeyMapStatus = mLastSector+1;
+        mMappingPass = 0;
+        return true;
+    }
+
+    /**
+     * Get the next sector that is part of the key mapping.
+     * @param fromSector The sector to start searching from (inclusive).
+     * @return The next sector of the key mapping or the last sector + 1
+     * if there is none.
+     * @see #setMappingSectors(BitSet)
+     */
+    private int nextMappingSector(int fromSector) {
+        int sector = mMappingSectors.nextSetBit(fromSector);
+        return (sector == -1) ? mLastSector + 1 : sector;
+    }
+
     // TODO: Make this a function with three return values.
     // 0 = Auth. successful.
     // 1 = Auth. not successful.
@@ -893,6 +3233,7 @@ public class MCReader {
                 Preference.UseRetryAuthentication.toString(), false);
         int retryCount = Common.getPreferences().getInt(
                 Preference.RetryAuthenticationCount.toString(), 1);
+        mAuthSector = -1;
         if (key == null) {
             return false;
         }
@@ -961,6 +3302,27 @@ public class MCReader {
         return mKeyMap;
     }
 
+    /**
+     * Get the key map as it was right before the last error of
+     * {@link #buildNextKeyMapPart()} (e.g. because the tag was lost).
+     * Together with {@link #getReadSectors()} this is the partial
+     * result of an interrupted mapping.
+     * @return The key map found before the error or null if there
+     * was no error.
+     * @see #buildNextKeyMapPart()
+     */
+    public SparseArray<byte[][]> getInterruptedKeyMap() {
+        return mInterruptedKeyMap;
+    }
+
+    /**
+     * Get the UID of the tag.
+     * @return The UID of the tag as hex string.
+     */
+    public String getUID() {
+        return Common.bytes2Hex(mMFC.getTag().getId());
+    }
+
     public boolean isMifareClassic() {
         return mMFC != null;
     }
@@ -975,7 +3337,10 @@ public class MCReader {
     }
 
     /**
-     * Return the sector count of the MIFARE Classic tag.
+     * Return the sector count of the MIFARE Classic tag. A custom sector
+     * count from the preferences has priority over the automatically
+     * detected one (if {@link #detectSectorCount()} was called before).
+     * This never communicates with the tag.
      * @return The sector count of the current tag.
      */
     public int getSectorCount() {
@@ -986,6 +3351,9 @@ public class MCReader {
                     Preference.CustomSectorCount.toString(), 16);
 
         }
+        if (mDetectedSectorCount != -1) {
+            return mDetectedSectorCount;
+        }
         return mMFC.getSectorCount();
     }
 
@@ -1024,6 +3392,24 @@ public class MCReader {
         }
     }
 
+    /**
+     * Return the first block of a sector (the counterpart of
+     * {@link #blockToSector(int)}).
+     * @param sectorIndex index of the sector, starting from 0
+     * @return index of the first block of the sector
+     */
+    public static int sectorToBlock(int sectorIndex) {
+        if (sectorIndex < 0 || sectorIndex >= 40) {
+            throw new IndexOutOfBoundsException(
+                    "Sector out of bounds: " + sectorIndex);
+        }
+        if (sectorIndex < 32) {
+            return sectorIndex * 4;
+        } else {
+            return 32 * 4 + (sectorIndex - 32) * 16;
+        }
+    }
+
     /**
      * Check if the reader is connected to the tag.
      * This is NOT an indicator that the tag is in range.
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import de.syss.MifareClassicTool.Activities.KeyMapCreator;
+
+/**
+ * The state of an unfinished key mapping process of {@link MCReader}.
+ * A checkpoint contains the UID of the tag, the mapped sectors, a
+ * fingerprint of the used keys, the position (pass, sector and key index),
+ * the keys that were moved to the front of the key order and all keys
+ * found so far. It is stored as a small text file, so
+ * the mapping can be resumed even if the app was killed.
+ * @author Gerhard Klostermeier
+ * @see MCReader#setMappingCheckpoint(File)
+ */
+public class MappingCheckpoint {
+
+    private static final String LOG_TAG =
+            MappingCheckpoint.class.getSimpleName();
+
+    private final String mUID;
+    private final BitSet mSectors;
+    private final long mKeysFingerprint;
+    private final int mPass;
+    private final int mTierLimit;
+    private final int mSector;
+    private final int mKeyIndex;
+    private final long[] mKeyOrder;
+    private final byte[][] mSectorKeys;
+    private final SparseArray<byte[][]> mKeyMap;
+
+    /**
+     * Create a new checkpoint.
+     * @param uid The UID of the tag (hex).
+     * @param sectors The sectors of the key mapping.
+     * @param keysFingerprint Fingerprint of the keys (and their order)
+     * used for the mapping.
+     * @param pass The pass of the (tiered) mapping.
+     * @param tierLimit Number of dictionary keys of the first pass.
+     * @param sector The sector that is currently mapped.
+     * @param keyIndex Index of the next key to try for the current sector.
+     * @param keyOrder The first keys of the dictionary at the time of the
+     * checkpoint (found keys are moved to the front during the mapping).
+     * @param sectorKeys Keys A and B already found for the current
+     * sector. Each of them might be null.
+     * @param keyMap The key map of all sectors before the current one.
+     */
+    public MappingCheckpoint(String uid, BitSet sectors,
+            long keysFingerprint, int pass, int tierLimit, int sector,
+            int keyIndex, long[] keyOrder, byte[][] sectorKeys,
+            SparseArray<byte[][]> keyMap) {
+        mUID = uid;
+        mSectors = sectors;
+        mKeysFingerprint = keysFingerprint;
+        mPass = pass;
+        mTierLimit = tierLimit;
+        mSector = sector;
+        mKeyIndex = keyIndex;
+        mKeyOrder = keyOrder;
+        mSectorKeys = sectorKeys;
+        mKeyMap = keyMap;
+    }
+
+    /**
+     * Check if this checkpoint belongs to the given mapping process.
+     * @param uid The UID of the tag (hex).
+     * @param sectors The sectors of the key mapping.
+     * @param keysFingerprint Fingerprint of the keys.
+     * @return True if the mapping can be resumed from this checkpoint.
+     */
+    public boolean matches(String uid, BitSet sectors,
+            long keysFingerprint) {
+        return mUID.equalsIgnoreCase(uid) && mSectors.equals(sectors)
+                && mKeysFingerprint == keysFingerprint
+                && mSector >= 0 && sectors.get(mSector);
+    }
+
+    public int getPass() {
+        return mPass;
+    }
+
+    public int getTierLimit() {
+        return mTierLimit;
+    }
+
+    public int getSector() {
+        return mSector;
+    }
+
+    public int getKeyIndex() {
+        return mKeyIndex;
+    }
+
+    public long[] getKeyOrder() {
+        return mKeyOrder;
+    }
+
+    public byte[][] getSectorKeys() {
+        return mSectorKeys;
+    }
+
+    public SparseArray<byte[][]> getKeyMap() {
+        return mKeyMap;
+    }
+
+    /**
+     * Save this checkpoint to a file. The file will be written to a
+     * temporary file first and then renamed, so that a checkpoint is never
+     * left half written.
+     * @param file The checkpoint file.
+     * @return True if the checkpoint was saved. False otherwise.
+     */
+    public boolean save(File file) {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("# Key mapping checkpoint of MCT. Do not edit.");
+        lines.add(mUID);
+        lines.add(Common.sectorsToString(mSectors));
+        // Decimal, because the fingerprint might be negative
+        // (Long.parseUnsignedLong() needs API level 26).
+        lines.add(Long.toString(mKeysFingerprint));
+        lines.add(mSector + ":" + mKeyIndex + ":"
+                + keyToHex(mSectorKeys[0]) + ":" + keyToHex(mSectorKeys[1])
+                + ":" + mPass + ":" + mTierLimit);
+        StringBuilder order = new StringBuilder("order:");
+        for (int i = 0; i < mKeyOrder.length; i++) {
+            order.append((i == 0) ? "" : ",")
+                    .append(KeyDictionary.toHex(mKeyOrder[i]));
+        }
+        lines.add(order.toString());
+        for (int i = 0; i < mKeyMap.size(); i++) {
+            byte[][] keys = mKeyMap.valueAt(i);
+            lines.add(mKeyMap.keyAt(i) + ":" + keyToHex(keys[0])
+                    + ":" + keyToHex(keys[1]));
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        if (!Common.saveFile(tmp, lines.toArray(new String[0]), false)) {
+            return false;
+        }
+        return tmp.renameTo(file);
+    }
+
+    /**
+     * Load a checkpoint from a file.
+     * @param file The checkpoint file.
+     * @return The checkpoint or null if there is no (valid) checkpoint.
+     */
+    public static MappingCheckpoint load(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(file))) {
+            ArrayList<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.equals("") && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+            if (lines.size() < 5) {
+                return null;
+            }
+            String uid = lines.get(0);
+            BitSet sectors = Common.parseSectors(lines.get(1),
+                    KeyMapCreator.MAX_SECTOR_COUNT - 1);
+            if (sectors == null) {
+                return null;
+            }
+            long fingerprint = Long.parseLong(lines.get(2));
+            String[] pos = lines.get(3).split(":");
+            if (pos.length < 6 || !lines.get(4).startsWith("order:")) {
+                // Checkpoint of an older version (without pass and
+                // key order). It can not be resumed exactly.
+                return null;
+            }
+            byte[][] sectorKeys = new byte[][] {
+                    hexToKey(pos[2]), hexToKey(pos[3])};
+            String order = lines.get(4).substring(6);
+            String[] orderKeys = order.equals("")
+                    ? new String[0] : order.split(",");
+            long[] keyOrder = new long[orderKeys.length];
+            for (int i = 0; i < orderKeys.length; i++) {
+                keyOrder[i] = KeyDictionary.parseKey(orderKeys[i]);
+                if (keyOrder[i] == KeyDictionary.INVALID_KEY) {
+                    return null;
+                }
+            }
+            SparseArray<byte[][]> keyMap = new SparseArray<>();
+            for (int i = 5; i < lines.size(); i++) {
+                String[] entry = lines.get(i).split(":");
+                keyMap.put(Integer.parseInt(entry[0]), new byte[][] {
+                        hexToKey(entry[1]), hexToKey(entry[2])});
+            }
+            return new MappingCheckpoint(uid, sectors, fingerprint,
+                    Integer.parseInt(pos[4]), Integer.parseInt(pos[5]),
+                    Integer.parseInt(pos[0]), Integer.parseInt(pos[1]),
+                    keyOrder, sectorKeys, keyMap);
+        } catch (IOException | RuntimeException e) {
+            Log.d(LOG_TAG, "Could not load key mapping checkpoint.");
+            return null;
+        }
+    }
+
+    /**
+     * Delete the checkpoint file (if there is one).
+     * @param file The checkpoint file.
+     */
+    public static void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.d(LOG_TAG, "Could not delete key mapping checkpoint.");
+        }
+    }
+
+    /**
+     * Convert a key into its hex form.
+     * @param key The key (or null).
+     * @return The key as hex string or {@link MCReader#NO_KEY} if the key
+     * is null.
+     */
+    private static String keyToHex(byte[] key) {
+        return (key == null) ? MCReader.NO_KEY : Common.bytes2Hex(key);
+    }
+
+    /**
+     * Convert a hex string into a key.
+     * @param hex The key as hex string or {@link MCReader#NO_KEY}.
+     * @return The key or null if there is no key.
+     */
+    private static byte[] hexToKey(String hex) {
+        return hex.equals(MCReader.NO_KEY) ? null : Common.hex2Bytes(hex);
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.syss.MifareClassicTool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline brute force checker for keys that are partially known. It
+ * checks all keys that match the known key nibbles against the encrypted
+ * nonces of nested authentications and their encrypted parity bits.
+ * Each nonce rules out 15 of 16 keys, so a few nonces are enough to find
+ * the key. This works for tags with a good PRNG too (for which
+ * {@link KeyRecovery} does not work), but only if most of the key is
+ * known (e.g. from other sectors of the same system).<br /><br />
+ * This is not the "hardnested" attack: there is no reduction of the
+ * state space (sum property or bitflip filtering). A fully unknown key
+ * (48 bit) would take months on a phone, so captures with more than
+ * {@link #MAX_UNKNOWN_BITS} unknown key bits are rejected
+ * (see {@link Capture#isSolvable()}).<br /><br />
+ * The Crypto1 cipher is bitsliced: each bit of the LFSR is a long, one
+ * lane (bit) per key, so 64 keys are checked at once. The key space is
+ * split into chunks which are processed by multiple threads.<br /><br />
+ * The capture is a text file:
+ * <pre>
+ * uid 2A3B4C5D           # UID of the tag (4 or 7 bytes).
+ * target 4 A             # Sector and key type (optional).
+ * key A0A1B2??????       # Known key nibbles ("?" = unknown).
+ * nonce 5F3A9C21 1011    # Encrypted nonce and the 4 encrypted parity bits.
+ * </pre>
+ * This class has no Android dependencies.
+ * @author Gerhard Klostermeier
+ */
+public class PartialKeySolver {
+
+    /**
+     * Listener for the progress of {@link #solve(ProgressListener)}.
+     */
+    public interface ProgressListener {
+        /**
+         * Called about twice a second while solving.
+         * @param tested Number of keys tested.
+         * @param total Number of keys in the key space.
+         * @param etaMillis Estimated time left in milliseconds (-1 if
+         * it is not known yet).
+         */
+        void onProgress(long tested, long total, long etaMillis);
+    }
+
+    /**
+     * Maximum number of candidate keys. With too few nonces, (almost)
+     * every key is a candidate.
+     */
+    public static final int MAX_CANDIDATES = 4096;
+
+    /**
+     * Maximum number of unknown key bits (9 unknown nibbles). At about
+     * 20 million keys per second and core, 2^36 keys take about an hour
+     * on a phone. Each additional nibble would take 16 times longer.
+     */
+    public static final int MAX_UNKNOWN_BITS = 36;
+
+    private static final int LF_POLY_ODD = 0x29CE5C;
+    private static final int LF_POLY_EVEN = 0x870804;
+    private static final int LANE_BITS = 6;
+    private static final long[] LANE_PATTERNS = {
+            0xAAAAAAAAAAAAAAAAL, 0xCCCCCCCCCCCCCCCCL, 0xF0F0F0F0F0F0F0F0L,
+            0xFF00FF00FF00FF00L, 0xFFFF0000FFFF0000L, 0xFFFFFFFF00000000L
+    };
+    /**
+     * Number of blocks (of 64 keys) a thread takes at once.
+     */
+    private static final long CHUNK_BLOCKS = 1 << 10;
+    private static final long PROGRESS_INTERVAL = 500;
+
+    /**
+     * Offsets (from the newest bit) of the feedback taps of the LFSR.
+     */
+    private static final int[] TAPS;
+    static {
+        ArrayList<Integer> taps = new ArrayList<>();
+        for (int k = 0; k < 24; k++) {
+            if ((LF_POLY_ODD >>> k & 1) != 0) {
+                taps.add(2 * k);
+            }
+            if ((LF_POLY_EVEN >>> k & 1) != 0) {
+                taps.add(2 * k + 1);
+            }
+        }
+        TAPS = new int[taps.size()];
+        for (int i = 0; i < TAPS.length; i++) {
+            TAPS[i] = taps.get(i);
+        }
+    }
+
+    /**
+     * A capture of encrypted nonces of one sector key.
+     */
+    public static class Capture {
+        private byte[] mUid;
+        private int mSector = KeyRecovery.UNKNOWN_SECTOR;
+        private boolean mIsKeyB;
+        private long mKnownMask;
+        private long mKnownValue;
+        private final ArrayList<int[]> mNonces = new ArrayList<>();
+
+        private Capture() { }
+
+        /**
+         * Parse a capture file.
+         * @param lines The lines of the capture file.
+         * @return The capture or null if the file is invalid (no UID,
+         * no nonces or an invalid line).
+         */
+        public static Capture parse(String[] lines) {
+            Capture capture = new Capture();
+            for (String line : lines) {
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].equals("")) {
+                    continue;
+                }
+                if (!capture.parseLine(fields)) {
+                    return null;
+                }
+            }
+            if (capture.mUid == null || capture.mNonces.size() == 0) {
+                return null;
+            }
+            return capture;
+        }
+
+        /**
+         * Parse one (not empty) line of a capture file.
+         * @param fields The fields of the line.
+         * @return True if the line is valid.
+         */
+        private boolean parseLine(String[] fields) {
+            String type = fields[0].toLowerCase(Locale.ROOT);
+            if (type.equals("uid") && fields.length == 2
+                    && fields[1].matches("([0-9A-Fa-f]{8}|[0-9A-Fa-f]{14})")) {
+                mUid = new byte[fields[1].length() / 2];
+                for (int i = 0; i < mUid.length; i++) {
+                    mUid[i] = (byte) Integer.parseInt(
+                            fields[1].substring(i * 2, i * 2 + 2), 16);
+                }
+                return true;
+            } else if (type.equals("target") && fields.length == 3
+                    && fields[1].matches("[0-9]{1,2}")
+                    && fields[2].matches("[AaBb]")) {
+                mSector = Integer.parseInt(fields[1]);
+                mIsKeyB = fields[2].equalsIgnoreCase("B");
+                return mSector < 40;
+            } else if (type.equals("key") && fields.length == 2
+                    && fields[1].matches("[0-9A-Fa-f?]{12}")) {
+                mKnownMask = 0;
+                mKnownValue = 0;
+                for (char c : fields[1].toCharArray()) {
+                    mKnownMask <<= 4;
+                    mKnownValue <<= 4;
+                    if (c != '?') {
+                        mKnownMask |= 0xF;
+                        mKnownValue |= Character.digit(c, 16);
+                    }
+                }
+                return true;
+            } else if (type.equals("nonce") && fields.length == 3
+                    && fields[1].matches("[0-9A-Fa-f]{8}")
+                    && fields[2].matches("[01]{4}")) {
+                mNonces.add(new int[] {
+                        (int) Long.parseLong(fields[1], 16),
+                        Integer.parseInt(fields[2], 2)});
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get the UID of the tag.
+         * @return The UID (4 or 7 bytes).
+         */
+        public byte[] getUid() {
+            return mUid.clone();
+        }
+
+        /**
+         * Get the sector of the captured key.
+         * @return The sector or {@link KeyRecovery#UNKNOWN_SECTOR}.
+         */
+        public int getSector() {
+            return mSector;
+        }
+
+        /**
+         * Check whether the captured key is key B.
+         * @return True for key B. False for key A (or if it is unknown).
+         */
+        public boolean isKeyB() {
+            return mIsKeyB;
+        }
+
+        /**
+         * Get the number of captured nonces.
+         * @return The number of nonces.
+         */
+        public int getNonceCount() {
+            return mNonces.size();
+        }
+
+        /**
+         * Get the size of the key space (keys to check).
+         * @return The number of keys with the known nibbles.
+         */
+        public long getKeySpace() {
+            return 1L << (48 - Long.bitCount(mKnownMask));
+        }
+
+        /**
+         * Check whether the key space is small enough to be checked
+         * (at most {@link #MAX_UNKNOWN_BITS} unknown key bits).
+         * @return True if the capture can be solved.
+         */
+        public boolean isSolvable() {
+            return 48 - Long.bitCount(mKnownMask) <= MAX_UNKNOWN_BITS;
+        }
+    }
+
+    private final Capture mCapture;
+    private final int mThreads;
+    private final int mCipherUid;
+    private final int[] mUnknownBits;
+    private final int mLaneBits;
+    private final long mBlocks;
+    private final AtomicLong mNextBlock = new AtomicLong();
+    private final AtomicLong mTestedBlocks = new AtomicLong();
+    private final ArrayList<Long> mCandidates = new ArrayList<>();
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Create a solver for a capture.
+     * @param capture The capture (see {@link Capture#isSolvable()}).
+     * @param threads The number of threads to use (e.g. the number
+     * of cores).
+     */
+    public PartialKeySolver(Capture capture, int threads) {
+        if (!capture.isSolvable()) {
+            throw new IllegalArgumentException("Key space too large");
+        }
+        mCapture = capture;
+        mThreads = Math.max(1, threads);
+        byte[] uid = capture.mUid;
+        int offset = uid.length - 4;
+        mCipherUid = (uid[offset] & 0xFF) << 24
+                | (uid[offset + 1] & 0xFF) << 16
+                | (uid[offset + 2] & 0xFF) << 8
+                | (uid[offset + 3] & 0xFF);
+        mUnknownBits = new int[48 - Long.bitCount(capture.mKnownMask)];
+        int n = 0;
+        for (int i = 0; i < 48; i++) {
+            if ((capture.mKnownMask >>> i & 1) == 0) {
+                mUnknownBits[n++] = i;
+            }
+        }
+        mLaneBits = Math.min(LANE_BITS, mUnknownBits.length);
+        mBlocks = 1L << (mUnknownBits.length - mLaneBits);
+    }
+
+    /**
+     * Check all keys of the key space. This blocks until all keys are
+     * checked or {@link #cancel()} was called.
+     * @param listener Listener for the progress (might be null).
+     * @return The candidate keys (packed, see {@link KeyDictionary},
+     * sorted). At most {@link #MAX_CANDIDATES} keys. If canceled, the
+     * candidates found so far.
+     */
+    public long[] solve(ProgressListener listener) {
+        Thread[] workers = new Thread[mThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work);
+            workers[i].start();
+        }
+        long total = mCapture.getKeySpace();
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join(PROGRESS_INTERVAL);
+                } catch (InterruptedException e) {
+                    cancel();
+                }
+                if (listener != null) {
+                    long tested = Math.min(total,
+                            mTestedBlocks.get() << LANE_BITS);
+                    long elapsed = System.currentTimeMillis() - start;
+                    long eta = (tested == 0) ? -1
+                            : (long) (elapsed * ((double) (total - tested)
+                                    / tested));
+                    listener.onProgress(tested, total, eta);
+                }
+            }
+        }
+        long[] candidates;
+        synchronized (mCandidates) {
+            candidates = new long[mCandidates.size()];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = mCandidates.get(i);
+            }
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Stop solving. {@link #solve(ProgressListener)} returns the
+     * candidates found so far.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Create the content of a key file (.keys) with candidate keys.
+     * @param capture The capture the keys belong to.
+     * @param keys The candidate keys.
+     * @return The lines of the key file.
+     */
+    public static String[] toKeyFile(Capture capture, long[] keys) {
+        String[] lines = new String[keys.length + 1];
+        StringBuilder uid = new StringBuilder();
+        for (byte b : capture.mUid) {
+            uid.append(String.format(Locale.ROOT, "%02X", b));
+        }
+        lines[0] = "# Candidate keys for UID " + uid
+                + ((capture.mSector == KeyRecovery.UNKNOWN_SECTOR) ? ""
+                        : ", sector " + capture.mSector
+                                + (capture.mIsKeyB ? ", key B" : ", key A"))
+                + " (" + capture.getNonceCount() + " nonces).";
+        for (int i = 0; i < keys.length; i++) {
+            lines[i + 1] = KeyDictionary.toHex(keys[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * Worker thread: take chunks of blocks and check them until all
+     * blocks are done.
+     */
+    private void work() {
+        long[] seq = new long[48 + 32];
+        long[] keyLanes = new long[48];
+        while (!mCanceled) {
+            long first = mNextBlock.getAndAdd(CHUNK_BLOCKS);
+            if (first >= mBlocks) {
+                return;
+            }
+            long last = Math.min(first + CHUNK_BLOCKS, mBlocks);
+            for (long block = first; block < last && !mCanceled; block++) {
+                loadKeys(block, keyLanes);
+                long alive = checkBlock(keyLanes, seq);
+                if (alive != 0) {
+                    addCandidates(block, alive);
+                }
+            }
+            mTestedBlocks.addAndGet(last - first);
+        }
+    }
+
+    /**
+     * Load the keys of a block into the key lanes. Lane i holds the key
+     * with the lowest unknown bits set to i.
+     * @param block The block index (the upper unknown bits).
+     * @param keyLanes The lanes for the 48 key bits.
+     */
+    private void loadKeys(long block, long[] keyLanes) {
+        for (int i = 0; i < 48; i++) {
+            keyLanes[i] = -(mCapture.mKnownValue >>> i & 1);
+        }
+        for (int i = 0; i < mLaneBits; i++) {
+            keyLanes[mUnknownBits[i]] = LANE_PATTERNS[i];
+        }
+        for (int i = mLaneBits; i < mUnknownBits.length; i++) {
+            keyLanes[mUnknownBits[i]] = -(block >>> (i - mLaneBits) & 1);
+        }
+    }
+
+    /**
+     * Get the key of a lane.
+     * @param block The block index.
+     * @param lane The lane.
+     * @return The packed key.
+     */
+    private long getKey(long block, int lane) {
+        long key = mCapture.mKnownValue;
+        for (int i = 0; i < mLaneBits; i++) {
+            key |= (long) (lane >>> i & 1) << mUnknownBits[i];
+        }
+        for (int i = mLaneBits; i < mUnknownBits.length; i++) {
+            key |= (block >>> (i - mLaneBits) & 1) << mUnknownBits[i];
+        }
+        return key;
+    }
+
+    /**
+     * Add the keys of all alive lanes to the candidates.
+     * @param block The block index.
+     * @param alive The alive lanes.
+     */
+    private void addCandidates(long block, long alive) {
+        synchronized (mCandidates) {
+            while (alive != 0 && mCandidates.size() < MAX_CANDIDATES) {
+                int lane = Long.numberOfTrailingZeros(alive);
+                mCandidates.add(getKey(block, lane));
+                alive &= alive - 1;
+            }
+        }
+    }
+
+    /**
+     * Check 64 keys against all nonces.
+     * @param keyLanes The keys (one lane per key).
+     * @param seq Buffer for the LFSR bits.
+     * @return The lanes of the keys that match all nonces.
+     */
+    private long checkBlock(long[] keyLanes, long[] seq) {
+        // With less than 6 unknown bits, some lanes are duplicates.
+        long alive = (mLaneBits == LANE_BITS) ? -1L
+                : (1L << (1 << mLaneBits)) - 1;
+        for (int[] nonce : mCapture.mNonces) {
+            alive &= checkNonce(keyLanes, seq, nonce[0], nonce[1]);
+            if (alive == 0) {
+                break;
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Decrypt a nonce with 64 keys and check the parity bits. The LFSR
+     * is kept as sequence of all its bits (seq[n] is the newest bit),
+     * so it never has to be shifted. The odd half of the LFSR
+     * (the input of the filter) is at seq[n - 2k], the even half at
+     * seq[n - 1 - 2k].
+     * @param keyLanes The keys.
+     * @param seq Buffer for the LFSR bits.
+     * @param encNonce The encrypted nonce.
+     * @param encParity The encrypted parity bits (first byte first).
+     * @return The lanes of the keys that match the nonce.
+     */
+    private long checkNonce(long[] keyLanes, long[] seq, int encNonce,
+            int encParity) {
+        for (int m = 0; m < 48; m++) {
+            seq[47 - m] = keyLanes[m ^ 7];
+        }
+        int in = mCipherUid ^ encNonce;
+        long alive = -1L;
+        int n = 47;
+        for (int j = 0; j < 4; j++) {
+            long byteKs = 0;
+            for (int b = 0; b < 8; b++) {
+                long ks = filter(seq, n);
+                byteKs ^= ks;
+                // Reader side: the encrypted bit is fed back decrypted.
+                long feedback = ks ^ -(in >>> ((8 * j + b) ^ 24) & 1);
+                for (int tap : TAPS) {
+                    feedback ^= seq[n - tap];
+                }
+                seq[++n] = feedback;
+            }
+            // The parity bit is encrypted with the next keystream bit.
+            long parityKs = filter(seq, n);
+            int encByte = encNonce >>> (24 - 8 * j) & 0xFF;
+            int expected = (encParity >>> (3 - j) & 1) ^ 1
+                    ^ (Integer.bitCount(encByte) & 1);
+            alive &= ~(byteKs ^ parityKs ^ -expected);
+            if (alive == 0) {
+                break;
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * The non-linear filter function of Crypto1 (bitsliced).
+     * @param seq The LFSR bits.
+     * @param n Index of the newest bit.
+     * @return The keystream bit of each lane.
+     */
+    private static long filter(long[] seq, int n) {
+        long f4 = fb(seq[n - 6], seq[n - 4], seq[n - 2], seq[n]);
+        long f3 = fa(seq[n - 14], seq[n - 12], seq[n - 10], seq[n - 8]);
+        long f2 = fb(seq[n - 22], seq[n - 20], seq[n - 18], seq[n - 16]);
+        long f1 = fb(seq[n - 30], seq[n - 28], seq[n - 26], seq[n - 24]);
+        long f0 = fa(seq[n - 38], seq[n - 36], seq[n - 34], seq[n - 32]);
+        return (f0 | ((f1 | f4) & (f3 ^ f4)))
+                ^ ((f0 ^ (f1 & f3)) & ((f2 ^ f3) | (f1 & f4)));
+    }
+
+    private static long fa(long y0, long y1, long y2, long y3) {
+        return ((y0 | y1) ^ (y0 & y3)) ^ (y2 & ((y0 ^ y1) | y3));
+    }
+
+    private static long fb(long y0, long y1, long y2, long y3) {
+        return ((y0 & y1) | y2) ^ ((y0 ^ y1) & (y2 | y3));
+    }
+}
@@ -0,0 +1,62 @@
+#!/bin/bash
+
+########################################################################
+#
+# Copyright 2026 Gerhard Klostermeier
+#
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+########################################################################
+#
+# Usage: ./run-benchmark.sh <benchmark> [arguments]
+#
+########################################################################
+#
+# Info:
+# - Only classes of the app without Android dependencies can be used.
+#   They are listed in APP_SOURCES.
+# - For more information see the README.txt
+#
+########################################################################
+
+if [ $# -lt 1 ]; then
+  echo "Usage: $0 <benchmark> [arguments]"
+  exit 1
+fi
+
+BASE_DIR="$(cd "$(dirname "$0")" && pwd)"
+APP_DIR="$BASE_DIR/../../Mifare Classic Tool/app/src/main/java/de/syss/MifareClassicTool"
+APP_SOURCES=(
+  "KeyDictionary.java"
+  "BinaryKeyDictionary.java"
+  "KeyGenerator.java"
+  "KeyGenerators.java"
+  "Crypto1.java"
+  "KeyRecovery.java"
+  "PartialKeySolver.java"
+)
+BENCHMARK="$1"
+shift
+
+BUILD_DIR="$(mktemp -d)"
+trap 'rm -rf "$BUILD_DIR"' EXIT
+
+SOURCES=()
+for SOURCE in "${APP_SOURCES[@]}"; do
+  SOURCES+=("$APP_DIR/$SOURCE")
+done
+SOURCES+=("$BASE_DIR/src/$BENCHMARK.java")
+
+javac -nowarn -d "$BUILD_DIR" "${SOURCES[@]}" || exit 1
+java -cp "$BUILD_DIR" "$BENCHMARK" "$@"
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import de.syss.MifareClassicTool.KeyDictionary;
+import de.syss.MifareClassicTool.KeyGenerator;
+import de.syss.MifareClassicTool.KeyGenerators;
+
+/**
+ * Compare the key generators with key files containing the same keys.
+ * Without generators, derived keys must be generated for every tag that
+ * might be mapped (e.g. all tags of a system) and stored in a key file.
+ * This benchmark creates such a key file for a number of random UIDs and
+ * measures the size, the loading time and the memory of it. Then it
+ * measures how many keys have to be tried (on average) to find the key
+ * of a sector with the key file and with the generators.
+ * @author Gerhard Klostermeier
+ */
+public class KeyGeneratorBenchmark {
+
+    private static final int SECTORS = 16;
+    private static final int SAMPLES = 200;
+
+    public static void main(String[] args) throws IOException {
+        int tags = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        KeyGenerator[] generators = {
+                KeyGenerators.get("uid-padding"),
+                KeyGenerators.get("uid-sector")
+        };
+        Random random = new Random(42);
+        byte[][] uids = new byte[tags][4];
+        for (byte[] uid : uids) {
+            random.nextBytes(uid);
+        }
+
+        // Static key file with all keys for all tags.
+        File keyFile = File.createTempFile("generated", ".keys");
+        keyFile.deleteOnExit();
+        long written = 0;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(keyFile))) {
+            for (byte[] uid : uids) {
+                for (int sector = 0; sector < SECTORS; sector++) {
+                    for (KeyGenerator generator : generators) {
+                        for (int i = 0; i < generator.getKeyCount(); i++) {
+                            long key = generator.getKey(i, uid, sector, null);
+                            if (key != KeyDictionary.INVALID_KEY) {
+                                out.write(KeyDictionary.toHex(key));
+                                out.write('\n');
+                                written++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        long memBefore = usedMemory();
+        long start = System.nanoTime();
+        KeyDictionary dictionary = new KeyDictionary();
+        dictionary.addFromFile(keyFile);
+        dictionary.removeDuplicates();
+        long loadTime = System.nanoTime() - start;
+        long fileMemory = usedMemory() - memBefore;
+
+        // Number of keys tried until the key of a sector is found.
+        // The right key is one of the generated keys of a random tag.
+        long fileTries = 0;
+        long generatorTries = 0;
+        for (int s = 0; s < SAMPLES; s++) {
+            byte[] uid = uids[random.nextInt(tags)];
+            int sector = random.nextInt(SECTORS);
+            KeyGenerator generator = generators[random.nextInt(
+                    generators.length)];
+            long target = generator.getKey(random.nextInt(
+                    generator.getKeyCount()), uid, sector, null);
+            fileTries += dictionary.indexOf(target) + 1;
+            int tries = 0;
+            outer:
+            for (KeyGenerator g : generators) {
+                for (int i = 0; i < g.getKeyCount(); i++) {
+                    tries++;
+                    if (g.getKey(i, uid, sector, null) == target) {
+                        break outer;
+                    }
+                }
+            }
+            generatorTries += tries;
+        }
+
+        // Time to calculate all candidates of all tags and sectors.
+        long generated = 0;
+        long checksum = 0;
+        start = System.nanoTime();
+        for (byte[] uid : uids) {
+            for (int sector = 0; sector < SECTORS; sector++) {
+                for (KeyGenerator g : generators) {
+                    for (int i = 0; i < g.getKeyCount(); i++) {
+                        checksum ^= g.getKey(i, uid, sector, null);
+                        generated++;
+                    }
+                }
+            }
+        }
+        long generatorTime = System.nanoTime() - start;
+
+        System.out.println("Tags: " + tags + ", sectors: " + SECTORS
+                + ", samples: " + SAMPLES);
+        System.out.println();
+        System.out.println("Key file (all keys of all tags):");
+        System.out.printf("  keys written:        %d%n", written);
+        System.out.printf("  unique keys:         %d%n", dictionary.size());
+        System.out.printf("  file size:           %.1f MiB%n",
+                keyFile.length() / 1048576.0);
+        System.out.printf("  load time:           %.1f ms%n",
+                loadTime / 1e6);
+        System.out.printf("  heap used:           %.1f MiB%n",
+                fileMemory / 1048576.0);
+        System.out.printf("  avg. keys tried:     %.1f%n",
+                fileTries / (double) SAMPLES);
+        System.out.println();
+        System.out.println("Key generators (on the fly):");
+        int perSector = 0;
+        for (KeyGenerator g : generators) {
+            perSector += g.getKeyCount();
+        }
+        System.out.printf("  keys per sector:     %d%n", perSector);
+        System.out.println("  file size:           0 (nothing stored)");
+        System.out.println("  load time:           0 (nothing loaded)");
+        System.out.println("  heap used:           0 (nothing stored)");
+        System.out.printf("  avg. keys tried:     %.1f%n",
+                generatorTries / (double) SAMPLES);
+        System.out.printf("  avg. time per key:   %.1f ns%n",
+                generatorTime / (double) generated);
+        // Use the checksum so the loop can not be optimized away.
+        if (checksum == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Get the used heap memory (after a garbage collection).
+     * @return Used heap memory in bytes.
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
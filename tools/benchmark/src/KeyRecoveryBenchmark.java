@@ -0,0 +1,139 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import de.syss.MifareClassicTool.Crypto1;
+import de.syss.MifareClassicTool.KeyRecovery;
+
+/**
+ * Measure the offline key recovery. Authentications with random keys
+ * are simulated with the software Crypto1 implementation and written
+ * as traces (every second one mfkey32, the others mfkey64). Then the
+ * keys are recovered in a single thread and with a fork-join pool.
+ * @author Gerhard Klostermeier
+ */
+public class KeyRecoveryBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        Random random = new Random(42);
+        long[] keys = new long[count];
+        KeyRecovery.Trace[] traces = new KeyRecovery.Trace[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            int uid = random.nextInt();
+            String line = (i % 2 == 0) ? mfkey64(keys[i], uid, random)
+                    : mfkey32(keys[i], uid, random);
+            traces[i] = KeyRecovery.Trace.parse(line);
+        }
+
+        // Warm up (JIT).
+        KeyRecovery.recover(traces[0], null);
+
+        long start = System.nanoTime();
+        long[] sequential = KeyRecovery.recoverAll(traces, null);
+        long sequentialTime = System.nanoTime() - start;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        start = System.nanoTime();
+        long[] parallel = KeyRecovery.recoverAll(traces, pool);
+        long parallelTime = System.nanoTime() - start;
+        pool.shutdown();
+
+        int sequentialFound = 0;
+        int parallelFound = 0;
+        for (int i = 0; i < count; i++) {
+            if (sequential[i] == keys[i]) {
+                sequentialFound++;
+            }
+            if (parallel[i] == keys[i]) {
+                parallelFound++;
+            }
+        }
+
+        System.out.println("Traces: " + count + " (mfkey32 and mfkey64), "
+                + "threads: " + threads);
+        System.out.println();
+        System.out.println("Single thread:");
+        System.out.printf(Locale.ROOT, "  total time:          %.0f ms%n",
+                sequentialTime / 1e6);
+        System.out.printf(Locale.ROOT, "  time per trace:      %.0f ms%n",
+                sequentialTime / 1e6 / count);
+        System.out.printf("  keys recovered:      %d/%d%n",
+                sequentialFound, count);
+        System.out.println();
+        System.out.println("Fork-join pool:");
+        System.out.printf(Locale.ROOT, "  total time:          %.0f ms%n",
+                parallelTime / 1e6);
+        System.out.printf(Locale.ROOT, "  time per trace:      %.0f ms%n",
+                parallelTime / 1e6 / count);
+        System.out.printf("  keys recovered:      %d/%d%n",
+                parallelFound, count);
+        System.out.printf(Locale.ROOT, "  speedup:             %.2fx%n",
+                sequentialTime / (double) parallelTime);
+    }
+
+    /**
+     * Simulate a complete authentication (mfkey64 trace).
+     * @param key The key.
+     * @param uid The UID.
+     * @param random Source of the nonces.
+     * @return The trace line.
+     */
+    private static String mfkey64(long key, int uid, Random random) {
+        int nt = random.nextInt();
+        int nr = random.nextInt();
+        Crypto1 state = new Crypto1(key);
+        state.word(uid ^ nt, false);
+        int nrEnc = nr ^ state.word(nr, false);
+        int arEnc = Crypto1.prngSuccessor(nt, 64) ^ state.word(0, false);
+        int atEnc = Crypto1.prngSuccessor(nt, 96) ^ state.word(0, false);
+        return String.format("mfkey64 %08X %08X %08X %08X %08X",
+                uid, nt, nrEnc, arEnc, atEnc);
+    }
+
+    /**
+     * Simulate two authentications of a reader with the same key
+     * (mfkey32 trace).
+     * @param key The key.
+     * @param uid The UID.
+     * @param random Source of the nonces.
+     * @return The trace line.
+     */
+    private static String mfkey32(long key, int uid, Random random) {
+        StringBuilder sb = new StringBuilder(
+                String.format("mfkey32 %08X", uid));
+        for (int i = 0; i < 2; i++) {
+            int nt = random.nextInt();
+            int nr = random.nextInt();
+            Crypto1 state = new Crypto1(key);
+            state.word(uid ^ nt, false);
+            int nrEnc = nr ^ state.word(nr, false);
+            int arEnc = Crypto1.prngSuccessor(nt, 64) ^ state.word(0, false);
+            sb.append(String.format(" %08X %08X %08X", nt, nrEnc, arEnc));
+        }
+        // Sector and key type are optional (only needed for key maps).
+        sb.append(" 0 A");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2026 Gerhard Klostermeier
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import de.syss.MifareClassicTool.Crypto1;
+import de.syss.MifareClassicTool.PartialKeySolver;
+import de.syss.MifareClassicTool.KeyDictionary;
+
+/**
+ * Run the partial key solver headless. Either on a simulated capture
+ * (nested authentications with a random key, measuring the speed of the
+ * solver) or on a real capture file (writing the candidates to a key
+ * file).
+ * @author Gerhard Klostermeier
+ */
+public class PartialKeyBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && !args[0].matches("[0-9]+")) {
+            solveFile(new File(args[0]), new File(args[1]),
+                    (args.length > 2) ? Integer.parseInt(args[2]) : cores());
+            return;
+        }
+        int unknown = (args.length > 0) ? Integer.parseInt(args[0]) : 7;
+        int nonces = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : cores();
+
+        Random random = new Random(42);
+        long key = random.nextLong() & 0xFFFFFFFFFFFFL;
+        int uid = random.nextInt();
+        // Known nibbles first, unknown nibbles last.
+        String hex = KeyDictionary.toHex(key);
+        StringBuilder mask = new StringBuilder(hex.substring(0, 12 - unknown));
+        for (int i = 0; i < unknown; i++) {
+            mask.append('?');
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("uid %08X", uid));
+        lines.add("target 4 A");
+        lines.add("key " + mask);
+        for (int i = 0; i < nonces; i++) {
+            lines.add(nestedNonce(key, uid, random.nextInt()));
+        }
+        File capture = File.createTempFile("capture", ".txt");
+        capture.deleteOnExit();
+        Files.write(capture.toPath(), lines, StandardCharsets.UTF_8);
+        File keys = File.createTempFile("candidates", ".keys");
+        keys.deleteOnExit();
+
+        System.out.println("Key: " + hex + ", key space: " + mask
+                + ", nonces: " + nonces + ", threads: " + threads);
+        long[] candidates = solveFile(capture, keys, threads);
+        System.out.println("Key found:           "
+                + (Arrays.binarySearch(candidates, key) >= 0));
+    }
+
+    /**
+     * Solve a capture file and write the candidates to a key file.
+     * @param capture The capture file.
+     * @param keys The key file.
+     * @param threads Number of threads.
+     * @return The candidates.
+     */
+    private static long[] solveFile(File capture, File keys, int threads)
+            throws IOException {
+        List<String> lines = Files.readAllLines(capture.toPath(),
+                StandardCharsets.UTF_8);
+        PartialKeySolver.Capture c = PartialKeySolver.Capture.parse(
+                lines.toArray(new String[0]));
+        if (c == null) {
+            System.err.println("Error: Invalid capture file.");
+            System.exit(1);
+        }
+        if (!c.isSolvable()) {
+            System.err.println("Error: Key space too large (more than "
+                    + PartialKeySolver.MAX_UNKNOWN_BITS
+                    + " unknown key bits).");
+            System.exit(1);
+        }
+        PartialKeySolver solver = new PartialKeySolver(c, threads);
+        long start = System.nanoTime();
+        long[] candidates = solver.solve((tested, total, eta) ->
+                System.out.printf(Locale.ROOT,
+                        "  %5.1f %%  %,d/%,d keys  ETA %s%n",
+                        100.0 * tested / total, tested, total,
+                        (eta < 0) ? "-" : (eta / 1000) + " s"));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Files.write(keys.toPath(), Arrays.asList(
+                PartialKeySolver.toKeyFile(c, candidates)),
+                StandardCharsets.UTF_8);
+        System.out.printf(Locale.ROOT, "Time:                %.1f s%n",
+                seconds);
+        System.out.printf(Locale.ROOT, "Keys per second:     %,.0f%n",
+                c.getKeySpace() / seconds);
+        System.out.printf(Locale.ROOT, "Keys/s per thread:   %,.0f%n",
+                c.getKeySpace() / seconds / threads);
+        System.out.println("Candidates:          " + candidates.length
+                + " (written to " + keys + ")");
+        return candidates;
+    }
+
+    /**
+     * Simulate the answer of a tag to a nested authentication.
+     * @param key The key of the sector.
+     * @param uid The UID.
+     * @param nt The (plain) nonce of the tag.
+     * @return The capture line with the encrypted nonce and the
+     * encrypted parity bits.
+     */
+    private static String nestedNonce(long key, int uid, int nt) {
+        Crypto1 state = new Crypto1(key);
+        int[] ks = new int[33];
+        for (int i = 0; i < 32; i++) {
+            ks[i] = state.bit((uid ^ nt) >>> (i ^ 24) & 1, false);
+        }
+        ks[32] = state.bit(0, false);
+        int encNonce = 0;
+        StringBuilder parity = new StringBuilder();
+        for (int j = 0; j < 4; j++) {
+            int plain = nt >>> (24 - 8 * j) & 0xFF;
+            int ksByte = 0;
+            for (int b = 0; b < 8; b++) {
+                ksByte |= ks[8 * j + b] << b;
+            }
+            encNonce |= (plain ^ ksByte) << (24 - 8 * j);
+            int oddParity = (Integer.bitCount(plain) & 1) ^ 1;
+            parity.append(oddParity ^ ks[8 * j + 8]);
+        }
+        return String.format("nonce %08X %s", encNonce, parity);
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}